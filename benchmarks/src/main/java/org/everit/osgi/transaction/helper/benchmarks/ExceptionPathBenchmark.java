@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the propagation functions when the callback throws an exception. The transaction is
+ * either rolled back (the helper started it) or marked as rollback only (the helper joined it).
+ * The exception is pre-allocated and has no stack trace, so its creation is not measured. The
+ * *Rejected benchmarks measure the calls that the helper refuses because of the status of the
+ * transaction; there the helper creates the exception, which is part of the measured cost.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExceptionPathBenchmark {
+
+  /**
+   * Exception without stack trace that is thrown by the callbacks.
+   */
+  private static final class BenchmarkException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    BenchmarkException() {
+      super("Benchmark exception", null, false, false);
+    }
+  }
+
+  private static final BenchmarkException EXCEPTION = new BenchmarkException();
+
+  private static final Supplier<Object> FAILING_CALLBACK = () -> {
+    throw EXCEPTION;
+  };
+
+  @Benchmark
+  public Object directBeginRollback(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    try {
+      return FAILING_CALLBACK.get();
+    } catch (BenchmarkException e) {
+      transactionManager.rollback();
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object directSetRollbackOnly(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    try {
+      return FAILING_CALLBACK.get();
+    } catch (BenchmarkException e) {
+      transactionManager.getTransaction().setRollbackOnly();
+      return e;
+    } finally {
+      transactionManager.rollback();
+    }
+  }
+
+  @Benchmark
+  public Object mandatoryNoTransactionRejected(final TransactionHelperState state) {
+    try {
+      return state.transactionHelper.mandatory(FAILING_CALLBACK);
+    } catch (IllegalStateException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object mandatorySetRollbackOnly(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    try {
+      return state.transactionHelper.mandatory(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    } finally {
+      transactionManager.rollback();
+    }
+  }
+
+  @Benchmark
+  public Object neverOngoingTransactionRejected(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    try {
+      return state.transactionHelper.never(FAILING_CALLBACK);
+    } catch (IllegalStateException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object notSupportedNoTransactionFailure(final TransactionHelperState state) {
+    try {
+      return state.transactionHelper.notSupported(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object notSupportedOngoingTransactionFailure(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    try {
+      return state.transactionHelper.notSupported(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object requiredNoTransactionRollback(final TransactionHelperState state) {
+    try {
+      return state.transactionHelper.required(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object requiredSetRollbackOnly(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    try {
+      return state.transactionHelper.required(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    } finally {
+      transactionManager.rollback();
+    }
+  }
+
+  @Benchmark
+  public Object requiresNewNoTransactionRollback(final TransactionHelperState state) {
+    try {
+      return state.transactionHelper.requiresNew(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object requiresNewOngoingTransactionRollback(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    try {
+      return state.transactionHelper.requiresNew(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object supportsSetRollbackOnly(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    try {
+      return state.transactionHelper.supports(FAILING_CALLBACK);
+    } catch (BenchmarkException e) {
+      return e;
+    } finally {
+      transactionManager.rollback();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.benchmarks;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+/**
+ * In-process {@link TransactionManager} that only tracks the association between the threads and
+ * the transactions. It does not enlist resources or call synchronizations, so the benchmarks that
+ * use it measure the overhead of the transaction helper itself.
+ */
+public class NoopTransactionManager implements TransactionManager {
+
+  /**
+   * Transaction that has nothing more than a status.
+   */
+  private static final class NoopTransaction implements Transaction {
+
+    private int status = Status.STATUS_ACTIVE;
+
+    @Override
+    public void commit() throws RollbackException {
+      if (status == Status.STATUS_MARKED_ROLLBACK) {
+        status = Status.STATUS_ROLLEDBACK;
+        throw new RollbackException();
+      }
+      status = Status.STATUS_COMMITTED;
+    }
+
+    @Override
+    public boolean delistResource(final XAResource xaRes, final int flag) {
+      return true;
+    }
+
+    @Override
+    public boolean enlistResource(final XAResource xaRes) {
+      return true;
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    @Override
+    public void registerSynchronization(final Synchronization sync) {
+      // Synchronizations are not called by this transaction manager.
+    }
+
+    @Override
+    public void rollback() {
+      status = Status.STATUS_ROLLEDBACK;
+    }
+
+    @Override
+    public void setRollbackOnly() {
+      status = Status.STATUS_MARKED_ROLLBACK;
+    }
+  }
+
+  private final ThreadLocal<NoopTransaction> currentTransaction =
+      new ThreadLocal<NoopTransaction>();
+
+  @Override
+  public void begin() throws NotSupportedException {
+    if (currentTransaction.get() != null) {
+      throw new NotSupportedException("Nested transactions are not supported");
+    }
+    currentTransaction.set(new NoopTransaction());
+  }
+
+  @Override
+  public void commit() throws RollbackException {
+    NoopTransaction transaction = requireTransaction();
+    currentTransaction.set(null);
+    transaction.commit();
+  }
+
+  @Override
+  public int getStatus() {
+    NoopTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      return Status.STATUS_NO_TRANSACTION;
+    }
+    return transaction.getStatus();
+  }
+
+  @Override
+  public Transaction getTransaction() {
+    return currentTransaction.get();
+  }
+
+  private NoopTransaction requireTransaction() {
+    NoopTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      throw new IllegalStateException("No transaction associated with the current thread");
+    }
+    return transaction;
+  }
+
+  @Override
+  public void resume(final Transaction tobj) throws InvalidTransactionException {
+    if (!(tobj instanceof NoopTransaction)) {
+      throw new InvalidTransactionException("Unknown transaction: " + tobj);
+    }
+    if (currentTransaction.get() != null) {
+      throw new IllegalStateException("Thread is already associated with a transaction");
+    }
+    currentTransaction.set((NoopTransaction) tobj);
+  }
+
+  @Override
+  public void rollback() {
+    NoopTransaction transaction = requireTransaction();
+    currentTransaction.set(null);
+    transaction.rollback();
+  }
+
+  @Override
+  public void setRollbackOnly() {
+    requireTransaction().setRollbackOnly();
+  }
+
+  @Override
+  public void setTransactionTimeout(final int seconds) {
+    // Transactions of this transaction manager never time out.
+  }
+
+  @Override
+  public Transaction suspend() {
+    NoopTransaction transaction = currentTransaction.get();
+    currentTransaction.set(null);
+    return transaction;
+  }
+}
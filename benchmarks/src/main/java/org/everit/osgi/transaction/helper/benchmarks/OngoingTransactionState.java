@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.benchmarks;
+
+import javax.transaction.NotSupportedException;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Associates a transaction with the benchmark thread for the time of each iteration. Benchmarks
+ * that get this state as a parameter measure the propagation functions when there is an ongoing
+ * transaction.
+ */
+@State(Scope.Thread)
+public class OngoingTransactionState {
+
+  private TransactionManager transactionManager;
+
+  /**
+   * Begins the transaction on the benchmark thread.
+   *
+   * @param helperState
+   *          The state that holds the transaction manager.
+   * @throws NotSupportedException
+   *           if there is already a transaction associated with the thread.
+   * @throws SystemException
+   *           if the transaction manager fails to begin the transaction.
+   */
+  @Setup(Level.Iteration)
+  public void beginTransaction(final TransactionHelperState helperState)
+      throws NotSupportedException, SystemException {
+    transactionManager = helperState.transactionManager;
+    transactionManager.begin();
+  }
+
+  /**
+   * Rolls back the transaction that was started by
+   * {@link #beginTransaction(TransactionHelperState)}.
+   *
+   * @throws SystemException
+   *           if the transaction manager fails to roll back the transaction.
+   */
+  @TearDown(Level.Iteration)
+  public void rollbackTransaction() throws SystemException {
+    transactionManager.rollback();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the success path of every propagation function with and without an ongoing transaction.
+ * The <code>direct*</code> benchmarks call the {@link TransactionManager} the same way as the
+ * helper does, so the difference shows the overhead of the helper.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagationBenchmark {
+
+  private static final Object RESULT = new Object();
+
+  private static final Supplier<Object> CALLBACK = () -> RESULT;
+
+  @Benchmark
+  public Object directBeginCommit(final TransactionHelperState state) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    transactionManager.begin();
+    Object result = CALLBACK.get();
+    transactionManager.commit();
+    return result;
+  }
+
+  @Benchmark
+  public Object directCall() {
+    return CALLBACK.get();
+  }
+
+  @Benchmark
+  public Object directSuspendBeginCommitResume(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) throws Exception {
+    TransactionManager transactionManager = state.transactionManager;
+    Transaction suspended = transactionManager.suspend();
+    transactionManager.begin();
+    Object result = CALLBACK.get();
+    transactionManager.commit();
+    transactionManager.resume(suspended);
+    return result;
+  }
+
+  @Benchmark
+  public Object mandatoryOngoingTransaction(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    return state.transactionHelper.mandatory(CALLBACK);
+  }
+
+  @Benchmark
+  public Object neverNoTransaction(final TransactionHelperState state) {
+    return state.transactionHelper.never(CALLBACK);
+  }
+
+  @Benchmark
+  public Object notSupportedNoTransaction(final TransactionHelperState state) {
+    return state.transactionHelper.notSupported(CALLBACK);
+  }
+
+  @Benchmark
+  public Object notSupportedOngoingTransaction(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    return state.transactionHelper.notSupported(CALLBACK);
+  }
+
+  @Benchmark
+  public Object requiredNoTransaction(final TransactionHelperState state) {
+    return state.transactionHelper.required(CALLBACK);
+  }
+
+  @Benchmark
+  public Object requiredOngoingTransaction(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    return state.transactionHelper.required(CALLBACK);
+  }
+
+  @Benchmark
+  public Object requiresNewNoTransaction(final TransactionHelperState state) {
+    return state.transactionHelper.requiresNew(CALLBACK);
+  }
+
+  @Benchmark
+  public Object requiresNewOngoingTransaction(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    return state.transactionHelper.requiresNew(CALLBACK);
+  }
+
+  @Benchmark
+  public Object supportsNoTransaction(final TransactionHelperState state) {
+    return state.transactionHelper.supports(CALLBACK);
+  }
+
+  @Benchmark
+  public Object supportsOngoingTransaction(final TransactionHelperState state,
+      final OngoingTransactionState ongoing) {
+    return state.transactionHelper.supports(CALLBACK);
+  }
+}
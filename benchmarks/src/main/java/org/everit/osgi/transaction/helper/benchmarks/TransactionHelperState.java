@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.benchmarks;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+
+import org.apache.aries.transaction.internal.AriesTransactionManagerImpl;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
+import org.everit.osgi.transaction.helper.internal.TransactionHelperImpl;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The {@link TransactionManager} and the {@link TransactionHelperImpl} that are shared by the
+ * benchmark threads.
+ */
+@State(Scope.Benchmark)
+public class TransactionHelperState {
+
+  /**
+   * Timeout of the transactions in seconds. Ongoing transactions live for a whole measurement
+   * iteration, so the timeout must be much longer than that.
+   */
+  private static final int TRANSACTION_TIMEOUT = 3600;
+
+  public TransactionHelperImpl transactionHelper;
+
+  public TransactionManager transactionManager;
+
+  /**
+   * The type of the transaction manager. <code>noop</code> is a {@link NoopTransactionManager},
+   * <code>aries</code> is the transaction manager of Apache Aries without a transaction log.
+   */
+  @Param({ "noop", "aries" })
+  public String transactionManagerType;
+
+  /**
+   * Creates the transaction manager and the transaction helper.
+   *
+   * @throws XAException
+   *           if the Aries transaction manager cannot be created.
+   */
+  @Setup
+  public void setup() throws XAException {
+    if ("noop".equals(transactionManagerType)) {
+      transactionManager = new NoopTransactionManager();
+    } else if ("aries".equals(transactionManagerType)) {
+      transactionManager = new AriesTransactionManagerImpl(TRANSACTION_TIMEOUT,
+          new XidFactoryImpl(), null);
+    } else {
+      throw new IllegalArgumentException(
+          "Unknown transaction manager type: " + transactionManagerType);
+    }
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+}
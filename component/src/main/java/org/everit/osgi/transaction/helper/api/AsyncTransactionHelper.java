@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs callbacks in transactions on the threads of an {@link Executor}. As JTA binds transactions
+ * to threads, the transaction is begun, committed or rolled back on the thread that runs the
+ * callback and the returned future is completed after the transaction is finished. The caller
+ * thread is not blocked and its transaction is not visible to the callback.
+ */
+public interface AsyncTransactionHelper {
+
+  /**
+   * Calls {@link TransactionHelper#required(Supplier)} on a thread of the executor. If the
+   * executor runs the callback on a thread that has an ongoing transaction, that transaction is
+   * joined.
+   *
+   * @param <R>
+   *          Return type.
+   * @param executor
+   *          The executor that runs the callback.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return A future that is completed with the result of the callback after the commit or
+   *         exceptionally with the exception of the callback or the transaction handling.
+   */
+  <R> CompletableFuture<R> requiredAsync(Executor executor, Supplier<R> callback);
+
+  /**
+   * Calls each unit in its own transaction via {@link TransactionHelper#requiresNew(Supplier)} on
+   * the threads of the executor. The units run in parallel as far as the executor allows, so the
+   * executor should be bounded, e.g. a {@link java.util.concurrent.ForkJoinPool} or a fixed thread
+   * pool. The returned future is completed when every unit is finished and it is not completed
+   * exceptionally because of a failing unit.
+   *
+   * @param <R>
+   *          Return type of the units.
+   * @param executor
+   *          The executor that runs the units.
+   * @param units
+   *          The independent units that are called in separate transactions.
+   * @param failFast
+   *          If <code>true</code>, the units that were not started before a unit failed are
+   *          cancelled.
+   * @return A future that is completed with the outcome of each unit.
+   */
+  <R> CompletableFuture<FanOutResult<R>> requiresNewAll(Executor executor,
+      List<? extends Supplier<? extends R>> units, boolean failFast);
+
+  /**
+   * Calls {@link TransactionHelper#requiresNew(Supplier)} on a thread of the executor.
+   *
+   * @param <R>
+   *          Return type.
+   * @param executor
+   *          The executor that runs the callback.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return A future that is completed with the result of the callback after the commit or
+   *         exceptionally with the exception of the callback or the transaction handling.
+   */
+  <R> CompletableFuture<R> requiresNewAsync(Executor executor, Supplier<R> callback);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * An item of a batch that could not be committed.
+ *
+ * @param <T>
+ *          The type of the item.
+ */
+public class BatchFailure<T> {
+
+  private final Throwable cause;
+
+  private final T item;
+
+  /**
+   * Constructor.
+   *
+   * @param item
+   *          The item that could not be committed.
+   * @param cause
+   *          The exception that was thrown when the item was processed alone in a transaction.
+   */
+  public BatchFailure(final T item, final Throwable cause) {
+    this.item = item;
+    this.cause = cause;
+  }
+
+  public Throwable getCause() {
+    return cause;
+  }
+
+  public T getItem() {
+    return item;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchFailure [item=" + item + ", cause=" + cause + "]";
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a batch execution.
+ *
+ * @param <T>
+ *          The type of the items of the batch.
+ */
+public class BatchResult<T> {
+
+  private final long committedCount;
+
+  private final List<BatchFailure<T>> failures;
+
+  private final long transactionCount;
+
+  /**
+   * Constructor.
+   *
+   * @param committedCount
+   *          The number of items that were committed.
+   * @param transactionCount
+   *          The number of transactions that were started during the batch execution.
+   * @param failures
+   *          The items that could not be committed.
+   */
+  public BatchResult(final long committedCount, final long transactionCount,
+      final List<BatchFailure<T>> failures) {
+    this.committedCount = committedCount;
+    this.transactionCount = transactionCount;
+    this.failures = Collections.unmodifiableList(failures);
+  }
+
+  public long getCommittedCount() {
+    return committedCount;
+  }
+
+  /**
+   * The items that could not be committed in the order they were read from the source of the
+   * batch.
+   *
+   * @return The failed items and their exceptions.
+   */
+  public List<BatchFailure<T>> getFailures() {
+    return failures;
+  }
+
+  public long getTransactionCount() {
+    return transactionCount;
+  }
+
+  public boolean isSuccessful() {
+    return failures.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "BatchResult [committedCount=" + committedCount + ", transactionCount="
+        + transactionCount + ", failures=" + failures + "]";
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Receives a stream of elements and commits them in chunks, with the same contract as
+ * <code>java.util.concurrent.Flow.Subscriber</code>, so it can be connected to any reactive
+ * publisher by a trivial adapter. The subscriber requests only as many elements as fit into the
+ * next chunk, so the publisher is slowed down to the speed of the commits. The methods must be
+ * called serially and the chunks are committed on the thread that calls them.
+ *
+ * @param <T>
+ *          Type of the elements.
+ */
+public interface ChunkSubscriber<T> {
+
+  /**
+   * The result of the stream. It is completed with the committed elements and the elements that
+   * could not be committed when the stream is completed, or exceptionally with the error of the
+   * stream after the received elements are committed.
+   *
+   * @return The future result.
+   */
+  CompletableFuture<BatchResult<T>> getResult();
+
+  /**
+   * Called when there are no more elements. The remaining elements are committed.
+   */
+  void onComplete();
+
+  /**
+   * Called when the stream fails. The received elements are committed.
+   *
+   * @param throwable
+   *          The error of the stream.
+   */
+  void onError(Throwable throwable);
+
+  /**
+   * Called with the next element of the stream. If the chunk is full, it is committed before the
+   * function returns.
+   *
+   * @param item
+   *          The element.
+   */
+  void onNext(T item);
+
+  /**
+   * Called first by the publisher. The subscriber requests the elements of the first chunk.
+   *
+   * @param subscription
+   *          The subscription to request the elements with.
+   */
+  void onSubscribe(ChunkSubscription subscription);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * The link between a publisher and a {@link ChunkSubscriber}, with the same contract as
+ * <code>java.util.concurrent.Flow.Subscription</code>.
+ */
+public interface ChunkSubscription {
+
+  /**
+   * Stops the delivery of the elements. Elements that are already requested may still arrive.
+   */
+  void cancel();
+
+  /**
+   * Adds elements to the demand of the subscriber.
+   *
+   * @param n
+   *          The number of additional elements that may be delivered. Must be positive.
+   */
+  void request(long n);
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import javax.management.MXBean;
+
+/**
+ * Statistics of the resources that take part in the transactions of the helper, collected by a
+ * decorator of the transaction manager. They show how many transactions go through the two-phase
+ * commit protocol and how many of them have only one resource enlisted, where a one-phase or
+ * last-resource optimization would help. The TransactionHelper component registers the
+ * statistics as an OSGi service and as an MXBean if enlistment tracking is enabled.
+ */
+@MXBean
+public interface EnlistmentMetrics {
+
+  /**
+   * The number of successful delistResource calls.
+   *
+   * @return The number of delistments.
+   */
+  long getDelistCount();
+
+  /**
+   * The number of successful enlistResource calls.
+   *
+   * @return The number of enlistments.
+   */
+  long getEnlistCount();
+
+  /**
+   * The share of the one-phase commits among the commits that involved resources.
+   *
+   * @return A number between zero and one, or zero if there were no such commits.
+   */
+  double getOnePhaseCommitRatio();
+
+  /**
+   * The number of committed transactions whose resources were committed in one phase.
+   *
+   * @return The number of one-phase commits.
+   */
+  long getOnePhaseCommitCount();
+
+  /**
+   * The latency statistics of the XA commit calls of the resources.
+   *
+   * @return The commit latencies.
+   */
+  LatencyStatistics getResourceCommitLatency();
+
+  /**
+   * The number of completed transactions by the number of distinct resources that were enlisted
+   * in them. The element at index <i>i</i> is the number of transactions with <i>i</i> resources,
+   * the last element counts the transactions with that many or more resources.
+   *
+   * @return The distribution of the resource counts.
+   */
+  long[] getResourceCountDistribution();
+
+  /**
+   * The latency statistics of the XA prepare calls of the resources.
+   *
+   * @return The prepare latencies.
+   */
+  LatencyStatistics getResourcePrepareLatency();
+
+  /**
+   * The number of committed transactions whose resources were prepared before the commit.
+   *
+   * @return The number of two-phase commits.
+   */
+  long getTwoPhaseCommitCount();
+
+  /**
+   * Sets every counter and statistics to zero.
+   */
+  void reset();
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a fan-out execution.
+ *
+ * @param <R>
+ *          The return type of the units.
+ */
+public class FanOutResult<R> {
+
+  private final long cancelledCount;
+
+  private final long committedCount;
+
+  private final long failedCount;
+
+  private final List<UnitResult<R>> unitResults;
+
+  /**
+   * Constructor.
+   *
+   * @param unitResults
+   *          The outcomes of the units in the order of the units.
+   */
+  public FanOutResult(final List<UnitResult<R>> unitResults) {
+    this.unitResults = Collections.unmodifiableList(unitResults);
+    long cancelled = 0;
+    long committed = 0;
+    for (UnitResult<R> unitResult : unitResults) {
+      if (unitResult.isCancelled()) {
+        cancelled++;
+      } else if (unitResult.isCommitted()) {
+        committed++;
+      }
+    }
+    cancelledCount = cancelled;
+    committedCount = committed;
+    failedCount = unitResults.size() - cancelled - committed;
+  }
+
+  public long getCancelledCount() {
+    return cancelledCount;
+  }
+
+  public long getCommittedCount() {
+    return committedCount;
+  }
+
+  public long getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * The outcomes of the units in the order the units were passed.
+   *
+   * @return The outcome of each unit.
+   */
+  public List<UnitResult<R>> getUnitResults() {
+    return unitResults;
+  }
+
+  public boolean isSuccessful() {
+    return committedCount == unitResults.size();
+  }
+
+  @Override
+  public String toString() {
+    return "FanOutResult [committedCount=" + committedCount + ", failedCount=" + failedCount
+        + ", cancelledCount=" + cancelledCount + "]";
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * A transaction that was begun or suspended by a {@link TransactionHelper} and is not finished or
+ * resumed yet.
+ */
+public class InFlightTransaction {
+
+  private final StackTraceElement[] callSite;
+
+  private final long durationMillis;
+
+  private final String propagation;
+
+  private final long startTimeMillis;
+
+  private final boolean suspended;
+
+  private final int suspendDepth;
+
+  private final long threadId;
+
+  private final String threadName;
+
+  private final StackTraceElement[] threadStack;
+
+  /**
+   * Constructor.
+   *
+   * @param propagation
+   *          The name of the propagation that began or suspended the transaction.
+   * @param suspended
+   *          Whether the transaction was suspended instead of begun.
+   * @param startTimeMillis
+   *          The time when the transaction was begun or suspended.
+   * @param durationMillis
+   *          The time that passed since the start until the snapshot was taken.
+   * @param threadId
+   *          The id of the thread that began or suspended the transaction.
+   * @param threadName
+   *          The name of the thread that began or suspended the transaction.
+   * @param suspendDepth
+   *          The number of transactions that were suspended by the helper on the thread before.
+   * @param callSite
+   *          The stack where the transaction was begun or suspended or <code>null</code> if call
+   *          sites are not captured.
+   * @param threadStack
+   *          The stack of the thread when the snapshot was taken or <code>null</code> if it was not
+   *          queried.
+   */
+  public InFlightTransaction(final String propagation, final boolean suspended,
+      final long startTimeMillis, final long durationMillis, final long threadId,
+      final String threadName, final int suspendDepth, final StackTraceElement[] callSite,
+      final StackTraceElement[] threadStack) {
+    this.propagation = propagation;
+    this.suspended = suspended;
+    this.startTimeMillis = startTimeMillis;
+    this.durationMillis = durationMillis;
+    this.threadId = threadId;
+    this.threadName = threadName;
+    this.suspendDepth = suspendDepth;
+    this.callSite = callSite;
+    this.threadStack = threadStack;
+  }
+
+  public StackTraceElement[] getCallSite() {
+    return callSite;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  public String getPropagation() {
+    return propagation;
+  }
+
+  public long getStartTimeMillis() {
+    return startTimeMillis;
+  }
+
+  public int getSuspendDepth() {
+    return suspendDepth;
+  }
+
+  public long getThreadId() {
+    return threadId;
+  }
+
+  public String getThreadName() {
+    return threadName;
+  }
+
+  public StackTraceElement[] getThreadStack() {
+    return threadStack;
+  }
+
+  public boolean isSuspended() {
+    return suspended;
+  }
+
+  @Override
+  public String toString() {
+    return "InFlightTransaction [propagation=" + propagation + ", suspended=" + suspended
+        + ", durationMillis=" + durationMillis + ", threadName=" + threadName
+        + ", suspendDepth=" + suspendDepth + "]";
+  }
+}
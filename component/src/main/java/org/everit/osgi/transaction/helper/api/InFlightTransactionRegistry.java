@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.List;
+
+/**
+ * The transactions that are begun or suspended by a {@link TransactionHelper} and are not finished
+ * or resumed yet. Reading the registry does not block the threads that begin or finish
+ * transactions. Nothing is registered while the registry is disabled.
+ */
+public interface InFlightTransactionRegistry {
+
+  /**
+   * Takes a snapshot of the registered transactions. The stacks of the threads are not queried.
+   *
+   * @param minDurationMillis
+   *          Only the transactions that are in flight for at least this long are returned.
+   * @return The registered transactions, the longest running first.
+   */
+  List<InFlightTransaction> getInFlightTransactions(long minDurationMillis);
+
+  boolean isCaptureCallSite();
+
+  boolean isEnabled();
+
+  /**
+   * Sets whether the stack is captured when a transaction is registered. Capturing the stack is
+   * expensive, so it should be switched on only while a problem is investigated.
+   *
+   * @param captureCallSite
+   *          Whether the call sites should be captured.
+   */
+  void setCaptureCallSite(boolean captureCallSite);
+
+  void setEnabled(boolean enabled);
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * A snapshot of the latencies that were measured for one phase of one propagation type. The
+ * percentiles are estimated from a histogram whose buckets are at most 25% wide, so they are upper
+ * bounds with that precision.
+ */
+public class LatencyStatistics {
+
+  private final long count;
+
+  private final long maxNanos;
+
+  private final long p50Nanos;
+
+  private final long p90Nanos;
+
+  private final long p99Nanos;
+
+  private final long totalNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param count
+   *          The number of measurements.
+   * @param totalNanos
+   *          The sum of the measured latencies in nanoseconds.
+   * @param maxNanos
+   *          The highest measured latency in nanoseconds.
+   * @param p50Nanos
+   *          The median latency in nanoseconds.
+   * @param p90Nanos
+   *          The 90th percentile of the latencies in nanoseconds.
+   * @param p99Nanos
+   *          The 99th percentile of the latencies in nanoseconds.
+   */
+  public LatencyStatistics(final long count, final long totalNanos, final long maxNanos,
+      final long p50Nanos, final long p90Nanos, final long p99Nanos) {
+    this.count = count;
+    this.totalNanos = totalNanos;
+    this.maxNanos = maxNanos;
+    this.p50Nanos = p50Nanos;
+    this.p90Nanos = p90Nanos;
+    this.p99Nanos = p99Nanos;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /**
+   * The average latency.
+   *
+   * @return The average latency in nanoseconds or zero if there were no measurements.
+   */
+  public long getMeanNanos() {
+    if (count == 0) {
+      return 0;
+    }
+    return totalNanos / count;
+  }
+
+  public long getP50Nanos() {
+    return p50Nanos;
+  }
+
+  public long getP90Nanos() {
+    return p90Nanos;
+  }
+
+  public long getP99Nanos() {
+    return p99Nanos;
+  }
+
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "LatencyStatistics [count=" + count + ", meanNanos=" + getMeanNanos() + ", p50Nanos="
+        + p50Nanos + ", p90Nanos=" + p90Nanos + ", p99Nanos=" + p99Nanos + ", maxNanos="
+        + maxNanos + "]";
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * Records work items in the current transaction that are dispatched after the transaction is
+ * committed. The items are written to a local log before the commit, so they are dispatched even
+ * if the process stops between the commit and the dispatch. The items of a transaction are
+ * dispatched at least once, so the {@link OutboxDispatcher} should be idempotent.
+ */
+public interface Outbox {
+
+  /**
+   * Adds an item to the current transaction. The item is written to the log when the transaction
+   * is committed and it is dropped if the transaction is rolled back.
+   *
+   * @param item
+   *          The serialized work item.
+   * @throws IllegalStateException
+   *           if the status of the current transaction is not
+   *           {@link javax.transaction.Status#STATUS_ACTIVE}.
+   */
+  void add(byte[] item);
+}
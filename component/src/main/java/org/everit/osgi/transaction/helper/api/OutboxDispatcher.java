@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.List;
+
+/**
+ * Dispatches the items of an {@link Outbox} after their transaction was committed. It is called
+ * outside of any transaction.
+ */
+public interface OutboxDispatcher {
+
+  /**
+   * Dispatches the items of one committed transaction. If the function throws an exception, the
+   * items are dispatched again when the outbox is opened the next time.
+   *
+   * @param items
+   *          The items in the order they were added to the transaction.
+   */
+  void dispatch(List<byte[]> items);
+}
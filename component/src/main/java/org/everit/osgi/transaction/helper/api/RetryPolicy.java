@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+
+/**
+ * Describes when and how often a transaction started by the helper should be retried. The
+ * retryable classifier is applied to the thrown exception, its causes and its suppressed
+ * exceptions, as the helper adds the exceptions of rollback and resume failures as suppressed ones.
+ * The delay before each retry is an exponential backoff with full jitter, so threads that failed
+ * together do not retry together.
+ */
+public class RetryPolicy {
+
+  /**
+   * SQL state class of transaction rollbacks, like serialization failures and deadlocks.
+   */
+  private static final String SQL_STATE_CLASS_TRANSACTION_ROLLBACK = "40";
+
+  /**
+   * Classifier that accepts the exceptions that usually indicate a transient failure: a
+   * {@link RollbackException} during commit, a {@link SQLTransientException}, an
+   * {@link SQLException} with a transaction rollback SQL state (e.g. deadlock victims and
+   * serialization failures) and an {@link XAException} with a rollback error code.
+   */
+  public static final Predicate<Throwable> TRANSIENT_FAILURE = RetryPolicy::isTransientFailure;
+
+  private static boolean isTransientFailure(final Throwable throwable) {
+    if ((throwable instanceof RollbackException) || (throwable instanceof SQLTransientException)) {
+      return true;
+    }
+    if (throwable instanceof SQLException) {
+      String sqlState = ((SQLException) throwable).getSQLState();
+      return (sqlState != null) && sqlState.startsWith(SQL_STATE_CLASS_TRANSACTION_ROLLBACK);
+    }
+    if (throwable instanceof XAException) {
+      int errorCode = ((XAException) throwable).errorCode;
+      return (errorCode >= XAException.XA_RBBASE) && (errorCode <= XAException.XA_RBEND);
+    }
+    return false;
+  }
+
+  private final long initialBackoffMillis;
+
+  private final int maxAttempts;
+
+  private final long maxBackoffMillis;
+
+  private final Predicate<Throwable> retryableClassifier;
+
+  /**
+   * Creates a policy that retries on {@link #TRANSIENT_FAILURE}s.
+   *
+   * @param maxAttempts
+   *          The maximum number of attempts including the first one.
+   * @param initialBackoffMillis
+   *          The upper limit of the delay before the first retry in milliseconds.
+   * @param maxBackoffMillis
+   *          The upper limit of the delay before any retry in milliseconds.
+   */
+  public RetryPolicy(final int maxAttempts, final long initialBackoffMillis,
+      final long maxBackoffMillis) {
+    this(maxAttempts, initialBackoffMillis, maxBackoffMillis, TRANSIENT_FAILURE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxAttempts
+   *          The maximum number of attempts including the first one.
+   * @param initialBackoffMillis
+   *          The upper limit of the delay before the first retry in milliseconds. The limit is
+   *          doubled for every further retry.
+   * @param maxBackoffMillis
+   *          The upper limit of the delay before any retry in milliseconds.
+   * @param retryableClassifier
+   *          Decides whether a throwable indicates a failure that may succeed if it is retried.
+   * @throws IllegalArgumentException
+   *           if maxAttempts is less than one, a backoff is negative or the initial backoff is
+   *           greater than the maximum backoff.
+   * @throws NullPointerException
+   *           if retryableClassifier is <code>null</code>.
+   */
+  public RetryPolicy(final int maxAttempts, final long initialBackoffMillis,
+      final long maxBackoffMillis, final Predicate<Throwable> retryableClassifier) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("Max attempts must be at least 1: " + maxAttempts);
+    }
+    if ((initialBackoffMillis < 0) || (maxBackoffMillis < initialBackoffMillis)) {
+      throw new IllegalArgumentException("Invalid backoff range: " + initialBackoffMillis + " - "
+          + maxBackoffMillis);
+    }
+    if (retryableClassifier == null) {
+      throw new NullPointerException("Retryable classifier must not be null");
+    }
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.retryableClassifier = retryableClassifier;
+  }
+
+  /**
+   * Computes the delay before a retry. The delay is a random value between zero and the
+   * exponentially growing upper limit. The limit saturates at the maximum backoff, so it does not
+   * overflow however many attempts failed.
+   *
+   * @param failedAttempts
+   *          The number of attempts that failed so far.
+   * @return The delay in milliseconds.
+   */
+  public long computeBackoffMillis(final int failedAttempts) {
+    long limit = initialBackoffMillis;
+    if (limit == 0) {
+      return 0;
+    }
+    for (int i = 1; (i < failedAttempts) && (limit < maxBackoffMillis); i++) {
+      limit = (limit > (maxBackoffMillis >> 1)) ? maxBackoffMillis : (limit << 1);
+    }
+    if (limit == Long.MAX_VALUE) {
+      return ThreadLocalRandom.current().nextLong(limit);
+    }
+    return ThreadLocalRandom.current().nextLong(limit + 1);
+  }
+
+  public long getInitialBackoffMillis() {
+    return initialBackoffMillis;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getMaxBackoffMillis() {
+    return maxBackoffMillis;
+  }
+
+  /**
+   * Checks whether the throwable, one of its causes or one of its suppressed exceptions is
+   * accepted by the retryable classifier.
+   *
+   * @param throwable
+   *          The throwable that was thrown by the attempt.
+   * @return <code>true</code> if the attempt may be retried.
+   */
+  public boolean isRetryable(final Throwable throwable) {
+    Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    Deque<Throwable> remaining = new ArrayDeque<Throwable>();
+    remaining.add(throwable);
+    while (!remaining.isEmpty()) {
+      Throwable current = remaining.poll();
+      if (!visited.add(current)) {
+        continue;
+      }
+      if (retryableClassifier.test(current)) {
+        return true;
+      }
+      if (current.getCause() != null) {
+        remaining.add(current.getCause());
+      }
+      Collections.addAll(remaining, current.getSuppressed());
+    }
+    return false;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides whether a throwable of a callback rolls back the transaction. The rules are matched by
+ * class name against the class of the throwable and its superclasses, and the closest match wins.
+ * A throwable that matches no rule rolls the transaction back. When a throwable does not roll
+ * back, the transaction is completed as if the callback returned normally and the throwable is
+ * rethrown. The rules are applied to the throwable of the callback, so a checked exception that
+ * the helper wraps into a {@link TransactionalException} is matched by its own class. The decision
+ * is resolved once per throwable class and cached.
+ */
+public class RollbackRules {
+
+  private static String[] classNames(final Class<?>[] classes) {
+    String[] result = new String[classes.length];
+    for (int i = 0; i < classes.length; i++) {
+      if (!Throwable.class.isAssignableFrom(classes[i])) {
+        throw new IllegalArgumentException("Not a throwable class: " + classes[i].getName());
+      }
+      result[i] = classes[i].getName();
+    }
+    return result;
+  }
+
+  private final ClassValue<Boolean> decisions = new ClassValue<Boolean>() {
+    @Override
+    protected Boolean computeValue(final Class<?> type) {
+      return decide(type);
+    }
+  };
+
+  private final Set<String> noRollbackFor;
+
+  private final Set<String> rollbackFor;
+
+  /**
+   * Creates rules from throwable classes.
+   *
+   * @param rollbackFor
+   *          The throwable classes that roll back the transaction.
+   * @param noRollbackFor
+   *          The throwable classes that do not roll back the transaction.
+   * @throws IllegalArgumentException
+   *           if a class is not a throwable or it is in both arrays.
+   */
+  public RollbackRules(final Class<?>[] rollbackFor, final Class<?>[] noRollbackFor) {
+    this(classNames(rollbackFor), classNames(noRollbackFor));
+  }
+
+  /**
+   * Creates rules from class names, so the classes do not have to be visible to the caller.
+   *
+   * @param rollbackForClassNames
+   *          The names of the throwable classes that roll back the transaction.
+   * @param noRollbackForClassNames
+   *          The names of the throwable classes that do not roll back the transaction.
+   * @throws IllegalArgumentException
+   *           if a class name is in both arrays.
+   */
+  public RollbackRules(final String[] rollbackForClassNames,
+      final String[] noRollbackForClassNames) {
+    rollbackFor = new HashSet<>(Arrays.asList(rollbackForClassNames));
+    noRollbackFor = new HashSet<>(Arrays.asList(noRollbackForClassNames));
+    for (String className : noRollbackFor) {
+      if (rollbackFor.contains(className)) {
+        throw new IllegalArgumentException("Both rollback and no rollback rule for " + className);
+      }
+    }
+  }
+
+  private boolean decide(final Class<?> type) {
+    for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+      String className = current.getName();
+      if (rollbackFor.contains(className)) {
+        return true;
+      }
+      if (noRollbackFor.contains(className)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether the throwable rolls back the transaction.
+   *
+   * @param throwable
+   *          The throwable of the callback.
+   * @return <code>true</code> if the transaction must be rolled back.
+   */
+  public boolean isRollbackFor(final Throwable throwable) {
+    return decisions.get(throwable.getClass());
+  }
+
+  @Override
+  public String toString() {
+    return "RollbackRules [rollbackFor=" + rollbackFor + ", noRollbackFor=" + noRollbackFor + "]";
+  }
+}
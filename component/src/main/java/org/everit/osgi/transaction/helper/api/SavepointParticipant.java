@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * A resource that can roll back its work in a transaction partially, e.g. a JDBC connection with
+ * savepoints. The participants that are registered via
+ * {@link TransactionHelper#registerSavepointParticipant(SavepointParticipant)} are asked to set a
+ * savepoint at the start of every {@link TransactionHelper#nested(java.util.function.Supplier)
+ * nested} scope of the transaction, so the work of a failed scope can be undone without rolling
+ * back the whole transaction. The functions are called on the thread of the transaction and
+ * should throw unchecked exceptions.
+ *
+ * @param <S>
+ *          Type of the savepoints of the participant.
+ */
+public interface SavepointParticipant<S> {
+
+  /**
+   * Releases a savepoint after its scope finished successfully.
+   *
+   * @param savepoint
+   *          A savepoint that was returned by {@link #setSavepoint()}.
+   */
+  void releaseSavepoint(S savepoint);
+
+  /**
+   * Undoes the work that was done after the savepoint was set.
+   *
+   * @param savepoint
+   *          A savepoint that was returned by {@link #setSavepoint()}.
+   */
+  void rollbackToSavepoint(S savepoint);
+
+  /**
+   * Sets a savepoint in the current state of the participant.
+   *
+   * @return The savepoint.
+   */
+  S setSavepoint();
+}
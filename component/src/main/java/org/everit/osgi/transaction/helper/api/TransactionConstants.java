@@ -28,21 +28,48 @@ public final class TransactionConstants {
 
   public static final Map<Integer, String> STATUS_NAME_BY_CODE;
 
+  /**
+   * The names of the statuses indexed by the status codes. The codes of
+   * {@link javax.transaction.Status} are small, continuous numbers, so an array can be used
+   * instead of a map without boxing the codes.
+   */
+  private static final String[] STATUS_NAMES;
+
   static {
+    String[] statusNames = new String[Status.STATUS_ROLLING_BACK + 1];
+    statusNames[Status.STATUS_ACTIVE] = "active";
+    statusNames[Status.STATUS_COMMITTED] = "commited";
+    statusNames[Status.STATUS_COMMITTING] = "commiting";
+    statusNames[Status.STATUS_MARKED_ROLLBACK] = "marked_rollback";
+    statusNames[Status.STATUS_NO_TRANSACTION] = "no_transaction";
+    statusNames[Status.STATUS_PREPARED] = "prepared";
+    statusNames[Status.STATUS_PREPARING] = "preparing";
+    statusNames[Status.STATUS_ROLLEDBACK] = "rolledback";
+    statusNames[Status.STATUS_ROLLING_BACK] = "rollingback";
+    statusNames[Status.STATUS_UNKNOWN] = "unknown";
+    STATUS_NAMES = statusNames;
+
     Map<Integer, String> statusNameByCode = new HashMap<Integer, String>();
-    statusNameByCode.put(Status.STATUS_ACTIVE, "active");
-    statusNameByCode.put(Status.STATUS_COMMITTED, "commited");
-    statusNameByCode.put(Status.STATUS_COMMITTING, "commiting");
-    statusNameByCode.put(Status.STATUS_MARKED_ROLLBACK, "marked_rollback");
-    statusNameByCode.put(Status.STATUS_NO_TRANSACTION, "no_transaction");
-    statusNameByCode.put(Status.STATUS_PREPARED, "prepared");
-    statusNameByCode.put(Status.STATUS_PREPARING, "preparing");
-    statusNameByCode.put(Status.STATUS_ROLLEDBACK, "rolledback");
-    statusNameByCode.put(Status.STATUS_ROLLING_BACK, "rollingback");
-    statusNameByCode.put(Status.STATUS_UNKNOWN, "unknown");
+    for (int i = 0; i < statusNames.length; i++) {
+      statusNameByCode.put(i, statusNames[i]);
+    }
     STATUS_NAME_BY_CODE = Collections.unmodifiableMap(statusNameByCode);
   }
 
+  /**
+   * Returns the name of a transaction status without boxing the status code.
+   *
+   * @param statusCode
+   *          One of the constants of {@link javax.transaction.Status}.
+   * @return The name of the status or <code>null</code> if the status code is unknown.
+   */
+  public static String getStatusName(final int statusCode) {
+    if ((statusCode < 0) || (statusCode >= STATUS_NAMES.length)) {
+      return null;
+    }
+    return STATUS_NAMES[statusCode];
+  }
+
   private TransactionConstants() {
   }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.function.Supplier;
+
+/**
+ * A transaction that is not associated with any thread, so it can be continued on another thread.
+ * The handle is attached to the thread that uses it only for the time of the call and it can be
+ * used by one thread at a time. A handle may not be used on a thread that already has a
+ * transaction or a propagation call of the helper on its stack.
+ */
+public interface TransactionHandle {
+
+  /**
+   * Attaches the transaction to the current thread, calls the callback in it and detaches the
+   * transaction again. The callback is called like with {@link TransactionHelper#mandatory}, so an
+   * exception of the callback marks the transaction for rollback.
+   *
+   * @param <R>
+   *          Return type.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   * @throws IllegalStateException
+   *           if the handle is used by another thread or is completed, or the current thread
+   *           already has a transaction.
+   */
+  <R> R call(Supplier<R> callback);
+
+  /**
+   * Attaches the transaction to the current thread and commits it. The handle cannot be used
+   * afterwards even if the commit fails.
+   *
+   * @throws IllegalStateException
+   *           if the handle is used by another thread or is completed, or the current thread
+   *           already has a transaction.
+   */
+  void commit();
+
+  /**
+   * Whether the transaction was committed or rolled back via the handle.
+   *
+   * @return <code>true</code> if the handle cannot be used anymore.
+   */
+  boolean isCompleted();
+
+  /**
+   * Attaches the transaction to the current thread and rolls it back. The handle cannot be used
+   * afterwards.
+   *
+   * @throws IllegalStateException
+   *           if the handle is used by another thread or is completed, or the current thread
+   *           already has a transaction.
+   */
+  void rollback();
+
+  /**
+   * Same as {@link #call(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  void run(Runnable callback);
+}
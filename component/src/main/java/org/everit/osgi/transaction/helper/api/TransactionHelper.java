@@ -15,15 +15,112 @@
  */
 package org.everit.osgi.transaction.helper.api;
 
+import java.util.Iterator;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 
+import javax.transaction.Status;
+
 /**
  * TransactionHelper OSGi service can be used to manipulate transactions on the current thread. The
  * methods of this service can be used with normal Callback objects, anonymous classes or lambda
  * expressions.
+ *
+ * <p>
+ * Every propagation accepts a {@link Supplier}. Callbacks that do not return a value and primitive
+ * suppliers are accepted by the <code>*AsVoid</code>, <code>*AsBoolean</code>, <code>*AsInt</code>
+ * and <code>*AsLong</code> functions. These variants have their own names, because overloading
+ * them would make <code>null</code> and lambda expressions that only throw an exception ambiguous.
+ * They are default methods that delegate to the {@link Supplier} versions, so implementations only
+ * have to override them to avoid boxing and allocation.
+ *
+ * <p>
+ * Only the basic propagations are abstract. The functions that were added later are default
+ * methods, so implementations of earlier versions still compile. The ones that can be built on the
+ * basic propagations delegate to them, the others throw an {@link UnsupportedOperationException}.
+ * Variants with extra parameters have their own names, like
+ * {@link #requiredWithTimeout(int, Supplier)}, as overloads would make <code>null</code> arguments
+ * ambiguous.
+ *
+ * <p>
+ * Implementations may remember the transaction that they began or joined on the current thread,
+ * so nested calls do not have to look it up again. If that is enabled, the callbacks must not
+ * begin, suspend or resume transactions directly on the
+ * {@link javax.transaction.TransactionManager}, as the nested calls would join or report the
+ * transaction that the helper remembers.
  */
 public interface TransactionHelper {
 
+  /**
+   * Registers a hook that is called after the transaction of the current thread is committed. The
+   * hook is not called if the transaction is rolled back.
+   *
+   * @param hook
+   *          The hook to call after the commit.
+   * @throws IllegalStateException
+   *           if the status of the current transaction is not
+   *           {@link javax.transaction.Status#STATUS_ACTIVE}.
+   * @see #afterCompletion(IntConsumer)
+   */
+  default void afterCommit(final Runnable hook) {
+    afterCompletion((status) -> {
+      if (status == Status.STATUS_COMMITTED) {
+        hook.run();
+      }
+    });
+  }
+
+  /**
+   * Registers a hook that is called with the status of the transaction of the current thread after
+   * it is completed. The helper registers a single {@link javax.transaction.Synchronization} per
+   * transaction that calls every hook of the transaction in the order of the registration. If the
+   * helper has an executor for hooks, the hooks of a transaction are passed to it as one task, so
+   * the completing thread does not wait for them.
+   *
+   * @param hook
+   *          The hook that receives the {@link javax.transaction.Status} of the completed
+   *          transaction.
+   * @throws IllegalStateException
+   *           if the status of the current transaction is not
+   *           {@link javax.transaction.Status#STATUS_ACTIVE}.
+   */
+  default void afterCompletion(final IntConsumer hook) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support afterCompletion");
+  }
+
+  /**
+   * Begins a new transaction that is not associated with the current thread, so it can be
+   * continued on any thread via the returned handle. The transaction of the current thread is
+   * suspended while the new one is begun. The transaction is begun like the one of
+   * {@link #requiresNew(Supplier)} and its completion is recorded the same way.
+   *
+   * @return The handle of the new transaction that must be committed or rolled back.
+   */
+  default TransactionHandle beginDetached() {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support beginDetached");
+  }
+
+  /**
+   * Detaches the transaction from the current thread, so it can be continued on any thread via the
+   * returned handle. The transaction must not have been begun or joined by a propagation call of
+   * the helper that is still running.
+   *
+   * @return The handle of the transaction.
+   * @throws IllegalStateException
+   *           if there is no transaction associated with the current thread or there is a
+   *           propagation call of the helper on the stack of the thread.
+   */
+  default TransactionHandle detach() {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support detach");
+  }
+
   /**
    * Support a current transaction, throw an exception if none exists. In case there is an exception
    * in the callback, the transaction status is set to MARKED_ROLLBACK.
@@ -38,6 +135,89 @@ public interface TransactionHelper {
    */
   <R> R mandatory(Supplier<R> callback);
 
+  /**
+   * Same as {@link #mandatory(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean mandatoryAsBoolean(final BooleanSupplier callback) {
+    return mandatory(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #mandatory(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int mandatoryAsInt(final IntSupplier callback) {
+    return mandatory(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #mandatory(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long mandatoryAsLong(final LongSupplier callback) {
+    return mandatory(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #mandatory(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void mandatoryAsVoid(final Runnable callback) {
+    mandatory(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Same as {@link #required(Supplier)}, but if an ongoing transaction is joined, the call opens a
+   * nested scope in it. The {@link SavepointParticipant}s of the transaction set a savepoint at the
+   * start of the scope. If the callback fails, the participants are rolled back to their savepoints
+   * and the transaction stays active, so the caller may catch the exception and go on. Resources
+   * that are not participants keep the work done in the scope. If the participants cannot be
+   * rolled back or a failure of a nested call is caught inside the scope, the transaction is
+   * marked for rollback as usual. The default implementation calls {@link #required(Supplier)}, so
+   * a failure of the callback marks the joined transaction for rollback.
+   *
+   * @param <R>
+   *          Return type.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   * @throws IllegalStateException
+   *           if the transaction status at the time of calling this function is neither
+   *           {@link javax.transaction.Status#STATUS_ACTIVE} nor
+   *           {@link javax.transaction.Status#STATUS_NO_TRANSACTION}.
+   */
+  default <R> R nested(final Supplier<R> callback) {
+    return required(callback);
+  }
+
+  /**
+   * Same as {@link #nested(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void nestedAsVoid(final Runnable callback) {
+    nested(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
   /**
    * Execute non-transactionally, throw an exception if a transaction exists.
    *
@@ -52,6 +232,52 @@ public interface TransactionHelper {
    */
   <R> R never(Supplier<R> callback);
 
+  /**
+   * Same as {@link #never(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean neverAsBoolean(final BooleanSupplier callback) {
+    return never(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #never(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int neverAsInt(final IntSupplier callback) {
+    return never(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #never(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long neverAsLong(final LongSupplier callback) {
+    return never(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #never(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void neverAsVoid(final Runnable callback) {
+    never(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
   /**
    * Execute non-transactionally, suspend the current transaction if one exists.
    *
@@ -67,6 +293,102 @@ public interface TransactionHelper {
    */
   <R> R notSupported(Supplier<R> callback);
 
+  /**
+   * Same as {@link #notSupported(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean notSupportedAsBoolean(final BooleanSupplier callback) {
+    return notSupported(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #notSupported(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int notSupportedAsInt(final IntSupplier callback) {
+    return notSupported(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #notSupported(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long notSupportedAsLong(final LongSupplier callback) {
+    return notSupported(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #notSupported(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void notSupportedAsVoid(final Runnable callback) {
+    notSupported(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} for callbacks that only read. If the call begins the
+   * transaction, the transaction is rolled back instead of committing it, as that is cheaper for
+   * most resources. If an ongoing transaction is joined, it is committed by its owner as usual.
+   * Calls that may write and join the transaction from the callback are reported with an
+   * {@link IllegalStateException} if the read-only checks of the helper are enabled.
+   *
+   * @param <R>
+   *          Return type.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   * @throws IllegalStateException
+   *           if the transaction status at the time of calling this function is neither
+   *           {@link javax.transaction.Status#STATUS_ACTIVE} nor
+   *           {@link javax.transaction.Status#STATUS_NO_TRANSACTION}.
+   */
+  default <R> R readOnly(final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support readOnly");
+  }
+
+  /**
+   * Same as {@link #readOnly(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void readOnlyAsVoid(final Runnable callback) {
+    readOnly(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Registers a resource of the transaction of the current thread that can be rolled back to the
+   * start of the {@link #nested(Supplier) nested} scopes. The participant sets its savepoints of
+   * the open scopes right away.
+   *
+   * @param participant
+   *          The participant.
+   * @throws IllegalStateException
+   *           if there is no active transaction.
+   */
+  default void registerSavepointParticipant(final SavepointParticipant<?> participant) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support registerSavepointParticipant");
+  }
+
   /**
    * Support a current transaction, create a new one if none exists. In case there is an exception
    * in the callback and the function call created the transaction, the transaction will be
@@ -85,6 +407,111 @@ public interface TransactionHelper {
    */
   <R> R required(Supplier<R> callback);
 
+  /**
+   * Same as {@link #required(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean requiredAsBoolean(final BooleanSupplier callback) {
+    return required(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int requiredAsInt(final IntSupplier callback) {
+    return required(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long requiredAsLong(final LongSupplier callback) {
+    return required(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #required(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void requiredAsVoid(final Runnable callback) {
+    required(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Same as {@link #required(Supplier)}, but if the helper began the transaction and the callback
+   * or the commit fails with a retryable exception, the callback is called again in a new
+   * transaction after a backoff delay. If an ongoing transaction is joined, the callback is called
+   * only once as the outer transaction cannot be restarted from here.
+   *
+   * @param <R>
+   *          Return type.
+   * @param retryPolicy
+   *          Decides which failures are retried, how many times and with what delay.
+   * @param callback
+   *          The callback instance will be called inside. It may be called more than once.
+   * @return The result of the successful callback execution.
+   */
+  default <R> R requiredWithRetry(final RetryPolicy retryPolicy, final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiredWithRetry");
+  }
+
+  /**
+   * Same as {@link #required(Supplier)}, but the rules decide whether an exception of the callback
+   * rolls back the transaction or marks the joined transaction for rollback. If it does not, the
+   * call is completed as if the callback returned normally and the exception is rethrown.
+   *
+   * @param <R>
+   *          Return type.
+   * @param rollbackRules
+   *          The rules that are used instead of the default rules of the helper.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default <R> R requiredWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiredWithRollbackRules");
+  }
+
+  /**
+   * Same as {@link #required(Supplier)}, but a new transaction is begun with the given timeout
+   * instead of the default timeout of the transaction manager. The timeout is not used if an
+   * ongoing transaction is joined. Transactions that are begun by nested calls of the helper do not
+   * get more time than what remains from this timeout.
+   *
+   * @param <R>
+   *          Return type.
+   * @param timeoutSeconds
+   *          The timeout of the transaction in seconds.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   * @throws IllegalArgumentException
+   *           if the timeout is less than one second.
+   */
+  default <R> R requiredWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiredWithTimeout");
+  }
+
   /**
    * Create a new transaction, suspend the current transaction if one exists. In case there is an
    * exception, the newly created transaction will be rolled back.
@@ -97,6 +524,202 @@ public interface TransactionHelper {
    */
   <R> R requiresNew(Supplier<R> callback);
 
+  /**
+   * Same as {@link #requiresNew(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean requiresNewAsBoolean(final BooleanSupplier callback) {
+    return requiresNew(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int requiresNewAsInt(final IntSupplier callback) {
+    return requiresNew(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long requiresNewAsLong(final LongSupplier callback) {
+    return requiresNew(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void requiresNewAsVoid(final Runnable callback) {
+    requiresNew(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Processes the items in chunks, each chunk in a new transaction as if
+   * {@link #requiresNewAsVoid(Runnable)} was called. A transaction is committed after every
+   * batchSize items. In case a chunk cannot be committed, it is split into two halves that are
+   * processed in separate transactions until the failing items are isolated in their own
+   * transactions. Items that were committed are never processed again, but the items of a rolled
+   * back chunk are processed again, so the action should not have side effects outside of the
+   * transaction. Errors are not isolated but thrown.
+   *
+   * @param <T>
+   *          Type of the items.
+   * @param items
+   *          The items to process.
+   * @param batchSize
+   *          The maximum number of items that are committed in one transaction.
+   * @param action
+   *          Called with each item inside the transaction.
+   * @return The number of committed items and the items that could not be committed.
+   * @throws IllegalArgumentException
+   *           if batchSize is less than one.
+   */
+  default <T> BatchResult<T> requiresNewBatch(final Iterable<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    return requiresNewBatch(items.iterator(), batchSize, action);
+  }
+
+  /**
+   * Same as {@link #requiresNewBatch(Iterable, int, Consumer)} with items from an iterator. Only
+   * batchSize items are kept in memory at a time.
+   *
+   * @param <T>
+   *          Type of the items.
+   * @param items
+   *          The items to process.
+   * @param batchSize
+   *          The maximum number of items that are committed in one transaction.
+   * @param action
+   *          Called with each item inside the transaction.
+   * @return The number of committed items and the items that could not be committed.
+   * @throws IllegalArgumentException
+   *           if batchSize is less than one.
+   */
+  default <T> BatchResult<T> requiresNewBatch(final Iterator<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiresNewBatch");
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)} for small independent units of work, like inserting an
+   * audit record. If group commit is enabled in the helper, the units that arrive from different
+   * threads within a short window are executed in one shared transaction on the thread of one of
+   * the callers, and each caller gets its own result after the commit. If the shared transaction
+   * fails, the units are executed again one by one, so only the failing unit fails. The callback
+   * must therefore not depend on the thread it is called on and must be safe to call again after a
+   * rollback. Without group commit the call is the same as {@link #requiresNew(Supplier)}.
+   *
+   * @param <R>
+   *          Return type.
+   * @param callback
+   *          The unit of work.
+   * @return The result of the callback execution.
+   */
+  default <R> R requiresNewMergeable(final Supplier<R> callback) {
+    return requiresNew(callback);
+  }
+
+  /**
+   * Creates a subscriber that commits the elements of a stream in chunks, each chunk in a new
+   * transaction as if {@link #requiresNewAsVoid(Runnable)} was called. The size of the chunks
+   * adapts to the duration of the commits: it grows while the commits are faster than the target
+   * and shrinks when they are slower or fail. Failing chunks are bisected in the same way as in
+   * {@link #requiresNewBatch(Iterable, int, Consumer)}.
+   *
+   * @param <T>
+   *          Type of the elements.
+   * @param targetCommitMillis
+   *          The duration of a chunk in milliseconds that the chunk size is adapted to.
+   * @param maxChunkSize
+   *          The maximum number of elements that are committed in one transaction.
+   * @param action
+   *          Called with each element inside the transaction.
+   * @return The subscriber that should be subscribed to the stream once.
+   * @throws IllegalArgumentException
+   *           if the target duration or the maximum chunk size is less than one.
+   */
+  default <T> ChunkSubscriber<T> requiresNewSubscriber(final long targetCommitMillis,
+      final int maxChunkSize, final Consumer<? super T> action) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiresNewSubscriber");
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)}, but if the callback or the commit fails with a
+   * retryable exception, the callback is called again in a new transaction after a backoff delay.
+   * The suspended transaction is resumed between the attempts.
+   *
+   * @param <R>
+   *          Return type.
+   * @param retryPolicy
+   *          Decides which failures are retried, how many times and with what delay.
+   * @param callback
+   *          The callback instance will be called inside. It may be called more than once.
+   * @return The result of the successful callback execution.
+   */
+  default <R> R requiresNewWithRetry(final RetryPolicy retryPolicy,
+      final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiresNewWithRetry");
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)}, but the rules decide whether an exception of the
+   * callback rolls back the new transaction. If it does not, the transaction is committed and the
+   * exception is rethrown.
+   *
+   * @param <R>
+   *          Return type.
+   * @param rollbackRules
+   *          The rules that are used instead of the default rules of the helper.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default <R> R requiresNewWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiresNewWithRollbackRules");
+  }
+
+  /**
+   * Same as {@link #requiresNew(Supplier)}, but the new transaction is begun with the given
+   * timeout instead of the default timeout of the transaction manager. Transactions that are begun
+   * by nested calls of the helper do not get more time than what remains from this timeout.
+   *
+   * @param <R>
+   *          Return type.
+   * @param timeoutSeconds
+   *          The timeout of the transaction in seconds.
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   * @throws IllegalArgumentException
+   *           if the timeout is less than one second.
+   */
+  default <R> R requiresNewWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    throw new UnsupportedOperationException(
+        getClass().getName() + " does not support requiresNewWithTimeout");
+  }
+
   /**
    * Support a current transaction, execute non-transactionally if none exists. If there was an
    * ACTIVE transaction at the time calling the function and the callback throws an exception, the
@@ -114,4 +737,83 @@ public interface TransactionHelper {
    */
   <R> R supports(Supplier<R> callback);
 
+  /**
+   * Same as {@link #supports(Supplier)} with a callback that returns a primitive boolean.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default boolean supportsAsBoolean(final BooleanSupplier callback) {
+    return supports(callback::getAsBoolean);
+  }
+
+  /**
+   * Same as {@link #supports(Supplier)} with a callback that returns a primitive int.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default int supportsAsInt(final IntSupplier callback) {
+    return supports(callback::getAsInt);
+  }
+
+  /**
+   * Same as {@link #supports(Supplier)} with a callback that returns a primitive long.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   * @return The result of the callback execution.
+   */
+  default long supportsAsLong(final LongSupplier callback) {
+    return supports(callback::getAsLong);
+  }
+
+  /**
+   * Same as {@link #supports(Supplier)} with a callback that does not return a value.
+   *
+   * @param callback
+   *          The callback instance will be called inside.
+   */
+  default void supportsAsVoid(final Runnable callback) {
+    supports(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Calls the callback with the given priority class. The transactions that are begun by the
+   * helper during the callback wait for admission with this priority if the number of concurrent
+   * transactions is limited. The priority is {@link TransactionPriority#NORMAL} by default. The
+   * default implementation calls the callback without changing the priority.
+   *
+   * @param <R>
+   *          Return type.
+   * @param priority
+   *          The priority class of the transactions begun in the callback.
+   * @param callback
+   *          The callback that is called directly.
+   * @return The result of the callback execution.
+   */
+  default <R> R withPriority(final TransactionPriority priority, final Supplier<R> callback) {
+    return callback.get();
+  }
+
+  /**
+   * Same as {@link #withPriority(TransactionPriority, Supplier)} with a callback that does not
+   * return a value.
+   *
+   * @param priority
+   *          The priority class of the transactions begun in the callback.
+   * @param callback
+   *          The callback that is called directly.
+   */
+  default void withPriorityAsVoid(final TransactionPriority priority, final Runnable callback) {
+    withPriority(priority, () -> {
+      callback.run();
+      return null;
+    });
+  }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * Receives the events of the transactions that are handled by a {@link TransactionHelper}, for
+ * example to trace them. Listeners are registered as OSGi services and are picked up by the helper
+ * component. The events are delivered synchronously on the thread of the propagation call, so the
+ * listeners must be fast. An exception thrown by a listener is logged and does not affect the
+ * transaction. The propagation is given by the name of the propagation type, like
+ * <code>REQUIRES_NEW</code>, and the durations are in nanoseconds.
+ */
+public interface TransactionHelperListener {
+
+  /**
+   * Called after the propagation call marked the transaction for rollback because its callback
+   * failed.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   */
+  void rollbackOnlyMarked(String propagation);
+
+  /**
+   * Called after the propagation call began a new transaction.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   * @param nanos
+   *          The duration of the begin.
+   */
+  void transactionBegun(String propagation, long nanos);
+
+  /**
+   * Called after the propagation call committed the transaction that it began.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   * @param nanos
+   *          The duration of the commit.
+   */
+  void transactionCommitted(String propagation, long nanos);
+
+  /**
+   * Called after the propagation call joined the ongoing transaction.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   */
+  void transactionJoined(String propagation);
+
+  /**
+   * Called after the propagation call resumed the transaction that it suspended.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   * @param nanos
+   *          The duration of the resume.
+   */
+  void transactionResumed(String propagation, long nanos);
+
+  /**
+   * Called after the propagation call rolled back the transaction that it began or the commit of
+   * the transaction failed.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   * @param nanos
+   *          The duration of the rollback or the failed commit.
+   */
+  void transactionRolledBack(String propagation, long nanos);
+
+  /**
+   * Called after the propagation call suspended the ongoing transaction.
+   *
+   * @param propagation
+   *          The propagation type of the call.
+   * @param nanos
+   *          The duration of the suspend.
+   */
+  void transactionSuspended(String propagation, long nanos);
+}
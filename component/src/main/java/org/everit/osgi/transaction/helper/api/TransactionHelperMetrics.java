@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Counters and latency statistics of a {@link TransactionHelper}. The TransactionHelper component
+ * registers the metrics as an OSGi service and as an MXBean on the platform MBean server. Nothing
+ * is measured while the metrics are disabled.
+ */
+@MXBean
+public interface TransactionHelperMetrics {
+
+  /**
+   * The number of transactions that were committed successfully by the helper.
+   *
+   * @return The number of commits.
+   */
+  long getCommitCount();
+
+  /**
+   * The latency statistics of each propagation type and phase that was measured at least once.
+   * The keys are built from the name of the propagation and the name of the
+   * {@link TransactionPhase} separated by a dot, e.g. <code>REQUIRED.COMMIT</code>.
+   *
+   * @return The latency statistics by propagation and phase.
+   */
+  Map<String, LatencyStatistics> getLatencies();
+
+  /**
+   * The number of calls that failed because the transaction status did not allow the
+   * propagation.
+   *
+   * @return The number of calls with a not allowed status.
+   */
+  long getNotAllowedStatusCount();
+
+  /**
+   * The number of transactions that were rolled back by the helper.
+   *
+   * @return The number of rollbacks.
+   */
+  long getRollbackCount();
+
+  /**
+   * The number of joined transactions that were marked for rollback by the helper.
+   *
+   * @return The number of rollback-only markings.
+   */
+  long getRollbackOnlyCount();
+
+  boolean isEnabled();
+
+  /**
+   * Sets every counter and statistics to zero.
+   */
+  void reset();
+
+  void setEnabled(boolean enabled);
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * The phases of a propagation call whose latency is measured by {@link TransactionHelperMetrics}.
+ */
+public enum TransactionPhase {
+
+  /**
+   * Beginning a new transaction on the transaction manager.
+   */
+  BEGIN,
+
+  /**
+   * Running the callback.
+   */
+  CALLBACK,
+
+  /**
+   * Committing the transaction that was begun by the call.
+   */
+  COMMIT,
+
+  /**
+   * Resuming the transaction that was suspended by the call.
+   */
+  RESUME,
+
+  /**
+   * Rolling back the transaction that was begun by the call.
+   */
+  ROLLBACK,
+
+  /**
+   * Suspending the ongoing transaction.
+   */
+  SUSPEND
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * The priority classes of the admission control of the transaction helper. If the number of
+ * concurrent transactions is limited, waiting transactions of a higher priority class are admitted
+ * before the ones of a lower class, e.g. interactive requests before batch jobs.
+ */
+public enum TransactionPriority {
+
+  /**
+   * Transactions that someone is waiting for, like interactive requests.
+   */
+  HIGH,
+
+  /**
+   * The default priority.
+   */
+  NORMAL,
+
+  /**
+   * Transactions that may wait, like batch jobs.
+   */
+  LOW
+}
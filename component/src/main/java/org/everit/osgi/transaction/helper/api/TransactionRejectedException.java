@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * Thrown if the admission control of the helper does not let a new transaction begin, because
+ * too many transactions are running and the wait queue is full or the wait timed out.
+ */
+public class TransactionRejectedException extends TransactionalException {
+
+  /**
+   * Generated serial version UID.
+   */
+  private static final long serialVersionUID = -2453027466392105374L;
+
+  /**
+   * Constructs a new exception with the specified message.
+   *
+   * @param message
+   *          The message of the exception.
+   */
+  public TransactionRejectedException(final String message) {
+    super(message);
+  }
+
+  /**
+   * Constructs a new exception with the specified detail message and cause.
+   *
+   * @param msg
+   *          the detail message.
+   * @param cause
+   *          the cause.
+   */
+  public TransactionRejectedException(final String msg, final Throwable cause) {
+    super(msg, cause);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+import java.util.function.Function;
+
+/**
+ * Cache whose content lives as long as the transaction of the current thread. Every transaction
+ * gets its own bounded cache on the first use that is discarded when the transaction completes,
+ * so values are shared by the code that runs in the same transaction, e.g. via
+ * {@link TransactionHelper#supports(java.util.function.Supplier)} or
+ * {@link TransactionHelper#mandatory(java.util.function.Supplier)}, but they never leak into other
+ * transactions.
+ */
+public interface TransactionScopedCache {
+
+  /**
+   * Returns the cached value of the key in the current transaction or loads and caches it. If
+   * there is no active transaction, the loader is called without caching its result. Null values
+   * are not cached.
+   *
+   * @param <K>
+   *          Type of the key.
+   * @param <V>
+   *          Type of the value.
+   * @param key
+   *          The key of the value. Keys of different types of values should not be equal.
+   * @param loader
+   *          Loads the value if it is not cached.
+   * @return The cached or loaded value.
+   */
+  <K, V> V computeIfAbsent(K key, Function<? super K, ? extends V> loader);
+
+  /**
+   * Removes the value of the key from the cache of the current transaction. This should be called
+   * when the value is modified in the transaction.
+   *
+   * @param key
+   *          The key of the value.
+   */
+  void invalidate(Object key);
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.api;
+
+/**
+ * The outcome of one unit of a fan-out execution. A unit is either committed, failed or cancelled
+ * before it was started.
+ *
+ * @param <R>
+ *          The return type of the unit.
+ */
+public class UnitResult<R> {
+
+  private final boolean cancelled;
+
+  private final Throwable failure;
+
+  private final R result;
+
+  /**
+   * Constructor.
+   *
+   * @param result
+   *          The result of the unit if it was committed.
+   * @param failure
+   *          The exception of the unit or its transaction if the unit failed.
+   * @param cancelled
+   *          Whether the unit was not started because another unit failed before.
+   */
+  public UnitResult(final R result, final Throwable failure, final boolean cancelled) {
+    this.result = result;
+    this.failure = failure;
+    this.cancelled = cancelled;
+  }
+
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public R getResult() {
+    return result;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  public boolean isCommitted() {
+    return !cancelled && (failure == null);
+  }
+
+  @Override
+  public String toString() {
+    return "UnitResult [result=" + result + ", failure=" + failure + ", cancelled=" + cancelled
+        + "]";
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.ChunkSubscriber;
+import org.everit.osgi.transaction.helper.api.ChunkSubscription;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+
+/**
+ * Commits the elements of a stream in chunks whose size follows the duration of the commits. A
+ * chunk that is committed within the target duration makes the next chunk a quarter larger, a
+ * slower or failing chunk halves the size of the next one. Chunks that cannot be committed are
+ * bisected by a {@link ChunkBisection} until the failing elements are isolated.
+ *
+ * @param <T>
+ *          The type of the elements.
+ */
+class AdaptiveChunkSubscriber<T> implements ChunkSubscriber<T> {
+
+  private static final int INITIAL_CHUNK_SIZE = 16;
+
+  private final ChunkBisection<T> bisection;
+
+  private final List<T> chunk = new ArrayList<T>();
+
+  private int chunkSize;
+
+  private boolean done;
+
+  private final int maxChunkSize;
+
+  /**
+   * The number of elements that were requested but not received yet.
+   */
+  private long requested;
+
+  private final CompletableFuture<BatchResult<T>> result = new CompletableFuture<>();
+
+  private ChunkSubscription subscription;
+
+  private final long targetCommitNanos;
+
+  AdaptiveChunkSubscriber(final TransactionHelper transactionHelper,
+      final long targetCommitMillis, final int maxChunkSize, final Consumer<? super T> action) {
+    if (targetCommitMillis < 1) {
+      throw new IllegalArgumentException(
+          "Target commit duration must be at least 1 ms: " + targetCommitMillis);
+    }
+    if (maxChunkSize < 1) {
+      throw new IllegalArgumentException("Max chunk size must be at least 1: " + maxChunkSize);
+    }
+    this.targetCommitNanos = TimeUnit.MILLISECONDS.toNanos(targetCommitMillis);
+    this.maxChunkSize = maxChunkSize;
+    this.chunkSize = Math.min(INITIAL_CHUNK_SIZE, maxChunkSize);
+    this.bisection = new ChunkBisection<T>(transactionHelper, action, this::adaptChunkSize);
+  }
+
+  /**
+   * Adapts the chunk size to the duration of a commit. Only full chunks may grow the size, as
+   * the fast commit of a smaller chunk says nothing about the current size.
+   */
+  private void adaptChunkSize(final int committedSize, final long elapsedNanos) {
+    if (elapsedNanos > targetCommitNanos) {
+      chunkSize = Math.max(1, chunkSize / 2);
+    } else if (committedSize >= chunkSize) {
+      chunkSize = Math.min(maxChunkSize, chunkSize + (chunkSize >> 2) + 1);
+    }
+  }
+
+  private void commitChunk() {
+    boolean committed = bisection.execute(chunk);
+    chunk.clear();
+    if (!committed) {
+      chunkSize = Math.max(1, chunkSize / 2);
+    }
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  @Override
+  public CompletableFuture<BatchResult<T>> getResult() {
+    return result;
+  }
+
+  @Override
+  public void onComplete() {
+    if (done) {
+      return;
+    }
+    done = true;
+    commitChunk();
+    result.complete(bisection.toResult());
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    if (done) {
+      return;
+    }
+    done = true;
+    commitChunk();
+    result.completeExceptionally(throwable);
+  }
+
+  @Override
+  public void onNext(final T item) {
+    if (done) {
+      return;
+    }
+    requested--;
+    chunk.add(item);
+    if (chunk.size() >= chunkSize) {
+      commitChunk();
+    }
+    requestMissing();
+  }
+
+  @Override
+  public void onSubscribe(final ChunkSubscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    requestMissing();
+  }
+
+  /**
+   * Requests the elements that are missing from the next chunk. Nothing more is requested, so
+   * at most one chunk is buffered.
+   */
+  private void requestMissing() {
+    long missing = chunkSize - chunk.size() - requested;
+    if (missing > 0) {
+      requested += missing;
+      subscription.request(missing);
+    }
+  }
+}
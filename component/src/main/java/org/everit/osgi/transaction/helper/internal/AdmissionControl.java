@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.everit.osgi.transaction.helper.api.TransactionRejectedException;
+
+/**
+ * Limits the number of transactions that are begun by the helper and run concurrently. If the
+ * limit is reached, new transactions wait in a bounded queue for a limited time. A waiting
+ * transaction is only admitted if no transaction of a higher priority class is waiting. When the
+ * queue is full or the wait times out, the transaction is rejected right away, so an overloaded
+ * resource does not make every thread of the application wait.
+ */
+public class AdmissionControl {
+
+  private static final TransactionPriority[] PRIORITIES = TransactionPriority.values();
+
+  private int activeCount;
+
+  private final Condition[] admittable = new Condition[PRIORITIES.length];
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final int maxConcurrent;
+
+  private final int maxQueueLength;
+
+  private long rejectedCount;
+
+  private final long timeoutNanos;
+
+  private final int[] waitingCounts = new int[PRIORITIES.length];
+
+  private int waitingCount;
+
+  /**
+   * Constructor.
+   *
+   * @param maxConcurrent
+   *          The maximum number of transactions that run at the same time.
+   * @param maxQueueLength
+   *          The maximum number of transactions that wait to be admitted. Zero means that the
+   *          transactions over the limit are rejected without waiting.
+   * @param timeoutMillis
+   *          The maximum time a transaction waits to be admitted.
+   * @throws IllegalArgumentException
+   *           if maxConcurrent is less than one or the other values are negative.
+   */
+  public AdmissionControl(final int maxConcurrent, final int maxQueueLength,
+      final long timeoutMillis) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException(
+          "Max concurrent transactions must be at least 1: " + maxConcurrent);
+    }
+    if (maxQueueLength < 0) {
+      throw new IllegalArgumentException("Max queue length must not be negative: "
+          + maxQueueLength);
+    }
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeout must not be negative: " + timeoutMillis);
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueueLength = maxQueueLength;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    for (int i = 0; i < admittable.length; i++) {
+      admittable[i] = lock.newCondition();
+    }
+  }
+
+  /**
+   * Admits a new transaction or throws an exception.
+   *
+   * @param priority
+   *          The priority class of the transaction.
+   * @throws TransactionRejectedException
+   *           if the transaction is not admitted.
+   */
+  void acquire(final TransactionPriority priority) {
+    int priorityIndex = priority.ordinal();
+    lock.lock();
+    try {
+      if (canAdmit(priorityIndex)) {
+        activeCount++;
+        return;
+      }
+      if ((waitingCount >= maxQueueLength) || (timeoutNanos == 0)) {
+        throw reject("the wait queue is full");
+      }
+      waitingCount++;
+      waitingCounts[priorityIndex]++;
+      try {
+        long remainingNanos = timeoutNanos;
+        while (!canAdmitWaiting(priorityIndex)) {
+          if (remainingNanos <= 0) {
+            throw reject("the wait timed out");
+          }
+          remainingNanos = admittable[priorityIndex].awaitNanos(remainingNanos);
+        }
+        activeCount++;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rejectedCount++;
+        throw new TransactionRejectedException("Interrupted while waiting for admission", e);
+      } finally {
+        waitingCount--;
+        waitingCounts[priorityIndex]--;
+        // Another transaction may be admittable if this one timed out or there is capacity left
+        signalNext();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Whether a transaction that did not wait can be admitted. It must not overtake the waiting
+   * transactions of the same or a higher priority.
+   */
+  private boolean canAdmit(final int priorityIndex) {
+    if (activeCount >= maxConcurrent) {
+      return false;
+    }
+    for (int i = 0; i <= priorityIndex; i++) {
+      if (waitingCounts[i] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether a waiting transaction can be admitted. It must not overtake the waiting transactions
+   * of a higher priority.
+   */
+  private boolean canAdmitWaiting(final int priorityIndex) {
+    if (activeCount >= maxConcurrent) {
+      return false;
+    }
+    for (int i = 0; i < priorityIndex; i++) {
+      if (waitingCounts[i] > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The number of transactions that are admitted and not finished yet.
+   *
+   * @return The number of active transactions.
+   */
+  public int getActiveCount() {
+    lock.lock();
+    try {
+      return activeCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The number of transactions that were rejected.
+   *
+   * @return The number of rejections.
+   */
+  public long getRejectedCount() {
+    lock.lock();
+    try {
+      return rejectedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The number of transactions that are waiting to be admitted.
+   *
+   * @return The length of the wait queue.
+   */
+  public int getWaitingCount() {
+    lock.lock();
+    try {
+      return waitingCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private TransactionRejectedException reject(final String reason) {
+    rejectedCount++;
+    return new TransactionRejectedException("Transaction rejected as " + activeCount
+        + " transactions are running and " + reason);
+  }
+
+  /**
+   * Called when an admitted transaction finished.
+   */
+  void release() {
+    lock.lock();
+    try {
+      activeCount--;
+      signalNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up a waiting transaction of the highest priority class if there is free capacity.
+   */
+  private void signalNext() {
+    if (activeCount >= maxConcurrent) {
+      return;
+    }
+    for (int i = 0; i < waitingCounts.length; i++) {
+      if (waitingCounts[i] > 0) {
+        admittable[i].signal();
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.transaction.helper.api.AsyncTransactionHelper;
+import org.everit.osgi.transaction.helper.api.FanOutResult;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+
+/**
+ * Implementation of {@link AsyncTransactionHelper}.
+ */
+@Component(name = "org.everit.osgi.transaction.helper.AsyncTransactionHelper", metatype = true)
+@Properties({ @Property(name = "transactionHelper.target") })
+@Service(value = AsyncTransactionHelper.class)
+@Reference(name = "transactionHelper", referenceInterface = TransactionHelper.class,
+    policy = ReferencePolicy.STATIC,
+    bind = "setTransactionHelper")
+public class AsyncTransactionHelperComponent implements AsyncTransactionHelper {
+
+  AsyncTransactionHelperImpl wrapped = new AsyncTransactionHelperImpl();
+
+  @Override
+  public <R> CompletableFuture<R> requiredAsync(final Executor executor,
+      final Supplier<R> callback) {
+    return wrapped.requiredAsync(executor, callback);
+  }
+
+  @Override
+  public <R> CompletableFuture<FanOutResult<R>> requiresNewAll(final Executor executor,
+      final List<? extends Supplier<? extends R>> units, final boolean failFast) {
+    return wrapped.requiresNewAll(executor, units, failFast);
+  }
+
+  @Override
+  public <R> CompletableFuture<R> requiresNewAsync(final Executor executor,
+      final Supplier<R> callback) {
+    return wrapped.requiresNewAsync(executor, callback);
+  }
+
+  protected void setTransactionHelper(final TransactionHelper transactionHelper) {
+    wrapped.setTransactionHelper(transactionHelper);
+  }
+
+  protected void unbindTransactionHelper(final TransactionHelper transactionHelper) {
+    wrapped.setTransactionHelper(null);
+  }
+
+}
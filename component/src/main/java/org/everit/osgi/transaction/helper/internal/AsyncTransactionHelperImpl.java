@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.everit.osgi.transaction.helper.api.AsyncTransactionHelper;
+import org.everit.osgi.transaction.helper.api.FanOutResult;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+
+/**
+ * Default implementation class of {@link AsyncTransactionHelper}. The whole propagation call of
+ * the {@link TransactionHelper} runs as one task of the executor, so the transaction never leaves
+ * the thread of the task.
+ */
+public class AsyncTransactionHelperImpl implements AsyncTransactionHelper {
+
+  private TransactionHelper transactionHelper;
+
+  @Override
+  public <R> CompletableFuture<R> requiredAsync(final Executor executor,
+      final Supplier<R> callback) {
+    return CompletableFuture.supplyAsync(() -> transactionHelper.required(callback), executor);
+  }
+
+  @Override
+  public <R> CompletableFuture<FanOutResult<R>> requiresNewAll(final Executor executor,
+      final List<? extends Supplier<? extends R>> units, final boolean failFast) {
+    return new FanOutExecution<R>(transactionHelper, units, failFast).execute(executor);
+  }
+
+  @Override
+  public <R> CompletableFuture<R> requiresNewAsync(final Executor executor,
+      final Supplier<R> callback) {
+    return CompletableFuture.supplyAsync(() -> transactionHelper.requiresNew(callback), executor);
+  }
+
+  public void setTransactionHelper(final TransactionHelper transactionHelper) {
+    this.transactionHelper = transactionHelper;
+  }
+}
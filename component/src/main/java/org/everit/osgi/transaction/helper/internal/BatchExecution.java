@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+
+/**
+ * Processes the items of a batch in chunks, each chunk in a new transaction. Chunks that cannot be
+ * committed are bisected by a {@link ChunkBisection} until the failing items are isolated.
+ *
+ * @param <T>
+ *          The type of the items.
+ */
+class BatchExecution<T> {
+
+  private final int batchSize;
+
+  private final ChunkBisection<T> bisection;
+
+  BatchExecution(final TransactionHelper transactionHelper, final int batchSize,
+      final Consumer<? super T> action) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+    }
+    this.batchSize = batchSize;
+    this.bisection = new ChunkBisection<T>(transactionHelper, action,
+        (committedSize, elapsedNanos) -> {
+        });
+  }
+
+  BatchResult<T> execute(final Iterator<? extends T> items) {
+    List<T> chunk = new ArrayList<T>(batchSize);
+    while (items.hasNext()) {
+      chunk.add(items.next());
+      if (chunk.size() == batchSize) {
+        bisection.execute(chunk);
+        chunk.clear();
+      }
+    }
+    bisection.execute(chunk);
+    return bisection.toResult();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.everit.osgi.transaction.helper.api.BatchFailure;
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+
+/**
+ * Processes chunks of items, each chunk in a new transaction. Chunks that cannot be committed are
+ * bisected until the failing items are isolated. The results of all chunks are collected.
+ *
+ * @param <T>
+ *          The type of the items.
+ */
+final class ChunkBisection<T> {
+
+  /**
+   * Notified after every range of items that is committed.
+   */
+  interface CommitListener {
+
+    void rangeCommitted(int committedSize, long elapsedNanos);
+  }
+
+  private final Consumer<? super T> action;
+
+  private final CommitListener commitListener;
+
+  private long committedCount;
+
+  private final List<BatchFailure<T>> failures = new ArrayList<BatchFailure<T>>();
+
+  private final TransactionHelper transactionHelper;
+
+  private long transactionCount;
+
+  ChunkBisection(final TransactionHelper transactionHelper, final Consumer<? super T> action,
+      final CommitListener commitListener) {
+    this.transactionHelper = transactionHelper;
+    this.action = action;
+    this.commitListener = commitListener;
+  }
+
+  /**
+   * Processes the items of a chunk.
+   *
+   * @return <code>true</code> if the chunk was committed in one transaction.
+   */
+  boolean execute(final List<T> chunk) {
+    if (chunk.isEmpty()) {
+      return true;
+    }
+    return executeRange(chunk, 0, chunk.size());
+  }
+
+  /**
+   * Processes the items between the indexes in one transaction. If the transaction fails, the range
+   * is split into two halves that are processed separately. A range of one item that fails is
+   * reported as a failure.
+   *
+   * @return <code>true</code> if the range was committed in one transaction.
+   */
+  private boolean executeRange(final List<T> chunk, final int fromIndex, final int toIndex) {
+    transactionCount++;
+    long startTime = System.nanoTime();
+    try {
+      transactionHelper.requiresNewAsVoid(() -> {
+        for (int i = fromIndex; i < toIndex; i++) {
+          action.accept(chunk.get(i));
+        }
+      });
+    } catch (RuntimeException e) {
+      if ((toIndex - fromIndex) == 1) {
+        failures.add(new BatchFailure<T>(chunk.get(fromIndex), e));
+      } else {
+        int middleIndex = (fromIndex + toIndex) >>> 1;
+        executeRange(chunk, fromIndex, middleIndex);
+        executeRange(chunk, middleIndex, toIndex);
+      }
+      return false;
+    }
+    committedCount += toIndex - fromIndex;
+    commitListener.rangeCommitted(toIndex - fromIndex, System.nanoTime() - startTime);
+    return true;
+  }
+
+  BatchResult<T> toResult() {
+    return new BatchResult<T>(committedCount, transactionCount, failures);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+/**
+ * The hooks of one transaction. This is the only {@link Synchronization} that the helper registers
+ * on a transaction, however many hooks are added. After the completion the hooks are called in the
+ * order they were added, on the completing thread or as one task of the executor. If the executor
+ * rejects the task, the hooks are called on the completing thread. The failures of the hooks that
+ * are called by the executor are logged, as there is nobody to throw them to.
+ */
+final class CompletionHooks implements Synchronization {
+
+  private static final Logger LOGGER = Logger.getLogger(CompletionHooks.class.getName());
+
+  private final Executor executor;
+
+  private final List<IntConsumer> hooks = new ArrayList<>();
+
+  private final Map<Transaction, CompletionHooks> hooksByTransaction;
+
+  private final Transaction transaction;
+
+  CompletionHooks(final Transaction transaction,
+      final Map<Transaction, CompletionHooks> hooksByTransaction, final Executor executor) {
+    this.transaction = transaction;
+    this.hooksByTransaction = hooksByTransaction;
+    this.executor = executor;
+  }
+
+  synchronized void add(final IntConsumer hook) {
+    hooks.add(hook);
+  }
+
+  @Override
+  public void afterCompletion(final int status) {
+    hooksByTransaction.remove(transaction);
+    List<IntConsumer> hooksToCall;
+    synchronized (this) {
+      hooksToCall = new ArrayList<>(hooks);
+    }
+    if (executor == null) {
+      callHooks(hooksToCall, status);
+      return;
+    }
+    try {
+      executor.execute(() -> callHooksAndLogFailure(hooksToCall, status));
+    } catch (RejectedExecutionException e) {
+      callHooks(hooksToCall, status);
+    }
+  }
+
+  @Override
+  public void beforeCompletion() {
+    // Nothing to do before the completion
+  }
+
+  /**
+   * Calls every hook even if some of them fail. The exception of the first failing hook is thrown
+   * at the end with the exceptions of the other failing hooks suppressed.
+   */
+  private void callHooks(final List<IntConsumer> hooksToCall, final int status) {
+    RuntimeException failure = null;
+    for (IntConsumer hook : hooksToCall) {
+      try {
+        hook.accept(status);
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void callHooksAndLogFailure(final List<IntConsumer> hooksToCall, final int status) {
+    try {
+      callHooks(hooksToCall, status);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.SEVERE, "Completion hook failed after the transaction completed with status "
+          + status, e);
+    }
+  }
+}
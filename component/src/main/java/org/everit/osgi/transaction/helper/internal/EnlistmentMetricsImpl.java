@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.everit.osgi.transaction.helper.api.EnlistmentMetrics;
+import org.everit.osgi.transaction.helper.api.LatencyStatistics;
+
+/**
+ * Default implementation of {@link EnlistmentMetrics}. The values are recorded by an
+ * {@link EnlistmentTrackingTransactionManager}.
+ */
+public class EnlistmentMetricsImpl implements EnlistmentMetrics {
+
+  /**
+   * The transactions with this many resources or more are counted in the last element of the
+   * distribution.
+   */
+  static final int MAX_DISTINCT_RESOURCE_COUNT = 8;
+
+  private final LongAdder delistCount = new LongAdder();
+
+  private final LongAdder enlistCount = new LongAdder();
+
+  private final LongAdder onePhaseCommitCount = new LongAdder();
+
+  private final LatencyHistogram resourceCommitLatency = new LatencyHistogram();
+
+  private final AtomicLongArray resourceCountDistribution =
+      new AtomicLongArray(MAX_DISTINCT_RESOURCE_COUNT + 1);
+
+  private final LatencyHistogram resourcePrepareLatency = new LatencyHistogram();
+
+  private final LongAdder twoPhaseCommitCount = new LongAdder();
+
+  void delisted() {
+    delistCount.increment();
+  }
+
+  void enlisted() {
+    enlistCount.increment();
+  }
+
+  @Override
+  public long getDelistCount() {
+    return delistCount.sum();
+  }
+
+  @Override
+  public long getEnlistCount() {
+    return enlistCount.sum();
+  }
+
+  @Override
+  public long getOnePhaseCommitCount() {
+    return onePhaseCommitCount.sum();
+  }
+
+  @Override
+  public double getOnePhaseCommitRatio() {
+    long onePhase = onePhaseCommitCount.sum();
+    long all = onePhase + twoPhaseCommitCount.sum();
+    if (all == 0) {
+      return 0;
+    }
+    return (double) onePhase / all;
+  }
+
+  @Override
+  public LatencyStatistics getResourceCommitLatency() {
+    return resourceCommitLatency.snapshot();
+  }
+
+  @Override
+  public long[] getResourceCountDistribution() {
+    long[] result = new long[resourceCountDistribution.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = resourceCountDistribution.get(i);
+    }
+    return result;
+  }
+
+  @Override
+  public LatencyStatistics getResourcePrepareLatency() {
+    return resourcePrepareLatency.snapshot();
+  }
+
+  @Override
+  public long getTwoPhaseCommitCount() {
+    return twoPhaseCommitCount.sum();
+  }
+
+  @Override
+  public void reset() {
+    delistCount.reset();
+    enlistCount.reset();
+    onePhaseCommitCount.reset();
+    twoPhaseCommitCount.reset();
+    resourceCommitLatency.reset();
+    resourcePrepareLatency.reset();
+    for (int i = 0; i < resourceCountDistribution.length(); i++) {
+      resourceCountDistribution.set(i, 0);
+    }
+  }
+
+  void resourceCommitted(final long nanos) {
+    resourceCommitLatency.record(nanos);
+  }
+
+  void resourcePrepared(final long nanos) {
+    resourcePrepareLatency.record(nanos);
+  }
+
+  /**
+   * Records a completed transaction.
+   *
+   * @param resourceCount
+   *          The number of distinct resources that were enlisted in the transaction.
+   * @param committed
+   *          Whether the transaction was committed.
+   * @param prepared
+   *          Whether a resource of the transaction was prepared.
+   */
+  void transactionCompleted(final int resourceCount, final boolean committed,
+      final boolean prepared) {
+    resourceCountDistribution.incrementAndGet(Math.min(resourceCount, MAX_DISTINCT_RESOURCE_COUNT));
+    if (committed && (resourceCount > 0)) {
+      if (prepared) {
+        twoPhaseCommitCount.increment();
+      } else {
+        onePhaseCommitCount.increment();
+      }
+    }
+  }
+}
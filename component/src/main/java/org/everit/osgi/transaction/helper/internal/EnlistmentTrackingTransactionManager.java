@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.everit.osgi.transaction.helper.api.EnlistmentMetrics;
+
+/**
+ * {@link TransactionManager} decorator that records which resources take part in the
+ * transactions. The transactions returned by the decorator wrap the enlisted {@link XAResource}s,
+ * so the prepare and commit calls of the transaction manager on them are timed and it is known
+ * whether a transaction was committed in one or two phases. The results are collected in
+ * {@link EnlistmentMetrics}. Only the resources that are enlisted via the decorator are seen. If a
+ * resource implements other interfaces besides {@link XAResource}, like the named resources that
+ * some transaction managers need for the recovery log, the wrapper is a proxy that implements the
+ * same interfaces.
+ */
+public class EnlistmentTrackingTransactionManager implements TransactionManager {
+
+  /**
+   * The resources of one transaction. The statistics of the transaction are recorded when it
+   * completes.
+   */
+  private final class Enlistments implements Synchronization {
+
+    private volatile boolean prepared;
+
+    private final Map<XAResource, XAResource> resources = new IdentityHashMap<>();
+
+    private final Transaction transaction;
+
+    Enlistments(final Transaction transaction) {
+      this.transaction = transaction;
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      enlistmentsByTransaction.remove(transaction);
+      int resourceCount;
+      synchronized (resources) {
+        resourceCount = resources.size();
+      }
+      metrics.transactionCompleted(resourceCount, status == Status.STATUS_COMMITTED, prepared);
+    }
+
+    @Override
+    public void beforeCompletion() {
+      // Nothing to do before the completion
+    }
+
+    XAResource unwrap(final XAResource xaRes) {
+      synchronized (resources) {
+        XAResource wrapper = resources.get(xaRes);
+        return (wrapper != null) ? wrapper : xaRes;
+      }
+    }
+
+    XAResource wrap(final XAResource xaRes) {
+      synchronized (resources) {
+        return resources.computeIfAbsent(xaRes, (resource) -> createWrapper(resource, this));
+      }
+    }
+  }
+
+  /**
+   * Handler of the proxies that wrap resources with other interfaces than {@link XAResource}. The
+   * calls of {@link XAResource} go to the timed wrapper, the other calls go to the resource.
+   */
+  private static final class ResourceInvocationHandler implements InvocationHandler {
+
+    private final TimedXAResource timedResource;
+
+    ResourceInvocationHandler(final TimedXAResource timedResource) {
+      this.timedResource = timedResource;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+        throws Throwable {
+      Object target;
+      if (method.getDeclaringClass() == XAResource.class) {
+        target = timedResource;
+      } else if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            target = timedResource.delegate;
+        }
+      } else {
+        target = timedResource.delegate;
+      }
+      try {
+        return method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Measures the prepare and commit calls of an enlisted resource.
+   */
+  private final class TimedXAResource implements XAResource {
+
+    private final XAResource delegate;
+
+    private final Enlistments enlistments;
+
+    TimedXAResource(final XAResource delegate, final Enlistments enlistments) {
+      this.delegate = delegate;
+      this.enlistments = enlistments;
+    }
+
+    @Override
+    public void commit(final Xid xid, final boolean onePhase) throws XAException {
+      long startTime = System.nanoTime();
+      delegate.commit(xid, onePhase);
+      metrics.resourceCommitted(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public void end(final Xid xid, final int flags) throws XAException {
+      delegate.end(xid, flags);
+    }
+
+    @Override
+    public void forget(final Xid xid) throws XAException {
+      delegate.forget(xid);
+    }
+
+    @Override
+    public int getTransactionTimeout() throws XAException {
+      return delegate.getTransactionTimeout();
+    }
+
+    @Override
+    public boolean isSameRM(final XAResource xares) throws XAException {
+      return delegate.isSameRM(unwrapResource(xares));
+    }
+
+    @Override
+    public int prepare(final Xid xid) throws XAException {
+      enlistments.prepared = true;
+      long startTime = System.nanoTime();
+      int result = delegate.prepare(xid);
+      metrics.resourcePrepared(System.nanoTime() - startTime);
+      return result;
+    }
+
+    @Override
+    public Xid[] recover(final int flag) throws XAException {
+      return delegate.recover(flag);
+    }
+
+    @Override
+    public void rollback(final Xid xid) throws XAException {
+      delegate.rollback(xid);
+    }
+
+    @Override
+    public boolean setTransactionTimeout(final int seconds) throws XAException {
+      return delegate.setTransactionTimeout(seconds);
+    }
+
+    @Override
+    public void start(final Xid xid, final int flags) throws XAException {
+      delegate.start(xid, flags);
+    }
+  }
+
+  /**
+   * Transaction that wraps the resources that are enlisted in it. Wrappers of the same
+   * transaction are equal.
+   */
+  private final class TrackedTransaction implements Transaction {
+
+    private final Transaction delegate;
+
+    TrackedTransaction(final Transaction delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void commit() throws RollbackException, HeuristicMixedException,
+        HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+      boolean tracked = enlistmentsByTransaction.containsKey(delegate);
+      boolean committed = false;
+      try {
+        delegate.commit();
+        committed = true;
+      } finally {
+        if (!tracked) {
+          metrics.transactionCompleted(0, committed, false);
+        }
+      }
+    }
+
+    @Override
+    public boolean delistResource(final XAResource xaRes, final int flag)
+        throws IllegalStateException, SystemException {
+      Enlistments enlistments = enlistmentsByTransaction.get(delegate);
+      XAResource resource = (enlistments != null) ? enlistments.unwrap(xaRes) : xaRes;
+      boolean delisted = delegate.delistResource(resource, flag);
+      if (delisted) {
+        metrics.delisted();
+      }
+      return delisted;
+    }
+
+    @Override
+    public boolean enlistResource(final XAResource xaRes) throws RollbackException,
+        IllegalStateException, SystemException {
+      Enlistments enlistments = enlistmentsByTransaction.get(delegate);
+      if (enlistments == null) {
+        // Only the thread that stores the enlistments registers them, so the transaction is
+        // counted once even if resources are enlisted from several threads
+        Enlistments newEnlistments = new Enlistments(delegate);
+        enlistments = enlistmentsByTransaction.putIfAbsent(delegate, newEnlistments);
+        if (enlistments == null) {
+          enlistments = newEnlistments;
+          boolean registered = false;
+          try {
+            delegate.registerSynchronization(newEnlistments);
+            registered = true;
+          } finally {
+            if (!registered) {
+              enlistmentsByTransaction.remove(delegate, newEnlistments);
+            }
+          }
+        }
+      }
+      boolean enlisted = delegate.enlistResource(enlistments.wrap(xaRes));
+      if (enlisted) {
+        metrics.enlisted();
+      }
+      return enlisted;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      return (obj instanceof TrackedTransaction)
+          && delegate.equals(((TrackedTransaction) obj).delegate);
+    }
+
+    @Override
+    public int getStatus() throws SystemException {
+      return delegate.getStatus();
+    }
+
+    @Override
+    public int hashCode() {
+      return delegate.hashCode();
+    }
+
+    @Override
+    public void registerSynchronization(final Synchronization sync) throws RollbackException,
+        IllegalStateException, SystemException {
+      delegate.registerSynchronization(sync);
+    }
+
+    @Override
+    public void rollback() throws IllegalStateException, SystemException {
+      boolean tracked = enlistmentsByTransaction.containsKey(delegate);
+      try {
+        delegate.rollback();
+      } finally {
+        if (!tracked) {
+          metrics.transactionCompleted(0, false, false);
+        }
+      }
+    }
+
+    @Override
+    public void setRollbackOnly() throws IllegalStateException, SystemException {
+      delegate.setRollbackOnly();
+    }
+
+    @Override
+    public String toString() {
+      return delegate.toString();
+    }
+  }
+
+  /**
+   * Returns the resource that is wrapped by a wrapper of the decorator or the resource itself if it
+   * is not a wrapper.
+   */
+  private static XAResource unwrapResource(final XAResource xaRes) {
+    if (xaRes instanceof TimedXAResource) {
+      return ((TimedXAResource) xaRes).delegate;
+    }
+    if ((xaRes != null) && Proxy.isProxyClass(xaRes.getClass())) {
+      InvocationHandler handler = Proxy.getInvocationHandler(xaRes);
+      if (handler instanceof ResourceInvocationHandler) {
+        return ((ResourceInvocationHandler) handler).timedResource.delegate;
+      }
+    }
+    return xaRes;
+  }
+
+  private final Map<Transaction, Enlistments> enlistmentsByTransaction =
+      new ConcurrentHashMap<>();
+
+  private final EnlistmentMetricsImpl metrics;
+
+  private final TransactionManager transactionManager;
+
+  public EnlistmentTrackingTransactionManager(final TransactionManager transactionManager) {
+    this(transactionManager, new EnlistmentMetricsImpl());
+  }
+
+  /**
+   * Creates a decorator that records into existing metrics, so the statistics are kept when the
+   * decorated transaction manager is replaced.
+   *
+   * @param transactionManager
+   *          The decorated transaction manager.
+   * @param metrics
+   *          The metrics of the enlistments.
+   */
+  public EnlistmentTrackingTransactionManager(final TransactionManager transactionManager,
+      final EnlistmentMetricsImpl metrics) {
+    this.transactionManager = transactionManager;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void begin() throws NotSupportedException, SystemException {
+    transactionManager.begin();
+  }
+
+  @Override
+  public void commit() throws RollbackException, HeuristicMixedException,
+      HeuristicRollbackException, SecurityException, IllegalStateException, SystemException {
+    boolean tracked = isTracked();
+    boolean committed = false;
+    try {
+      transactionManager.commit();
+      committed = true;
+    } finally {
+      if (!tracked) {
+        metrics.transactionCompleted(0, committed, false);
+      }
+    }
+  }
+
+  /**
+   * Wraps a resource, so its prepare and commit calls are timed. If the resource implements other
+   * interfaces, the wrapper is a proxy that implements them as well. If a proxy cannot be created,
+   * because the interfaces are not visible from the class loader of the resource, only the
+   * {@link XAResource} interface is kept.
+   */
+  private XAResource createWrapper(final XAResource xaRes, final Enlistments enlistments) {
+    TimedXAResource timedResource = new TimedXAResource(xaRes, enlistments);
+    Set<Class<?>> interfaces = new LinkedHashSet<>();
+    for (Class<?> type = xaRes.getClass(); type != null; type = type.getSuperclass()) {
+      Collections.addAll(interfaces, type.getInterfaces());
+    }
+    if ((interfaces.size() == 1) && interfaces.contains(XAResource.class)) {
+      return timedResource;
+    }
+    interfaces.add(XAResource.class);
+    try {
+      return (XAResource) Proxy.newProxyInstance(xaRes.getClass().getClassLoader(),
+          interfaces.toArray(new Class<?>[interfaces.size()]),
+          new ResourceInvocationHandler(timedResource));
+    } catch (IllegalArgumentException e) {
+      return timedResource;
+    }
+  }
+
+  public EnlistmentMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public int getStatus() throws SystemException {
+    return transactionManager.getStatus();
+  }
+
+  @Override
+  public Transaction getTransaction() throws SystemException {
+    return wrap(transactionManager.getTransaction());
+  }
+
+  /**
+   * Whether resources were enlisted in the transaction of the current thread, so its statistics
+   * are recorded by its synchronization.
+   */
+  private boolean isTracked() throws SystemException {
+    Transaction transaction = transactionManager.getTransaction();
+    return (transaction == null) || enlistmentsByTransaction.containsKey(transaction);
+  }
+
+  @Override
+  public void resume(final Transaction tobj) throws InvalidTransactionException,
+      IllegalStateException, SystemException {
+    Transaction transaction = tobj;
+    if (transaction instanceof TrackedTransaction) {
+      transaction = ((TrackedTransaction) transaction).delegate;
+    }
+    transactionManager.resume(transaction);
+  }
+
+  @Override
+  public void rollback() throws IllegalStateException, SecurityException, SystemException {
+    boolean tracked = isTracked();
+    try {
+      transactionManager.rollback();
+    } finally {
+      if (!tracked) {
+        metrics.transactionCompleted(0, false, false);
+      }
+    }
+  }
+
+  @Override
+  public void setRollbackOnly() throws IllegalStateException, SystemException {
+    transactionManager.setRollbackOnly();
+  }
+
+  @Override
+  public void setTransactionTimeout(final int seconds) throws SystemException {
+    transactionManager.setTransactionTimeout(seconds);
+  }
+
+  @Override
+  public Transaction suspend() throws SystemException {
+    return wrap(transactionManager.suspend());
+  }
+
+  private Transaction wrap(final Transaction transaction) {
+    if (transaction == null) {
+      return null;
+    }
+    return new TrackedTransaction(transaction);
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.everit.osgi.transaction.helper.api.FanOutResult;
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+import org.everit.osgi.transaction.helper.api.UnitResult;
+
+/**
+ * Runs independent units in their own transactions on the threads of an executor. Every unit is
+ * submitted as a separate task, so the parallelism is limited by the executor. The outcomes are
+ * written into arrays by the tasks and the last finishing task completes the result. The atomic
+ * counter of the remaining units makes the writes of the other tasks visible to the last one.
+ *
+ * @param <R>
+ *          The return type of the units.
+ */
+class FanOutExecution<R> {
+
+  private final boolean[] cancelled;
+
+  private final boolean failFast;
+
+  private volatile boolean failed;
+
+  private final Throwable[] failures;
+
+  private final CompletableFuture<FanOutResult<R>> future = new CompletableFuture<>();
+
+  private final AtomicInteger remaining;
+
+  private final Object[] results;
+
+  private final TransactionHelper transactionHelper;
+
+  private final List<? extends Supplier<? extends R>> units;
+
+  FanOutExecution(final TransactionHelper transactionHelper,
+      final List<? extends Supplier<? extends R>> units, final boolean failFast) {
+    this.transactionHelper = transactionHelper;
+    this.units = units;
+    this.failFast = failFast;
+    int unitCount = units.size();
+    cancelled = new boolean[unitCount];
+    failures = new Throwable[unitCount];
+    results = new Object[unitCount];
+    remaining = new AtomicInteger(unitCount);
+  }
+
+  private void complete() {
+    List<UnitResult<R>> unitResults = new ArrayList<>(results.length);
+    for (int i = 0; i < results.length; i++) {
+      @SuppressWarnings("unchecked")
+      R result = (R) results[i];
+      unitResults.add(new UnitResult<R>(result, failures[i], cancelled[i]));
+    }
+    future.complete(new FanOutResult<R>(unitResults));
+  }
+
+  CompletableFuture<FanOutResult<R>> execute(final Executor executor) {
+    if (units.isEmpty()) {
+      complete();
+      return future;
+    }
+    for (int i = 0, n = units.size(); i < n; i++) {
+      int index = i;
+      try {
+        executor.execute(() -> run(index));
+      } catch (RuntimeException e) {
+        fail(index, e);
+        unitFinished();
+      }
+    }
+    return future;
+  }
+
+  private void fail(final int index, final Throwable failure) {
+    failures[index] = failure;
+    failed = true;
+  }
+
+  private void run(final int index) {
+    try {
+      if (failFast && failed) {
+        cancelled[index] = true;
+      } else {
+        results[index] = transactionHelper.requiresNew(units.get(index));
+      }
+    } catch (Throwable e) {
+      fail(index, e);
+    } finally {
+      unitFinished();
+    }
+  }
+
+  private void unitFinished() {
+    if (remaining.decrementAndGet() == 0) {
+      complete();
+    }
+  }
+}
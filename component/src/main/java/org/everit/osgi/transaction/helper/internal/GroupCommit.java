@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+
+/**
+ * Executes small units of work that would each need a new transaction in shared transactions. The
+ * first thread that submits a unit becomes the leader of a group: it waits until the window is
+ * over or the group is full, then executes the units of the group in one transaction on its own
+ * thread. The other threads wait until their units are done. If the shared transaction fails, the
+ * units are executed again one by one in their own transactions, so a failing unit does not make
+ * the others fail. A full group does not take more units, so the next arriving thread becomes the
+ * leader of the next group.
+ *
+ * <p>
+ * Only the units of the same {@link TransactionPriority} are grouped, and the leader executes the
+ * group with that priority. The callers must not submit units that depend on other state of their
+ * thread, like the deadline of an enclosing transaction.
+ */
+public class GroupCommit {
+
+  /**
+   * The units that are executed in one transaction.
+   */
+  private static final class Group {
+
+    final TransactionPriority priority;
+
+    final List<Unit<?>> units = new ArrayList<>();
+
+    Group(final TransactionPriority priority) {
+      this.priority = priority;
+    }
+  }
+
+  /**
+   * A unit of work submitted by a thread.
+   *
+   * @param <R>
+   *          The type of the result.
+   */
+  private static final class Unit<R> {
+
+    private final Supplier<R> callback;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Throwable failure;
+
+    private R result;
+
+    Unit(final Supplier<R> callback) {
+      this.callback = callback;
+    }
+
+    /**
+     * Waits until the unit is executed by the leader. The wait is not interrupted, as the unit may
+     * already be running, but the interrupted flag of the thread is kept.
+     */
+    R await() {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new TransactionalException(failure);
+      }
+      return result;
+    }
+
+    void complete(final R result, final Throwable failure) {
+      this.result = result;
+      this.failure = failure;
+      done.countDown();
+    }
+
+    /**
+     * Executes the unit in its own transaction.
+     */
+    void executeAlone(final TransactionHelper transactionHelper) {
+      try {
+        complete(transactionHelper.requiresNew(callback), null);
+      } catch (Throwable e) {
+        complete(null, e);
+      }
+    }
+  }
+
+  /**
+   * The groups that take new units by the ordinal of their priority. An element is
+   * <code>null</code> if no leader is waiting for units of that priority.
+   */
+  private final Group[] collectingGroups = new Group[TransactionPriority.values().length];
+
+  private final Object lock = new Object();
+
+  private final int maxGroupSize;
+
+  private final TransactionHelper transactionHelper;
+
+  private final long windowNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param transactionHelper
+   *          The helper that begins the transactions.
+   * @param windowMicros
+   *          The time in microseconds the leader waits for other units.
+   * @param maxGroupSize
+   *          The maximum number of units that are executed in one transaction.
+   * @throws IllegalArgumentException
+   *           if the window or the maximum group size is less than one.
+   */
+  public GroupCommit(final TransactionHelper transactionHelper, final long windowMicros,
+      final int maxGroupSize) {
+    if (windowMicros < 1) {
+      throw new IllegalArgumentException("Window must be at least 1 microsecond: " + windowMicros);
+    }
+    if (maxGroupSize < 1) {
+      throw new IllegalArgumentException("Max group size must be at least 1: " + maxGroupSize);
+    }
+    this.transactionHelper = transactionHelper;
+    this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    this.maxGroupSize = maxGroupSize;
+  }
+
+  /**
+   * Waits until the window is over or the group is full and closes the group, so it does not take
+   * more units.
+   */
+  private void awaitGroup(final Group group) {
+    synchronized (lock) {
+      long deadline = System.nanoTime() + windowNanos;
+      long remainingNanos = windowNanos;
+      boolean interrupted = false;
+      while ((group.units.size() < maxGroupSize) && (remainingNanos > 0)) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(lock, remainingNanos);
+        } catch (InterruptedException e) {
+          // The units of the group must be executed anyway
+          interrupted = true;
+          break;
+        }
+        remainingNanos = deadline - System.nanoTime();
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      int priorityIndex = group.priority.ordinal();
+      if (collectingGroups[priorityIndex] == group) {
+        collectingGroups[priorityIndex] = null;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R> void completeUnchecked(final Unit<R> unit, final Object result) {
+    unit.complete((R) result, null);
+  }
+
+  /**
+   * Executes the unit in a shared transaction and returns its result when the transaction is
+   * committed.
+   *
+   * @param <R>
+   *          The type of the result.
+   * @param priority
+   *          The priority of the transaction of the unit.
+   * @param callback
+   *          The unit of work.
+   * @return The result of the unit.
+   */
+  <R> R execute(final TransactionPriority priority, final Supplier<R> callback) {
+    Unit<R> unit = new Unit<>(callback);
+    int priorityIndex = priority.ordinal();
+    Group group;
+    boolean leader = false;
+    synchronized (lock) {
+      group = collectingGroups[priorityIndex];
+      if ((group == null) || (group.units.size() >= maxGroupSize)) {
+        group = new Group(priority);
+        collectingGroups[priorityIndex] = group;
+        leader = true;
+      }
+      group.units.add(unit);
+      if (!leader && (group.units.size() >= maxGroupSize)) {
+        lock.notifyAll();
+      }
+    }
+    if (leader) {
+      awaitGroup(group);
+      Group fullGroup = group;
+      transactionHelper.withPriorityAsVoid(priority, () -> executeGroup(fullGroup.units));
+    }
+    return unit.await();
+  }
+
+  /**
+   * Executes the units of the group in one transaction. The units are completed only after the
+   * commit, and they are executed again one by one if the shared transaction fails.
+   */
+  private void executeGroup(final List<Unit<?>> group) {
+    if (group.size() == 1) {
+      group.get(0).executeAlone(transactionHelper);
+      return;
+    }
+    List<Object> results = new ArrayList<>(group.size());
+    try {
+      transactionHelper.requiresNewAsVoid(() -> {
+        for (Unit<?> unit : group) {
+          results.add(unit.callback.get());
+        }
+      });
+    } catch (Throwable e) {
+      for (Unit<?> unit : group) {
+        unit.executeAlone(transactionHelper);
+      }
+      return;
+    }
+    for (int i = 0, n = group.size(); i < n; i++) {
+      completeUnchecked(group.get(i), results.get(i));
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.transaction.helper.api.InFlightTransaction;
+
+/**
+ * A transaction in the {@link InFlightTransactionRegistryImpl}. The entry is created on the thread
+ * that begins or suspends the transaction and it is read by other threads.
+ */
+final class InFlightEntry {
+
+  /**
+   * The stack of the thread when the entry was created or <code>null</code> if call sites are not
+   * captured. The stack trace is only resolved when a snapshot is taken.
+   */
+  private final Throwable callSite;
+
+  private final Propagation propagation;
+
+  private final InFlightTransactionRegistryImpl registry;
+
+  /**
+   * Whether the watchdog already reported the entry.
+   */
+  volatile boolean reported;
+
+  final long startNanos;
+
+  private final long startTimeMillis;
+
+  private final boolean suspended;
+
+  private final int suspendDepth;
+
+  private final Thread thread;
+
+  InFlightEntry(final InFlightTransactionRegistryImpl registry, final Propagation propagation,
+      final boolean suspended, final int suspendDepth, final Throwable callSite) {
+    this.registry = registry;
+    this.propagation = propagation;
+    this.suspended = suspended;
+    this.suspendDepth = suspendDepth;
+    this.callSite = callSite;
+    thread = Thread.currentThread();
+    startNanos = System.nanoTime();
+    startTimeMillis = System.currentTimeMillis();
+  }
+
+  InFlightTransaction snapshot(final long now, final boolean withThreadStack) {
+    StackTraceElement[] callSiteStack = (callSite != null) ? callSite.getStackTrace() : null;
+    StackTraceElement[] threadStack = withThreadStack ? thread.getStackTrace() : null;
+    return new InFlightTransaction(propagation.name(), suspended, startTimeMillis,
+        TimeUnit.NANOSECONDS.toMillis(now - startNanos), thread.getId(), thread.getName(),
+        suspendDepth, callSiteStack, threadStack);
+  }
+
+  void unregister() {
+    registry.unregister(this);
+  }
+}
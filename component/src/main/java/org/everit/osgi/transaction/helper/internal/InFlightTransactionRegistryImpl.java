@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.osgi.transaction.helper.api.InFlightTransaction;
+import org.everit.osgi.transaction.helper.api.InFlightTransactionRegistry;
+
+/**
+ * Default implementation of {@link InFlightTransactionRegistry}. The entries are kept in a
+ * concurrent set, so registering and unregistering do not lock and the readers iterate over the
+ * set without blocking the writers.
+ */
+public class InFlightTransactionRegistryImpl implements InFlightTransactionRegistry {
+
+  private volatile boolean captureCallSite;
+
+  private volatile boolean enabled;
+
+  private final Set<InFlightEntry> entries = ConcurrentHashMap.newKeySet();
+
+  @Override
+  public List<InFlightTransaction> getInFlightTransactions(final long minDurationMillis) {
+    long now = System.nanoTime();
+    long minDurationNanos = TimeUnit.MILLISECONDS.toNanos(minDurationMillis);
+    List<InFlightEntry> selectedEntries = new ArrayList<>();
+    for (InFlightEntry entry : entries) {
+      if ((now - entry.startNanos) >= minDurationNanos) {
+        selectedEntries.add(entry);
+      }
+    }
+    selectedEntries.sort(Comparator.comparingLong((entry) -> entry.startNanos - now));
+    List<InFlightTransaction> result = new ArrayList<>(selectedEntries.size());
+    for (InFlightEntry entry : selectedEntries) {
+      result.add(entry.snapshot(now, false));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isCaptureCallSite() {
+    return captureCallSite;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  InFlightEntry register(final Propagation propagation, final boolean suspended,
+      final int suspendDepth) {
+    Throwable callSite = captureCallSite ? new Throwable() : null;
+    InFlightEntry entry = new InFlightEntry(this, propagation, suspended, suspendDepth, callSite);
+    entries.add(entry);
+    return entry;
+  }
+
+  /**
+   * Passes the entries that are in flight for longer than the threshold and that were not reported
+   * before to the reporter. The stack of the thread of the entry is queried for the report.
+   */
+  void reportLongRunning(final long thresholdNanos,
+      final Consumer<InFlightTransaction> reporter) {
+    long now = System.nanoTime();
+    for (InFlightEntry entry : entries) {
+      if (!entry.reported && ((now - entry.startNanos) >= thresholdNanos)) {
+        entry.reported = true;
+        reporter.accept(entry.snapshot(now, true));
+      }
+    }
+  }
+
+  @Override
+  public void setCaptureCallSite(final boolean captureCallSite) {
+    this.captureCallSite = captureCallSite;
+  }
+
+  @Override
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  void unregister(final InFlightEntry entry) {
+    entries.remove(entry);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.everit.osgi.transaction.helper.api.LatencyStatistics;
+
+/**
+ * Lock-free latency histogram with a fixed number of buckets. Every power of two is divided into
+ * four buckets, so a bucket is at most 25% wider than its lower bound and the whole range of
+ * <code>long</code> values fits into {@value #BUCKET_COUNT} buckets.
+ */
+final class LatencyHistogram {
+
+  private static final int BUCKET_COUNT = 248;
+
+  private static final int SUB_BUCKET_BITS = 2;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static int bucketIndex(final long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (value < 0) ? 0 : (int) value;
+    }
+    int highestBit = 63 - Long.numberOfLeadingZeros(value);
+    int shift = highestBit - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+    return SUB_BUCKET_COUNT + (shift * SUB_BUCKET_COUNT) + subBucket;
+  }
+
+  private static long bucketUpperBound(final int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+    int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+    long lowerBound = ((long) (SUB_BUCKET_COUNT + subBucket)) << shift;
+    return lowerBound + ((1L << shift) - 1);
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private final LongAdder total = new LongAdder();
+
+  private long percentile(final long[] counts, final long count, final long maxValue,
+      final double percentile) {
+    long rank = (long) Math.ceil(count * percentile);
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      if (cumulative >= rank) {
+        return Math.min(bucketUpperBound(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  void record(final long nanos) {
+    buckets.incrementAndGet(bucketIndex(nanos));
+    total.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets.set(i, 0);
+    }
+    total.reset();
+    max.reset();
+  }
+
+  /**
+   * Creates a snapshot of the histogram. Measurements that are recorded during the snapshot may
+   * be partly included.
+   *
+   * @return The snapshot or <code>null</code> if nothing has been recorded.
+   */
+  LatencyStatistics snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      count += counts[i];
+    }
+    if (count == 0) {
+      return null;
+    }
+    long maxValue = max.get();
+    return new LatencyStatistics(count, total.sum(), maxValue,
+        percentile(counts, count, maxValue, 0.5), percentile(counts, count, maxValue, 0.9),
+        percentile(counts, count, maxValue, 0.99));
+  }
+}
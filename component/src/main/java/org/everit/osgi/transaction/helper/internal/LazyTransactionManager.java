@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+/**
+ * {@link TransactionManager} facade that begins the transactions of the underlying transaction
+ * manager only when they are needed. {@link #begin()} associates a lazy transaction with the
+ * thread and the real transaction is begun when the first resource is enlisted or the first
+ * synchronization is registered. If neither happens, committing or rolling back the lazy
+ * transaction does not call the underlying transaction manager at all.
+ *
+ * <p>
+ * The helper and the resources that take part in the transactions must use the same facade, as
+ * the underlying transaction manager does not know about the lazy transactions. Transactions
+ * should not be begun or resumed directly on the underlying transaction manager on a thread
+ * that has a lazy transaction. The timeout of a
+ * lazy transaction is passed to the underlying transaction manager when the real transaction is
+ * begun, so it is counted from that moment.
+ */
+public class LazyTransactionManager implements TransactionManager {
+
+  /**
+   * Transaction that begins the real transaction on demand.
+   */
+  private final class LazyTransaction implements Transaction {
+
+    private Transaction delegate;
+
+    /**
+     * The status of the transaction while there is no delegate.
+     */
+    private int status = Status.STATUS_ACTIVE;
+
+    private final int timeoutSeconds;
+
+    LazyTransaction(final int timeoutSeconds) {
+      this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public void commit() throws RollbackException, HeuristicMixedException,
+        HeuristicRollbackException, SystemException {
+      if (delegate != null) {
+        delegate.commit();
+        return;
+      }
+      checkActive();
+      if (status == Status.STATUS_MARKED_ROLLBACK) {
+        status = Status.STATUS_ROLLEDBACK;
+        throw new RollbackException("Transaction was marked for rollback");
+      }
+      status = Status.STATUS_COMMITTED;
+    }
+
+    private void checkActive() {
+      if ((status != Status.STATUS_ACTIVE) && (status != Status.STATUS_MARKED_ROLLBACK)) {
+        throw new IllegalStateException("Transaction is not in progress");
+      }
+    }
+
+    @Override
+    public boolean delistResource(final XAResource xaRes, final int flag) throws SystemException {
+      if (delegate == null) {
+        throw new IllegalStateException("Resource is not enlisted");
+      }
+      return delegate.delistResource(xaRes, flag);
+    }
+
+    @Override
+    public boolean enlistResource(final XAResource xaRes) throws RollbackException,
+        SystemException {
+      return materialize().enlistResource(xaRes);
+    }
+
+    @Override
+    public int getStatus() throws SystemException {
+      if (delegate != null) {
+        return delegate.getStatus();
+      }
+      return status;
+    }
+
+    /**
+     * Returns the real transaction and begins it if it is not begun yet. The lazy transaction must
+     * be associated with the current thread, as the underlying transaction manager begins the
+     * transaction on the current thread.
+     */
+    private Transaction materialize() throws RollbackException, SystemException {
+      if (delegate != null) {
+        return delegate;
+      }
+      checkActive();
+      if (status == Status.STATUS_MARKED_ROLLBACK) {
+        throw new RollbackException("Transaction is marked for rollback");
+      }
+      if (currentTransaction.get() != this) {
+        throw new IllegalStateException(
+            "Lazy transaction can only be begun on the thread it is associated with");
+      }
+      if (timeoutSeconds != 0) {
+        transactionManager.setTransactionTimeout(timeoutSeconds);
+      }
+      try {
+        transactionManager.begin();
+      } catch (NotSupportedException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        if (timeoutSeconds != 0) {
+          transactionManager.setTransactionTimeout(0);
+        }
+      }
+      delegate = transactionManager.getTransaction();
+      return delegate;
+    }
+
+    @Override
+    public void registerSynchronization(final Synchronization sync) throws RollbackException,
+        SystemException {
+      materialize().registerSynchronization(sync);
+    }
+
+    @Override
+    public void rollback() throws SystemException {
+      if (delegate != null) {
+        delegate.rollback();
+        return;
+      }
+      checkActive();
+      status = Status.STATUS_ROLLEDBACK;
+    }
+
+    @Override
+    public void setRollbackOnly() throws SystemException {
+      if (delegate != null) {
+        delegate.setRollbackOnly();
+        return;
+      }
+      checkActive();
+      status = Status.STATUS_MARKED_ROLLBACK;
+    }
+  }
+
+  private final ThreadLocal<LazyTransaction> currentTransaction = new ThreadLocal<>();
+
+  private final ThreadLocal<Integer> transactionTimeout = new ThreadLocal<>();
+
+  private final TransactionManager transactionManager;
+
+  public LazyTransactionManager(final TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+
+  @Override
+  public void begin() throws NotSupportedException, SystemException {
+    if (currentTransaction.get() != null) {
+      throw new NotSupportedException("Nested transactions are not supported");
+    }
+    Integer timeoutSeconds = transactionTimeout.get();
+    currentTransaction.set(new LazyTransaction((timeoutSeconds != null) ? timeoutSeconds : 0));
+  }
+
+  @Override
+  public void commit() throws RollbackException, HeuristicMixedException,
+      HeuristicRollbackException, SystemException {
+    LazyTransaction transaction = requireTransaction();
+    currentTransaction.remove();
+    if (transaction.delegate != null) {
+      transactionManager.commit();
+    } else {
+      transaction.commit();
+    }
+  }
+
+  @Override
+  public int getStatus() throws SystemException {
+    LazyTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      return transactionManager.getStatus();
+    }
+    return transaction.getStatus();
+  }
+
+  /**
+   * Returns the lazy transaction of the thread without beginning the real transaction. If there
+   * is no lazy transaction, the transaction of the underlying transaction manager is returned.
+   */
+  @Override
+  public Transaction getTransaction() throws SystemException {
+    LazyTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      return transactionManager.getTransaction();
+    }
+    return transaction;
+  }
+
+  /**
+   * Whether the real transaction of the lazy transaction of the current thread is begun.
+   *
+   * @return <code>true</code> if the real transaction is begun, <code>false</code> if it is not or
+   *         there is no lazy transaction on the thread.
+   */
+  public boolean isTransactionBegun() {
+    LazyTransaction transaction = currentTransaction.get();
+    return (transaction != null) && (transaction.delegate != null);
+  }
+
+  private LazyTransaction requireTransaction() {
+    LazyTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      throw new IllegalStateException("No transaction is associated with the current thread");
+    }
+    return transaction;
+  }
+
+  @Override
+  public void resume(final Transaction tobj) throws InvalidTransactionException,
+      IllegalStateException, SystemException {
+    if (!(tobj instanceof LazyTransaction)) {
+      transactionManager.resume(tobj);
+      return;
+    }
+    if (currentTransaction.get() != null) {
+      throw new IllegalStateException("A transaction is already associated with the thread");
+    }
+    LazyTransaction transaction = (LazyTransaction) tobj;
+    if (transaction.delegate != null) {
+      transactionManager.resume(transaction.delegate);
+    }
+    currentTransaction.set(transaction);
+  }
+
+  @Override
+  public void rollback() throws IllegalStateException, SecurityException, SystemException {
+    LazyTransaction transaction = requireTransaction();
+    currentTransaction.remove();
+    if (transaction.delegate != null) {
+      transactionManager.rollback();
+    } else {
+      transaction.rollback();
+    }
+  }
+
+  @Override
+  public void setRollbackOnly() throws IllegalStateException, SystemException {
+    LazyTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      transactionManager.setRollbackOnly();
+    } else {
+      transaction.setRollbackOnly();
+    }
+  }
+
+  @Override
+  public void setTransactionTimeout(final int seconds) throws SystemException {
+    if (seconds == 0) {
+      transactionTimeout.remove();
+    } else {
+      transactionTimeout.set(seconds);
+    }
+  }
+
+  @Override
+  public Transaction suspend() throws SystemException {
+    LazyTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      return transactionManager.suspend();
+    }
+    currentTransaction.remove();
+    if (transaction.delegate != null) {
+      transactionManager.suspend();
+    }
+    return transaction;
+  }
+}
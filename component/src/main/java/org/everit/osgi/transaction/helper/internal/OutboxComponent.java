@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Dictionary;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.transaction.TransactionManager;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.References;
+import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.transaction.helper.api.Outbox;
+import org.everit.osgi.transaction.helper.api.OutboxDispatcher;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.ComponentException;
+
+/**
+ * Implementation of {@link Outbox}. The component needs a configuration with the file of the log.
+ * The items are dispatched on one thread in the order of the commits.
+ */
+@Component(name = "org.everit.osgi.transaction.helper.Outbox", metatype = true,
+    policy = ConfigurationPolicy.REQUIRE)
+@Properties({ @Property(name = "transactionManager.target"),
+    @Property(name = "dispatcher.target"),
+    @Property(name = OutboxComponent.PROP_FILE),
+    @Property(name = OutboxComponent.PROP_CAPACITY_BYTES,
+        intValue = OutboxComponent.DEFAULT_CAPACITY_BYTES) })
+@Service(value = Outbox.class)
+@References({
+    @Reference(name = "transactionManager", referenceInterface = TransactionManager.class,
+        policy = ReferencePolicy.STATIC, bind = "setTransactionManager"),
+    @Reference(name = "dispatcher", referenceInterface = OutboxDispatcher.class,
+        policy = ReferencePolicy.STATIC, bind = "setDispatcher") })
+public class OutboxComponent implements Outbox {
+
+  /**
+   * Default size of the log: 64 MiB.
+   */
+  public static final int DEFAULT_CAPACITY_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * The time that the deactivation waits for the running and queued dispatches.
+   */
+  private static final long DISPATCH_DRAIN_TIMEOUT_MILLIS = 30000;
+
+  private static final Logger LOGGER = Logger.getLogger(OutboxComponent.class.getName());
+
+  /**
+   * Configuration property of the size of the log in bytes.
+   */
+  public static final String PROP_CAPACITY_BYTES = "capacityBytes";
+
+  /**
+   * Configuration property of the path of the log file.
+   */
+  public static final String PROP_FILE = "file";
+
+  private ExecutorService dispatchExecutor;
+
+  OutboxImpl wrapped = new OutboxImpl();
+
+  /**
+   * Opens the log and dispatches the items that were not dispatched before.
+   *
+   * @param componentContext
+   *          The context of the component.
+   */
+  @Activate
+  public void activate(final ComponentContext componentContext) {
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    Object file = properties.get(PROP_FILE);
+    if (file == null) {
+      throw new ComponentException("The " + PROP_FILE + " property must be set");
+    }
+    Object capacity = properties.get(PROP_CAPACITY_BYTES);
+    int capacityBytes;
+    try {
+      capacityBytes = (capacity != null) ? Integer.parseInt(String.valueOf(capacity).trim())
+          : DEFAULT_CAPACITY_BYTES;
+    } catch (NumberFormatException e) {
+      throw new ComponentException("Invalid value of " + PROP_CAPACITY_BYTES + ": " + capacity, e);
+    }
+
+    dispatchExecutor = Executors.newSingleThreadExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "TransactionHelper outbox dispatcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    wrapped.setDispatchExecutor(dispatchExecutor);
+    try {
+      wrapped.open(Paths.get(String.valueOf(file)), capacityBytes);
+    } catch (IOException e) {
+      dispatchExecutor.shutdown();
+      throw new ComponentException("Could not open the outbox log " + file, e);
+    }
+  }
+
+  @Override
+  public void add(final byte[] item) {
+    wrapped.add(item);
+  }
+
+  /**
+   * Closes the log, so new transactions cannot add items, and waits until the queued dispatches
+   * finish. The items that are not dispatched in time are dispatched after the next activation.
+   */
+  @Deactivate
+  public void deactivate() {
+    try {
+      wrapped.close();
+    } catch (IOException e) {
+      throw new ComponentException("Could not close the outbox log", e);
+    } finally {
+      ExecutorService executor = dispatchExecutor;
+      dispatchExecutor = null;
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(DISPATCH_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          LOGGER.warning("Outbox dispatches did not finish in " + DISPATCH_DRAIN_TIMEOUT_MILLIS
+              + " ms, interrupting them");
+          executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  protected void setDispatcher(final OutboxDispatcher dispatcher) {
+    wrapped.setDispatcher(dispatcher);
+  }
+
+  protected void setTransactionManager(final TransactionManager transactionManager) {
+    wrapped.setTransactionManager(transactionManager);
+  }
+
+  protected void unbindDispatcher(final OutboxDispatcher dispatcher) {
+    wrapped.setDispatcher(null);
+  }
+
+  protected void unbindTransactionManager(final TransactionManager transactionManager) {
+    wrapped.setTransactionManager(null);
+  }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.everit.osgi.transaction.helper.api.Outbox;
+import org.everit.osgi.transaction.helper.api.OutboxDispatcher;
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.TransactionConstants;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+
+/**
+ * Default implementation of {@link Outbox}. The items of a transaction are collected by one
+ * {@link Synchronization}. Before the commit the items are written to the {@link OutboxLog} and
+ * the log is synced together with the items of the transactions that commit at the same time.
+ * After the commit the items are passed to the dispatch executor. A failed dispatch is retried
+ * according to the dispatch retry policy and the items are dropped with a logged error when the
+ * policy gives up, so they do not hold space in the log forever. When the outbox is opened, the
+ * items that were written but not dispatched or rolled back are dispatched again. This includes
+ * the items of transactions whose outcome is unknown because the process stopped during the
+ * commit.
+ */
+public class OutboxImpl implements Outbox {
+
+  /**
+   * The items of one transaction.
+   */
+  private final class OutboxBatch implements Synchronization {
+
+    private final List<byte[]> items = new ArrayList<>();
+
+    private final OutboxLog log;
+
+    private final Transaction transaction;
+
+    private final long transactionId = lastTransactionId.incrementAndGet();
+
+    private boolean written;
+
+    OutboxBatch(final Transaction transaction, final OutboxLog log) {
+      this.transaction = transaction;
+      this.log = log;
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      batches.remove(transaction);
+      if (!written) {
+        return;
+      }
+      if (status == Status.STATUS_ROLLEDBACK) {
+        log.appendResolution(OutboxLog.TYPE_ROLLBACK, transactionId);
+        return;
+      }
+      if (status != Status.STATUS_COMMITTED) {
+        // The outcome is unknown, for example after a heuristic decision. The items are delivered
+        // at least once, like the ones that are recovered from the log.
+        LOGGER.warning("Outbox transaction completed with status "
+            + TransactionConstants.getStatusName(status) + ", dispatching its items");
+      }
+      dispatch(log, transactionId, items);
+    }
+
+    @Override
+    public void beforeCompletion() {
+      long appendedBytes = log.appendItems(transactionId, items);
+      written = true;
+      log.sync(appendedBytes);
+    }
+  }
+
+  /**
+   * The dispatch retry policy that is used if none is set: ten attempts with a backoff between
+   * one hundred milliseconds and one minute, retrying any exception.
+   */
+  public static final RetryPolicy DEFAULT_DISPATCH_RETRY_POLICY =
+      new RetryPolicy(10, 100, 60000, (e) -> true);
+
+  private static final Logger LOGGER = Logger.getLogger(OutboxImpl.class.getName());
+
+  private final Map<Transaction, OutboxBatch> batches = new ConcurrentHashMap<>();
+
+  private Executor dispatchExecutor;
+
+  private volatile RetryPolicy dispatchRetryPolicy = DEFAULT_DISPATCH_RETRY_POLICY;
+
+  private OutboxDispatcher dispatcher;
+
+  private final AtomicLong lastTransactionId = new AtomicLong();
+
+  private volatile OutboxLog log;
+
+  private TransactionManager transactionManager;
+
+  @Override
+  public void add(final byte[] item) {
+    Transaction transaction = getActiveTransaction();
+    batches.computeIfAbsent(transaction, this::registerBatch).items.add(item);
+  }
+
+  /**
+   * Closes the log of the outbox, so new transactions cannot add items anymore. The dispatches
+   * that are already queued may still finish. The items that are not dispatched yet are dispatched
+   * when the outbox is opened again.
+   *
+   * @throws IOException
+   *           if the log cannot be closed.
+   */
+  public synchronized void close() throws IOException {
+    OutboxLog openLog = log;
+    if (openLog != null) {
+      log = null;
+      openLog.close();
+    }
+  }
+
+  private void dispatch(final OutboxLog batchLog, final long transactionId,
+      final List<byte[]> items) {
+    try {
+      dispatchExecutor.execute(() -> dispatchWithRetry(batchLog, transactionId, items));
+    } catch (RejectedExecutionException e) {
+      // The items stay in the log and are dispatched when the outbox is opened again
+      LOGGER.log(Level.WARNING, "Dispatch executor rejected the items of outbox transaction "
+          + transactionId, e);
+    }
+  }
+
+  /**
+   * Dispatches the items until the dispatcher succeeds or the retry policy gives up. If the
+   * policy gives up, the failure is logged and the transaction is resolved as failed. If the
+   * thread is interrupted during the backoff, the transaction is left unresolved.
+   */
+  private void dispatchWithRetry(final OutboxLog batchLog, final long transactionId,
+      final List<byte[]> items) {
+    RetryPolicy retryPolicy = dispatchRetryPolicy;
+    int failedAttempts = 0;
+    while (true) {
+      try {
+        dispatcher.dispatch(items);
+        batchLog.appendResolution(OutboxLog.TYPE_DISPATCHED, transactionId);
+        return;
+      } catch (RuntimeException e) {
+        failedAttempts++;
+        if ((failedAttempts >= retryPolicy.getMaxAttempts()) || !retryPolicy.isRetryable(e)) {
+          LOGGER.log(Level.SEVERE, "Dropping the " + items.size()
+              + " items of outbox transaction " + transactionId + " after " + failedAttempts
+              + " failed dispatch attempts", e);
+          batchLog.appendResolution(OutboxLog.TYPE_FAILED, transactionId);
+          return;
+        }
+        try {
+          Thread.sleep(retryPolicy.computeBackoffMillis(failedAttempts));
+        } catch (InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private Transaction getActiveTransaction() {
+    Transaction transaction;
+    int status;
+    try {
+      transaction = transactionManager.getTransaction();
+      status = (transaction != null) ? transaction.getStatus() : Status.STATUS_NO_TRANSACTION;
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    if (status != Status.STATUS_ACTIVE) {
+      throw new IllegalStateException("Allowed status: "
+          + TransactionConstants.getStatusName(Status.STATUS_ACTIVE) + "; Current status: "
+          + TransactionConstants.getStatusName(status));
+    }
+    return transaction;
+  }
+
+  int getLogPosition() {
+    return log.getPosition();
+  }
+
+  /**
+   * Opens the log of the outbox and dispatches the items that were not dispatched before the log
+   * was closed the last time.
+   *
+   * @param file
+   *          The file of the log. It is created if it does not exist.
+   * @param capacityBytes
+   *          The size of the log. The transactions that would not fit into the log fail during
+   *          the commit. An existing log keeps the size it was created with.
+   * @throws IOException
+   *           if the log cannot be opened.
+   */
+  public synchronized void open(final Path file, final int capacityBytes) throws IOException {
+    if (log != null) {
+      throw new IllegalStateException("Outbox is already open");
+    }
+    OutboxLog openedLog = new OutboxLog(file, capacityBytes);
+    Map<Long, List<byte[]>> pendingItems = openedLog.recover();
+    lastTransactionId.set(openedLog.getLastTransactionId());
+    log = openedLog;
+    for (Map.Entry<Long, List<byte[]>> entry : pendingItems.entrySet()) {
+      dispatch(openedLog, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private OutboxBatch registerBatch(final Transaction transaction) {
+    OutboxLog openLog = log;
+    if (openLog == null) {
+      throw new IllegalStateException("Outbox is not open");
+    }
+    OutboxBatch batch = new OutboxBatch(transaction, openLog);
+    try {
+      transaction.registerSynchronization(batch);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    return batch;
+  }
+
+  public void setDispatcher(final OutboxDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  public void setDispatchExecutor(final Executor dispatchExecutor) {
+    this.dispatchExecutor = dispatchExecutor;
+  }
+
+  /**
+   * Sets how failed dispatches are retried. The items of a transaction are dropped when the policy
+   * gives up.
+   *
+   * @param dispatchRetryPolicy
+   *          The retry policy of the dispatches.
+   */
+  public void setDispatchRetryPolicy(final RetryPolicy dispatchRetryPolicy) {
+    this.dispatchRetryPolicy = dispatchRetryPolicy;
+  }
+
+  public void setTransactionManager(final TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped log of an {@link OutboxImpl}. The file starts with a header that
+ * holds the generation of the log and the size of the regions, followed by two regions of the same
+ * size. The size of the regions is fixed when the file is created, so an existing log keeps its
+ * layout even if it is opened with a different capacity. The records of a
+ * generation are written to the region that the parity of the generation selects:
+ *
+ * <pre>
+ * int length | byte type | long transactionId | byte[length] payload | int checksum
+ * </pre>
+ *
+ * <p>
+ * The checksum covers the generation as well, so the records of previous generations that are
+ * still in the region are invalid without clearing the file. Reading stops at the first invalid
+ * record, which is either the end of the log or a record that was only partly written.
+ *
+ * <p>
+ * When the items of a transaction do not fit into the active region, the log is compacted: the
+ * items of the transactions that are neither rolled back nor dispatched are copied to the other
+ * region with the next generation and the header is switched to that generation only after the
+ * copies are on the disk. If the process stops during the compaction, the previous region is
+ * still valid.
+ */
+final class OutboxLog implements Closeable {
+
+  private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+  private static final int HEADER_SIZE = 24;
+
+  /**
+   * "EVOUTBOX" in ASCII.
+   */
+  private static final long MAGIC = 0x45564F5554424F58L;
+
+  private static final int RECORD_OVERHEAD = 17;
+
+  private static final int RECORD_PAYLOAD_OFFSET = 13;
+
+  static final byte TYPE_DISPATCHED = 3;
+
+  static final byte TYPE_FAILED = 4;
+
+  static final byte TYPE_ITEM = 1;
+
+  static final byte TYPE_ROLLBACK = 2;
+
+  /**
+   * The number of bytes that were appended since the log was opened. Unlike the position, it does
+   * not go back when the log is reset, so it can be compared with {@link #syncedBytes}.
+   */
+  private long appendedBytes;
+
+  private final MappedByteBuffer buffer;
+
+  private final FileChannel channel;
+
+  private boolean closed;
+
+  private long generation;
+
+  private long lastTransactionId;
+
+  private int position = HEADER_SIZE;
+
+  private final int regionSize;
+
+  private final Object syncLock = new Object();
+
+  private volatile long syncedBytes;
+
+  /**
+   * The items of the transactions that are neither rolled back nor dispatched by their transaction
+   * id, in the order they were written. These are the records that the compaction keeps.
+   */
+  private final Map<Long, List<byte[]>> unresolvedItems = new LinkedHashMap<>();
+
+  OutboxLog(final Path file, final int capacity) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      int storedRegionSize = readStoredRegionSize();
+      regionSize = (storedRegionSize > 0) ? storedRegionSize : (capacity - HEADER_SIZE) / 2;
+      buffer = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + (2L * regionSize));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    if (buffer.getLong(0) == MAGIC) {
+      generation = buffer.getLong(8);
+    } else {
+      generation = 1;
+      writeHeader();
+    }
+    position = regionStart();
+  }
+
+  /**
+   * Writes the items of a transaction. If the items do not fit into the active region, the log is
+   * compacted first.
+   *
+   * @return The value to pass to {@link #sync(long)} to make the items durable.
+   * @throws IllegalStateException
+   *           if there is not enough space in the log even after the compaction or the log is
+   *           closed.
+   */
+  synchronized long appendItems(final long transactionId, final List<byte[]> items) {
+    if (closed) {
+      throw new IllegalStateException("Outbox log is closed");
+    }
+    int size = 0;
+    for (byte[] item : items) {
+      size += RECORD_OVERHEAD + item.length;
+    }
+    if (remaining() < size) {
+      compact();
+      if (remaining() < size) {
+        throw new IllegalStateException("Outbox log is full, " + remaining()
+            + " bytes are free, " + size + " bytes are necessary");
+      }
+    }
+    for (byte[] item : items) {
+      write(TYPE_ITEM, transactionId, item);
+    }
+    appendedBytes += size;
+    unresolvedItems.put(transactionId, items);
+    return appendedBytes;
+  }
+
+  /**
+   * Writes a record that resolves a transaction whose items were written before. The record is
+   * not synced. If it is lost, the items of the transaction are dispatched again. If the region is
+   * full, only the next compaction drops the items of the transaction. Resolutions are accepted
+   * after the log is closed, as the mapping stays valid, so the dispatches that were queued before
+   * closing the log are not repeated.
+   */
+  synchronized void appendResolution(final byte type, final long transactionId) {
+    if (remaining() >= RECORD_OVERHEAD) {
+      write(type, transactionId, EMPTY_PAYLOAD);
+      appendedBytes += RECORD_OVERHEAD;
+    }
+    unresolvedItems.remove(transactionId);
+  }
+
+  private int checksum(final int start, final int length) {
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < Long.BYTES; i++) {
+      crc.update((int) (generation >>> (i * Byte.SIZE)));
+    }
+    ByteBuffer range = buffer.duplicate();
+    range.position(start);
+    range.limit(start + length);
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Closes the file of the log. New items cannot be written afterwards.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    buffer.force();
+    channel.close();
+  }
+
+  /**
+   * Copies the items of the unresolved transactions to the other region with the next generation
+   * and switches to that region. The copies are forced to the disk before the header, so the
+   * previous region stays valid until the new one is complete.
+   */
+  private void compact() {
+    generation++;
+    position = regionStart();
+    int copiedBytes = 0;
+    for (Map.Entry<Long, List<byte[]>> entry : unresolvedItems.entrySet()) {
+      for (byte[] item : entry.getValue()) {
+        write(TYPE_ITEM, entry.getKey(), item);
+        copiedBytes += RECORD_OVERHEAD + item.length;
+      }
+    }
+    buffer.force();
+    writeHeader();
+    appendedBytes += copiedBytes;
+  }
+
+  synchronized long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  synchronized int getPosition() {
+    return position;
+  }
+
+  /**
+   * Reads the log and positions it after the last valid record.
+   *
+   * @return The items of the transactions that are neither rolled back nor dispatched by their
+   *         transaction id, in the order they were written.
+   */
+  synchronized Map<Long, List<byte[]>> recover() {
+    Map<Long, List<byte[]>> pendingItems = new LinkedHashMap<>();
+    position = regionStart();
+    while (remaining() >= RECORD_OVERHEAD) {
+      int length = buffer.getInt(position);
+      if ((length < 0) || ((remaining() - RECORD_OVERHEAD) < length)
+          || (buffer.getInt(position + RECORD_PAYLOAD_OFFSET + length) != checksum(position,
+              RECORD_PAYLOAD_OFFSET + length))) {
+        break;
+      }
+      byte type = buffer.get(position + 4);
+      long transactionId = buffer.getLong(position + 5);
+      lastTransactionId = Math.max(lastTransactionId, transactionId);
+      if (type == TYPE_ITEM) {
+        byte[] item = new byte[length];
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + RECORD_PAYLOAD_OFFSET);
+        payload.get(item);
+        pendingItems.computeIfAbsent(transactionId, (id) -> new ArrayList<>()).add(item);
+      } else {
+        pendingItems.remove(transactionId);
+      }
+      position += RECORD_OVERHEAD + length;
+    }
+    unresolvedItems.clear();
+    unresolvedItems.putAll(pendingItems);
+    return pendingItems;
+  }
+
+  /**
+   * Reads the size of the regions from the header of an existing log.
+   *
+   * @return The size of the regions or zero if the file does not contain a log yet.
+   * @throws IOException
+   *           if the header is invalid or the file is shorter than the regions of the header.
+   */
+  private int readStoredRegionSize() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining() && (channel.read(header, header.position()) >= 0)) {
+      // Reading until the header is complete or the end of the file
+    }
+    if (header.hasRemaining() || (header.getLong(0) != MAGIC)) {
+      return 0;
+    }
+    int storedRegionSize = header.getInt(16);
+    if ((storedRegionSize < RECORD_OVERHEAD)
+        || (channel.size() < (HEADER_SIZE + (2L * storedRegionSize)))) {
+      throw new IOException("Invalid outbox log header, region size: " + storedRegionSize
+          + ", file size: " + channel.size());
+    }
+    return storedRegionSize;
+  }
+
+  private int regionStart() {
+    return HEADER_SIZE + ((int) (generation & 1) * regionSize);
+  }
+
+  private int remaining() {
+    return (regionStart() + regionSize) - position;
+  }
+
+  /**
+   * Makes the log durable at least up to the given number of appended bytes. Threads that call
+   * this function at the same time share one fsync: while one thread forces the log to the disk,
+   * the others wait and find their records already synced afterwards.
+   */
+  void sync(final long appendedBytesToSync) {
+    if (syncedBytes >= appendedBytesToSync) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (syncedBytes >= appendedBytesToSync) {
+        return;
+      }
+      long appendedBytesBeforeForce;
+      synchronized (this) {
+        appendedBytesBeforeForce = appendedBytes;
+      }
+      buffer.force();
+      syncedBytes = appendedBytesBeforeForce;
+    }
+  }
+
+  private void write(final byte type, final long transactionId, final byte[] payload) {
+    int start = position;
+    buffer.putInt(start, payload.length);
+    buffer.put(start + 4, type);
+    buffer.putLong(start + 5, transactionId);
+    ByteBuffer payloadBuffer = buffer.duplicate();
+    payloadBuffer.position(start + RECORD_PAYLOAD_OFFSET);
+    payloadBuffer.put(payload);
+    int payloadEnd = start + RECORD_PAYLOAD_OFFSET + payload.length;
+    buffer.putInt(payloadEnd, checksum(start, RECORD_PAYLOAD_OFFSET + payload.length));
+    position = payloadEnd + Integer.BYTES;
+  }
+
+  /**
+   * Writes the header and forces it to the disk, so records of the new generation are never
+   * written before the disk knows the generation.
+   */
+  private void writeHeader() {
+    buffer.putLong(0, MAGIC);
+    buffer.putLong(8, generation);
+    buffer.putInt(16, regionSize);
+    buffer.force();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.Arrays;
+
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+
+/**
+ * State of the propagation calls of a {@link TransactionHelperImpl} on one thread. The context
+ * remembers the transaction that the helper began or joined, so nested propagation calls do not
+ * have to ask the transaction manager for it again. The context is only valid while there is a
+ * propagation call of the helper on the stack of the thread.
+ */
+final class PropagationContext {
+
+  private static final int INITIAL_FRAME_COUNT = 4;
+
+  /**
+   * Whether a call on the stack of the thread holds an admission of the admission control.
+   */
+  boolean admitted;
+
+  /**
+   * The transaction manager that is used by the calls on the stack of the thread. It is acquired by
+   * the outermost call and released when that call returns.
+   */
+  TransactionManagerBinding binding;
+
+  /**
+   * The {@link System#nanoTime()} until the transactions begun by nested calls must finish. Only
+   * valid if {@link #hasDeadline} is <code>true</code>.
+   */
+  long deadline;
+
+  /**
+   * Number of propagation calls of the helper on the stack of the thread.
+   */
+  private int depth;
+
+  /**
+   * The frames of the propagation calls. The frames are reused, so nested calls do not allocate
+   * memory once the stack has been deep enough.
+   */
+  private PropagationFrame[] frames = new PropagationFrame[INITIAL_FRAME_COUNT];
+
+  /**
+   * Whether a call on the stack of the thread began a transaction with a timeout.
+   */
+  boolean hasDeadline;
+
+  /**
+   * The priority class of the transactions that are begun on the thread.
+   */
+  TransactionPriority priority = TransactionPriority.NORMAL;
+
+  /**
+   * Whether the transaction of the thread was begun or joined by a read-only call, so the callbacks
+   * must not write.
+   */
+  boolean readOnly;
+
+  /**
+   * The number of transactions that are suspended by the calls on the stack of the thread.
+   */
+  int suspendDepth;
+
+  /**
+   * The transaction that is associated with the thread or <code>null</code> if the transaction
+   * manager has to be asked.
+   */
+  Transaction transaction;
+
+  /**
+   * Called at the beginning of every propagation call.
+   *
+   * @return The frame of the call.
+   */
+  PropagationFrame enter() {
+    if (depth == frames.length) {
+      frames = Arrays.copyOf(frames, depth * 2);
+    }
+    PropagationFrame frame = frames[depth];
+    if (frame == null) {
+      frame = new PropagationFrame(this);
+      frames[depth] = frame;
+    }
+    depth++;
+    return frame;
+  }
+
+  /**
+   * Whether there is a propagation call of the helper on the stack of the thread. The transaction
+   * of the context may only be used if there is.
+   *
+   * @return <code>true</code> if the context is in use.
+   */
+  boolean isInCall() {
+    return depth > 0;
+  }
+
+  /**
+   * Called at the end of every propagation call. The deadline, the read-only flag and the suspend
+   * depth that were changed by the call are restored, the admission and the in-flight
+   * registrations of the call are released and the frame of the call is cleared, so it does not
+   * hold references to transactions. When the outermost call returns, the known transaction is
+   * forgotten, as the helper cannot follow what happens with the thread afterwards, and the
+   * transaction manager is released.
+   */
+  void leave() {
+    depth--;
+    PropagationFrame frame = frames[depth];
+    if (frame.suspendedTransaction != null) {
+      suspendDepth--;
+    }
+    if (frame.admissionControl != null) {
+      frame.admissionControl.release();
+      admitted = false;
+    }
+    if (frame.suspensionEntry != null) {
+      frame.suspensionEntry.unregister();
+    }
+    if (frame.transactionEntry != null) {
+      frame.transactionEntry.unregister();
+    }
+    if (frame.deadlineChanged) {
+      deadline = frame.previousDeadline;
+      hasDeadline = frame.previousHasDeadline;
+    }
+    if (frame.readOnlyChanged) {
+      readOnly = !readOnly;
+    }
+    frame.reset();
+    if (depth == 0) {
+      transaction = null;
+      binding.release();
+      binding = null;
+    }
+  }
+}
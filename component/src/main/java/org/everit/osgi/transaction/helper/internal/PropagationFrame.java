@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.RollbackRules;
+
+/**
+ * Records what a propagation call of {@link TransactionHelperImpl} did with the transaction of the
+ * thread before the callback was called, so the call can be completed in the right way. Frames
+ * are reused by the {@link PropagationContext} of the thread.
+ */
+final class PropagationFrame {
+
+  /**
+   * The admission control that admitted the transaction begun by the call or <code>null</code>.
+   */
+  AdmissionControl admissionControl;
+
+  /**
+   * Whether the call began a new transaction that it has to commit or roll back.
+   */
+  boolean began;
+
+  /**
+   * The {@link System#nanoTime()} when the callback was called if the metrics are enabled.
+   */
+  long callbackStartTime;
+
+  final PropagationContext context;
+
+  /**
+   * Whether the call changed the {@link PropagationContext#deadline}.
+   */
+  boolean deadlineChanged;
+
+  /**
+   * The transaction that was joined by the call or <code>null</code> if no transaction was joined.
+   */
+  Transaction joinedTransaction;
+
+  /**
+   * The value of {@link PropagationContext#deadline} before the call changed it.
+   */
+  long previousDeadline;
+
+  /**
+   * The value of {@link PropagationContext#hasDeadline} before the call changed the deadline.
+   */
+  boolean previousHasDeadline;
+
+  /**
+   * The value of {@link PropagationContext#transaction} before the call changed the transaction of
+   * the thread.
+   */
+  Transaction previousTransaction;
+
+  Propagation propagation;
+
+  /**
+   * Whether the call changed the {@link PropagationContext#readOnly} flag.
+   */
+  boolean readOnlyChanged;
+
+  /**
+   * The rollback rules of the call or <code>null</code> if the default rules of the helper apply.
+   */
+  RollbackRules rollbackRules;
+
+  /**
+   * The nested scope that was opened by the call in the joined transaction or <code>null</code>.
+   */
+  SavepointScope savepointScope;
+
+  /**
+   * The transaction that was suspended by the call and has to be resumed or <code>null</code> if
+   * no transaction was suspended.
+   */
+  Transaction suspendedTransaction;
+
+  /**
+   * The registration of the suspended transaction in the in-flight registry or <code>null</code>.
+   */
+  InFlightEntry suspensionEntry;
+
+  /**
+   * The registration of the begun transaction in the in-flight registry or <code>null</code>.
+   */
+  InFlightEntry transactionEntry;
+
+  PropagationFrame(final PropagationContext context) {
+    this.context = context;
+  }
+
+  void reset() {
+    admissionControl = null;
+    began = false;
+    deadlineChanged = false;
+    joinedTransaction = null;
+    previousTransaction = null;
+    propagation = null;
+    readOnlyChanged = false;
+    rollbackRules = null;
+    savepointScope = null;
+    suspendedTransaction = null;
+    suspensionEntry = null;
+    transactionEntry = null;
+  }
+}
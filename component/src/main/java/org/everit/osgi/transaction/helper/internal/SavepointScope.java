@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.everit.osgi.transaction.helper.api.SavepointParticipant;
+
+/**
+ * A nested scope of a transaction with the savepoints of the participants that were set when the
+ * scope was opened or when the participant joined the transaction.
+ */
+final class SavepointScope {
+
+  /**
+   * A savepoint of a participant.
+   *
+   * @param <S>
+   *          Type of the savepoint.
+   */
+  private static final class Savepoint<S> {
+
+    static <S> Savepoint<S> set(final SavepointParticipant<S> participant) {
+      return new Savepoint<>(participant, participant.setSavepoint());
+    }
+
+    private final SavepointParticipant<S> participant;
+
+    private final S savepoint;
+
+    private Savepoint(final SavepointParticipant<S> participant, final S savepoint) {
+      this.participant = participant;
+      this.savepoint = savepoint;
+    }
+
+    void release() {
+      participant.releaseSavepoint(savepoint);
+    }
+
+    void rollback() {
+      participant.rollbackToSavepoint(savepoint);
+    }
+  }
+
+  private final SavepointScopes owner;
+
+  /**
+   * Whether a nested call failed in the scope and its exception was caught before it reached the
+   * call that opened the scope.
+   */
+  boolean rollbackRequested;
+
+  private final List<Savepoint<?>> savepoints = new ArrayList<>();
+
+  SavepointScope(final SavepointScopes owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * Closes the scope after its callback returned normally and releases the savepoints.
+   *
+   * @return Whether a failure was swallowed in the scope, so the transaction must be rolled back.
+   */
+  boolean release() {
+    owner.close(this);
+    releaseSavepoints();
+    return rollbackRequested;
+  }
+
+  /**
+   * Releases the savepoints in reverse order. Every savepoint is released even if some of them
+   * fail. The exception of the first failure is thrown with the others suppressed.
+   */
+  void releaseSavepoints() {
+    RuntimeException failure = null;
+    for (int i = savepoints.size() - 1; i >= 0; i--) {
+      try {
+        savepoints.get(i).release();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes the scope after its callback failed and rolls back the participants to the savepoints
+   * in reverse order.
+   *
+   * @param thrownThrowable
+   *          The exception of the callback. The failures of the rollbacks are suppressed in it.
+   * @return Whether every participant was rolled back.
+   */
+  boolean rollback(final Throwable thrownThrowable) {
+    owner.close(this);
+    boolean rolledBack = true;
+    for (int i = savepoints.size() - 1; i >= 0; i--) {
+      try {
+        savepoints.get(i).rollback();
+      } catch (RuntimeException e) {
+        thrownThrowable.addSuppressed(e);
+        rolledBack = false;
+      }
+    }
+    return rolledBack;
+  }
+
+  void setSavepoint(final SavepointParticipant<?> participant) {
+    savepoints.add(Savepoint.set(participant));
+  }
+}
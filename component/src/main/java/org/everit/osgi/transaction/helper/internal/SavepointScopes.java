@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.SavepointParticipant;
+
+/**
+ * The savepoint participants and the open nested scopes of one transaction. The object is removed
+ * from the map of the helper when the transaction completes. A transaction is used by one thread
+ * at a time, so the object is not synchronized.
+ */
+final class SavepointScopes implements Synchronization {
+
+  private final Deque<SavepointScope> openScopes = new ArrayDeque<>();
+
+  private final List<SavepointParticipant<?>> participants = new ArrayList<>();
+
+  private final Map<Transaction, SavepointScopes> scopesByTransaction;
+
+  private final Transaction transaction;
+
+  SavepointScopes(final Transaction transaction,
+      final Map<Transaction, SavepointScopes> scopesByTransaction) {
+    this.transaction = transaction;
+    this.scopesByTransaction = scopesByTransaction;
+  }
+
+  /**
+   * Adds a participant to the transaction. The participant did not do any work in the open scopes
+   * yet, so its savepoints of the open scopes are set right away.
+   */
+  void addParticipant(final SavepointParticipant<?> participant) {
+    for (SavepointScope scope : openScopes) {
+      scope.setSavepoint(participant);
+    }
+    participants.add(participant);
+  }
+
+  @Override
+  public void afterCompletion(final int status) {
+    scopesByTransaction.remove(transaction);
+  }
+
+  @Override
+  public void beforeCompletion() {
+    // Nothing to do before the completion
+  }
+
+  void close(final SavepointScope scope) {
+    if (openScopes.peek() != scope) {
+      throw new IllegalStateException("Nested scopes must be closed in reverse order");
+    }
+    openScopes.pop();
+  }
+
+  /**
+   * Returns the innermost open scope of the transaction.
+   *
+   * @return The scope or <code>null</code> if there is no open scope.
+   */
+  SavepointScope currentScope() {
+    return openScopes.peek();
+  }
+
+  /**
+   * Opens a nested scope and sets a savepoint on every participant. If a savepoint cannot be set,
+   * the savepoints that were already set are released and the exception is thrown.
+   */
+  SavepointScope open() {
+    SavepointScope scope = new SavepointScope(this);
+    try {
+      for (SavepointParticipant<?> participant : participants) {
+        scope.setSavepoint(participant);
+      }
+    } catch (RuntimeException e) {
+      try {
+        scope.releaseSavepoints();
+      } catch (RuntimeException releaseException) {
+        e.addSuppressed(releaseException);
+      }
+      throw e;
+    }
+    openScopes.push(scope);
+    return scope;
+  }
+}
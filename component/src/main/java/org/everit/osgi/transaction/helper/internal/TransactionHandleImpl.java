@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.TransactionHandle;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+
+/**
+ * A transaction of a {@link TransactionHelperImpl} that is not associated with any thread. The
+ * handle resumes the transaction on the thread that uses it and suspends it when the call returns.
+ * The state of the handle makes sure that only one thread may use it at a time. If the helper
+ * began the transaction, the handle holds its admission and in-flight registration until the
+ * transaction is completed.
+ */
+final class TransactionHandleImpl implements TransactionHandle {
+
+  private static final int ATTACHED = 1;
+
+  private static final int COMPLETED = 2;
+
+  private static final int DETACHED = 0;
+
+  /**
+   * The admission control that admitted the transaction or <code>null</code>.
+   */
+  private final AdmissionControl admissionControl;
+
+  private final TransactionManagerBinding binding;
+
+  private final TransactionHelperImpl helper;
+
+  /**
+   * The thread that the transaction is attached to. Only used in the messages of the exceptions.
+   */
+  private volatile Thread owner;
+
+  /**
+   * The propagation of the call that began the transaction or <code>null</code> if the
+   * transaction was not begun by the helper.
+   */
+  private final Propagation propagation;
+
+  private final AtomicInteger state = new AtomicInteger(DETACHED);
+
+  private final Transaction transaction;
+
+  /**
+   * The registration of the transaction in the in-flight registry or <code>null</code>.
+   */
+  private final InFlightEntry transactionEntry;
+
+  TransactionHandleImpl(final TransactionHelperImpl helper,
+      final TransactionManagerBinding binding, final Transaction transaction,
+      final Propagation propagation, final AdmissionControl admissionControl,
+      final InFlightEntry transactionEntry) {
+    this.helper = helper;
+    this.binding = binding;
+    this.transaction = transaction;
+    this.propagation = propagation;
+    this.admissionControl = admissionControl;
+    this.transactionEntry = transactionEntry;
+  }
+
+  /**
+   * Takes the ownership of the handle and resumes the transaction on the current thread.
+   */
+  private void attach() {
+    if (!state.compareAndSet(DETACHED, ATTACHED)) {
+      if (state.get() == COMPLETED) {
+        throw new IllegalStateException("The transaction of the handle is already completed");
+      }
+      throw new IllegalStateException(
+          "The transaction of the handle is attached to thread " + owner);
+    }
+    owner = Thread.currentThread();
+    boolean resumed = false;
+    try {
+      checkThreadIsFree();
+      binding.transactionManager.resume(transaction);
+      resumed = true;
+    } catch (InvalidTransactionException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    } finally {
+      if (!resumed) {
+        release(DETACHED);
+      }
+    }
+  }
+
+  @Override
+  public <R> R call(final Supplier<R> callback) {
+    attach();
+    R result;
+    try {
+      result = helper.callAttached(binding, callback);
+    } catch (Throwable e) {
+      try {
+        suspend();
+      } catch (Throwable suspendException) {
+        e.addSuppressed(suspendException);
+      }
+      throw e;
+    }
+    suspend();
+    return result;
+  }
+
+  private void checkThreadIsFree() throws SystemException {
+    if (helper.isInCall()) {
+      throw new IllegalStateException(
+          "The transaction cannot be attached inside a propagation call of the helper");
+    }
+    int status = binding.transactionManager.getStatus();
+    if (status != Status.STATUS_NO_TRANSACTION) {
+      throw new IllegalStateException(
+          "The transaction cannot be attached as the thread has a transaction with status "
+              + status);
+    }
+  }
+
+  @Override
+  public void commit() {
+    attach();
+    try {
+      helper.commitAttached(binding.transactionManager, propagation);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (HeuristicMixedException e) {
+      throw new TransactionalException(e);
+    } catch (HeuristicRollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    } finally {
+      complete();
+    }
+  }
+
+  /**
+   * Makes the handle unusable and releases the transaction manager, the admission and the
+   * in-flight registration. The transaction manager disassociates the transaction from the thread
+   * when it completes.
+   */
+  private void complete() {
+    release(COMPLETED);
+    if (admissionControl != null) {
+      admissionControl.release();
+    }
+    if (transactionEntry != null) {
+      transactionEntry.unregister();
+    }
+    binding.release();
+  }
+
+  @Override
+  public boolean isCompleted() {
+    return state.get() == COMPLETED;
+  }
+
+  private void release(final int newState) {
+    owner = null;
+    state.set(newState);
+  }
+
+  @Override
+  public void rollback() {
+    attach();
+    try {
+      helper.rollbackAttached(binding.transactionManager, propagation);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    } finally {
+      complete();
+    }
+  }
+
+  @Override
+  public void run(final Runnable callback) {
+    call(() -> {
+      callback.run();
+      return null;
+    });
+  }
+
+  /**
+   * Suspends the transaction on the current thread and gives up the ownership of the handle.
+   */
+  private void suspend() {
+    try {
+      binding.transactionManager.suspend();
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    } finally {
+      release(DETACHED);
+    }
+  }
+}
@@ -15,58 +15,905 @@
  */
 package org.everit.osgi.transaction.helper.internal;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.transaction.TransactionManager;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.ReferencePolicyOption;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.ChunkSubscriber;
+import org.everit.osgi.transaction.helper.api.EnlistmentMetrics;
+import org.everit.osgi.transaction.helper.api.InFlightTransaction;
+import org.everit.osgi.transaction.helper.api.InFlightTransactionRegistry;
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.RollbackRules;
+import org.everit.osgi.transaction.helper.api.SavepointParticipant;
+import org.everit.osgi.transaction.helper.api.TransactionHandle;
 import org.everit.osgi.transaction.helper.api.TransactionHelper;
+import org.everit.osgi.transaction.helper.api.TransactionHelperListener;
+import org.everit.osgi.transaction.helper.api.TransactionHelperMetrics;
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.ComponentException;
 
 /**
- * Implementation of {@link TransactionHelper}.
+ * Implementation of {@link TransactionHelper}. The metrics of the helper are registered as a
+ * {@link TransactionHelperMetrics} OSGi service and as an MXBean on the platform MBean server. The
+ * in-flight transactions are available via the {@link InFlightTransactionRegistry} OSGi service
+ * and the watchdog of the component logs the transactions that run longer than the configured
+ * threshold. If lazy begin or enlistment tracking is enabled, the helper uses a decorated
+ * transaction manager that is registered as a {@link TransactionManager} OSGi service with the
+ * {@value #PROP_DECORATED}=true property and the lowest ranking, so the resources that take part
+ * in the transactions of the helper can target it. The default target of the transaction manager
+ * reference excludes the decorated transaction managers. The statistics of the enlistment
+ * tracking are registered as an {@link EnlistmentMetrics} OSGi service and as an MXBean. The
+ * transaction manager is bound dynamically: a transaction manager with a higher ranking replaces
+ * the bound one without restarting the component, and an unbound transaction manager is released
+ * after the calls that still use it return. The {@link TransactionHelperListener} OSGi services
+ * are picked up dynamically and are notified of the events of the transactions.
  */
 @Component(name = "org.everit.osgi.transaction.helper.TransactionHelper", metatype = true)
-@Properties({ @Property(name = "transactionManager.target") })
+@Properties({
+    @Property(name = "transactionManager.target",
+        value = "(!(" + TransactionHelperComponent.PROP_DECORATED + "=true))"),
+    @Property(name = TransactionHelperComponent.PROP_ADMISSION_MAX_CONCURRENT, intValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_ADMISSION_MAX_QUEUE_LENGTH, intValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_ADMISSION_TIMEOUT_MILLIS, longValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_ENLISTMENT_TRACKING_ENABLED,
+        boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_GROUP_COMMIT_MAX_GROUP_SIZE, intValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_GROUP_COMMIT_WINDOW_MICROS, longValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_HOOK_EXECUTOR_THREAD_COUNT, intValue = 0),
+    @Property(name = TransactionHelperComponent.PROP_LAZY_BEGIN_ENABLED, boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_METRICS_ENABLED, boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_NO_ROLLBACK_FOR,
+        cardinality = Integer.MAX_VALUE),
+    @Property(name = TransactionHelperComponent.PROP_READ_ONLY_CHECK_ENABLED, boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_ROLLBACK_FOR, cardinality = Integer.MAX_VALUE),
+    @Property(name = TransactionHelperComponent.PROP_THREAD_TRANSACTION_CACHE_ENABLED,
+        boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS,
+        longValue = TransactionHelperComponent.DEFAULT_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS),
+    @Property(name = TransactionHelperComponent.PROP_IN_FLIGHT_REGISTRY_ENABLED,
+        boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_IN_FLIGHT_REGISTRY_CAPTURE_CALL_SITE,
+        boolValue = false),
+    @Property(name = TransactionHelperComponent.PROP_WATCHDOG_THRESHOLD_MILLIS, longValue = 0) })
 @Service(value = TransactionHelper.class)
-@Reference(name = "transactionManager", referenceInterface = TransactionManager.class,
-    policy = ReferencePolicy.STATIC,
-    bind = "setTransactionManager")
+@References({
+    @Reference(name = "transactionManager", referenceInterface = TransactionManager.class,
+        policy = ReferencePolicy.DYNAMIC, policyOption = ReferencePolicyOption.GREEDY,
+        bind = "setTransactionManager", unbind = "unbindTransactionManager"),
+    @Reference(name = "listener", referenceInterface = TransactionHelperListener.class,
+        cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC,
+        bind = "bindListener", unbind = "unbindListener") })
 public class TransactionHelperComponent implements TransactionHelper {
 
+  /**
+   * A transaction manager that was replaced or unbound and may still be used by running calls.
+   */
+  private static final class RetiredTransactionManager {
+
+    private final TransactionManagerBinding binding;
+
+    private TransactionManager decoratedTransactionManager;
+
+    private ServiceRegistration<TransactionManager> decoratedTransactionManagerServiceRegistration;
+
+    RetiredTransactionManager(final TransactionManagerBinding binding,
+        final TransactionManager decoratedTransactionManager,
+        final ServiceRegistration<TransactionManager> decoratedServiceRegistration) {
+      this.binding = binding;
+      this.decoratedTransactionManager = decoratedTransactionManager;
+      decoratedTransactionManagerServiceRegistration = decoratedServiceRegistration;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(TransactionHelperComponent.class.getName());
+
+  /**
+   * The maximum number of mergeable units in one transaction if it is not configured.
+   */
+  public static final int DEFAULT_GROUP_COMMIT_MAX_GROUP_SIZE = 64;
+
+  /**
+   * The time in milliseconds the calls of an unbound transaction manager are waited for if it is
+   * not configured.
+   */
+  public static final long DEFAULT_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * Domain of the object names of the metrics MXBeans.
+   */
+  public static final String METRICS_OBJECT_NAME_DOMAIN = "org.everit.osgi.transaction.helper";
+
+  /**
+   * Configuration property of the maximum number of transactions that the helper begins and that
+   * run at the same time. Zero switches the admission control off.
+   */
+  public static final String PROP_ADMISSION_MAX_CONCURRENT = "admission.maxConcurrent";
+
+  /**
+   * Configuration property of the maximum number of transactions that wait for admission.
+   */
+  public static final String PROP_ADMISSION_MAX_QUEUE_LENGTH = "admission.maxQueueLength";
+
+  /**
+   * Configuration property of the maximum time in milliseconds a transaction waits for admission.
+   */
+  public static final String PROP_ADMISSION_TIMEOUT_MILLIS = "admission.timeoutMillis";
+
+  /**
+   * Service property of the decorated transaction managers that the component registers. Its
+   * value is <code>true</code>.
+   */
+  public static final String PROP_DECORATED = "org.everit.osgi.transaction.helper.decorated";
+
+  /**
+   * Configuration property that enables counting the resources of the transactions and timing
+   * their prepare and commit calls.
+   */
+  public static final String PROP_ENLISTMENT_TRACKING_ENABLED = "enlistmentTracking.enabled";
+
+  /**
+   * Configuration property of the maximum number of mergeable units in one transaction.
+   */
+  public static final String PROP_GROUP_COMMIT_MAX_GROUP_SIZE = "groupCommit.maxGroupSize";
+
+  /**
+   * Configuration property of the time in microseconds the mergeable units are gathered for. Zero
+   * switches group commit off.
+   */
+  public static final String PROP_GROUP_COMMIT_WINDOW_MICROS = "groupCommit.windowMicros";
+
+  /**
+   * Configuration property of the number of threads that call the completion hooks. Zero means
+   * that the hooks are called on the thread that completes the transaction.
+   */
+  public static final String PROP_HOOK_EXECUTOR_THREAD_COUNT = "hookExecutor.threadCount";
+
+  /**
+   * Configuration property that enables capturing the stack when a transaction is registered in
+   * the in-flight registry.
+   */
+  public static final String PROP_IN_FLIGHT_REGISTRY_CAPTURE_CALL_SITE =
+      "inFlightRegistry.captureCallSite";
+
+  /**
+   * Configuration property that enables the registration of the in-flight transactions.
+   */
+  public static final String PROP_IN_FLIGHT_REGISTRY_ENABLED = "inFlightRegistry.enabled";
+
+  /**
+   * Configuration property that makes the helper begin the transactions only when a resource is
+   * enlisted or a synchronization is registered.
+   */
+  public static final String PROP_LAZY_BEGIN_ENABLED = "lazyBegin.enabled";
+
+  /**
+   * Configuration property that enables the measurement of the metrics.
+   */
+  public static final String PROP_METRICS_ENABLED = "metrics.enabled";
+
+  /**
+   * Configuration property of the names of the exception classes that do not roll back the
+   * transactions by default.
+   */
+  public static final String PROP_NO_ROLLBACK_FOR = "noRollbackFor";
+
+  /**
+   * Configuration property that enables the detection of write requests in read-only
+   * transactions. Meant for debugging.
+   */
+  public static final String PROP_READ_ONLY_CHECK_ENABLED = "readOnly.checkEnabled";
+
+  /**
+   * Configuration property of the names of the exception classes that roll back the transactions
+   * even if a superclass is listed in {@link #PROP_NO_ROLLBACK_FOR}.
+   */
+  public static final String PROP_ROLLBACK_FOR = "rollbackFor";
+
+  /**
+   * Configuration property that lets nested calls use the transaction that the helper began or
+   * joined on the thread without asking the transaction manager. Only safe if the callbacks do not
+   * change the transaction of the thread directly on the transaction manager.
+   */
+  public static final String PROP_THREAD_TRANSACTION_CACHE_ENABLED =
+      "threadTransactionCache.enabled";
+
+  /**
+   * Configuration property of the maximum time in milliseconds the unbinding of a transaction
+   * manager waits for the calls that still use it.
+   */
+  public static final String PROP_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS =
+      "transactionManager.drainTimeoutMillis";
+
+  /**
+   * Configuration property of the time after an in-flight transaction is reported by the watchdog.
+   * Zero switches the watchdog off, any other value enables the in-flight registry as well.
+   */
+  public static final String PROP_WATCHDOG_THRESHOLD_MILLIS = "watchdog.thresholdMillis";
+
+  private static boolean booleanProperty(final Dictionary<String, Object> properties,
+      final String name) {
+    Object value = properties.get(name);
+    if (value instanceof Boolean) {
+      return (Boolean) value;
+    }
+    return Boolean.parseBoolean(String.valueOf(value));
+  }
+
+  private static long longProperty(final Dictionary<String, Object> properties,
+      final String name) {
+    Object value = properties.get(name);
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    try {
+      return Long.parseLong(String.valueOf(value).trim());
+    } catch (NumberFormatException e) {
+      throw new ComponentException("Invalid value of " + name + ": " + value, e);
+    }
+  }
+
+  /**
+   * Logs a long running transaction. The stack of its thread and the call site are logged as
+   * the stack traces of throwables.
+   */
+  private static void reportLongRunningTransaction(final InFlightTransaction transaction) {
+    Throwable threadStack = new Throwable("Stack of thread " + transaction.getThreadName());
+    threadStack.setStackTrace(transaction.getThreadStack());
+    if (transaction.getCallSite() != null) {
+      Throwable callSite = new Throwable("Call site");
+      callSite.setStackTrace(transaction.getCallSite());
+      threadStack.initCause(callSite);
+    }
+    LOGGER.log(Level.WARNING, "Long running transaction: " + transaction, threadStack);
+  }
+
+  /**
+   * Reads a property that may be a single string or an array of strings. Empty strings are
+   * ignored.
+   */
+  private static String[] stringArrayProperty(final Dictionary<String, Object> properties,
+      final String name) {
+    Object value = properties.get(name);
+    if (value == null) {
+      return new String[0];
+    }
+    String[] values = (value instanceof String[])
+        ? (String[]) value
+        : new String[] { String.valueOf(value) };
+    List<String> result = new ArrayList<>(values.length);
+    for (String element : values) {
+      if ((element != null) && !element.trim().isEmpty()) {
+        result.add(element.trim());
+      }
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  private BundleContext bundleContext;
+
+  private TransactionManager decoratedTransactionManager;
+
+  private ServiceRegistration<TransactionManager> decoratedTransactionManagerServiceRegistration;
+
+  private volatile long drainTimeoutMillis = DEFAULT_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS;
+
+  private EnlistmentMetricsImpl enlistmentMetrics;
+
+  private ObjectName enlistmentMetricsObjectName;
+
+  private ServiceRegistration<EnlistmentMetrics> enlistmentMetricsServiceRegistration;
+
+  private boolean enlistmentTrackingEnabled;
+
+  private ExecutorService hookExecutor;
+
+  private ServiceRegistration<InFlightTransactionRegistry> inFlightRegistryServiceRegistration;
+
+  private boolean lazyBeginEnabled;
+
+  private ObjectName metricsObjectName;
+
+  private ServiceRegistration<TransactionHelperMetrics> metricsServiceRegistration;
+
+  private final Map<TransactionManager, RetiredTransactionManager> retiredTransactionManagers =
+      new IdentityHashMap<>();
+
+  private TransactionManager transactionManager;
+
+  private TransactionWatchdog watchdog;
+
   TransactionHelperImpl wrapped = new TransactionHelperImpl();
 
+  /**
+   * Registers the metrics and the in-flight registry of the helper and starts the watchdog and the
+   * executor of the completion hooks. The whole configuration is validated before anything is
+   * registered, and the registrations are undone if one of them fails.
+   *
+   * @param componentContext
+   *          The context of the component.
+   */
+  @Activate
+  public void activate(final ComponentContext componentContext) {
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    RollbackRules rollbackRules = null;
+    String[] rollbackFor = stringArrayProperty(properties, PROP_ROLLBACK_FOR);
+    String[] noRollbackFor = stringArrayProperty(properties, PROP_NO_ROLLBACK_FOR);
+    if ((rollbackFor.length > 0) || (noRollbackFor.length > 0)) {
+      try {
+        rollbackRules = new RollbackRules(rollbackFor, noRollbackFor);
+      } catch (IllegalArgumentException e) {
+        throw new ComponentException("Invalid rollback rules", e);
+      }
+    }
+
+    AdmissionControl admissionControl = null;
+    int admissionMaxConcurrent = (int) longProperty(properties, PROP_ADMISSION_MAX_CONCURRENT);
+    if (admissionMaxConcurrent > 0) {
+      try {
+        admissionControl = new AdmissionControl(admissionMaxConcurrent,
+            (int) longProperty(properties, PROP_ADMISSION_MAX_QUEUE_LENGTH),
+            longProperty(properties, PROP_ADMISSION_TIMEOUT_MILLIS));
+      } catch (IllegalArgumentException e) {
+        throw new ComponentException("Invalid admission control configuration", e);
+      }
+    }
+
+    GroupCommit groupCommit = null;
+    long groupCommitWindowMicros = longProperty(properties, PROP_GROUP_COMMIT_WINDOW_MICROS);
+    if (groupCommitWindowMicros > 0) {
+      int maxGroupSize = (int) longProperty(properties, PROP_GROUP_COMMIT_MAX_GROUP_SIZE);
+      try {
+        groupCommit = new GroupCommit(wrapped, groupCommitWindowMicros,
+            (maxGroupSize > 0) ? maxGroupSize : DEFAULT_GROUP_COMMIT_MAX_GROUP_SIZE);
+      } catch (IllegalArgumentException e) {
+        throw new ComponentException("Invalid group commit configuration", e);
+      }
+    }
+
+    long watchdogThresholdMillis = longProperty(properties, PROP_WATCHDOG_THRESHOLD_MILLIS);
+    long configuredDrainTimeoutMillis =
+        longProperty(properties, PROP_TRANSACTION_MANAGER_DRAIN_TIMEOUT_MILLIS);
+    int hookThreadCount = (int) longProperty(properties, PROP_HOOK_EXECUTOR_THREAD_COUNT);
+    boolean metricsEnabled = booleanProperty(properties, PROP_METRICS_ENABLED);
+    boolean readOnlyCheckEnabled = booleanProperty(properties, PROP_READ_ONLY_CHECK_ENABLED);
+    boolean threadTransactionCacheEnabled =
+        booleanProperty(properties, PROP_THREAD_TRANSACTION_CACHE_ENABLED);
+    boolean inFlightRegistryEnabled = booleanProperty(properties, PROP_IN_FLIGHT_REGISTRY_ENABLED)
+        || (watchdogThresholdMillis > 0);
+    boolean captureCallSite =
+        booleanProperty(properties, PROP_IN_FLIGHT_REGISTRY_CAPTURE_CALL_SITE);
+    boolean trackingEnabled = booleanProperty(properties, PROP_ENLISTMENT_TRACKING_ENABLED);
+    boolean configuredLazyBeginEnabled = booleanProperty(properties, PROP_LAZY_BEGIN_ENABLED);
+
+    TransactionHelperMetrics metrics = wrapped.getMetrics();
+    metrics.setEnabled(metricsEnabled);
+    wrapped.setReadOnlyCheckEnabled(readOnlyCheckEnabled);
+    wrapped.setThreadTransactionCacheEnabled(threadTransactionCacheEnabled);
+    wrapped.setRollbackRules(rollbackRules);
+    wrapped.setAdmissionControl(admissionControl);
+    wrapped.setGroupCommit(groupCommit);
+    if (configuredDrainTimeoutMillis > 0) {
+      drainTimeoutMillis = configuredDrainTimeoutMillis;
+    }
+    InFlightTransactionRegistryImpl inFlightRegistry = wrapped.inFlightRegistry;
+    inFlightRegistry.setEnabled(inFlightRegistryEnabled);
+    inFlightRegistry.setCaptureCallSite(captureCallSite);
+
+    try {
+      register(componentContext, metrics, trackingEnabled, configuredLazyBeginEnabled);
+    } catch (RuntimeException e) {
+      try {
+        deactivate();
+      } catch (RuntimeException deactivationException) {
+        e.addSuppressed(deactivationException);
+      }
+      throw e;
+    }
+
+    if (watchdogThresholdMillis > 0) {
+      watchdog = new TransactionWatchdog(inFlightRegistry, watchdogThresholdMillis,
+          TransactionHelperComponent::reportLongRunningTransaction);
+      watchdog.start();
+    }
+    if (hookThreadCount > 0) {
+      hookExecutor = Executors.newFixedThreadPool(hookThreadCount, (runnable) -> {
+        Thread thread = new Thread(runnable, "TransactionHelper completion hooks");
+        thread.setDaemon(true);
+        return thread;
+      });
+      wrapped.setHookExecutor(hookExecutor);
+    }
+  }
+
+  /**
+   * Stops the watchdog and the executor of the completion hooks and unregisters the metrics and the
+   * in-flight registry of the helper. The hooks that are already passed to the executor are still
+   * called.
+   */
+  @Deactivate
+  public void deactivate() {
+    if (hookExecutor != null) {
+      wrapped.setHookExecutor(null);
+      hookExecutor.shutdown();
+      hookExecutor = null;
+    }
+    synchronized (this) {
+      // The helper keeps the decorated transaction manager until it is unbound, so the running
+      // calls can finish
+      if (decoratedTransactionManagerServiceRegistration != null) {
+        decoratedTransactionManagerServiceRegistration.unregister();
+        decoratedTransactionManagerServiceRegistration = null;
+      }
+      for (RetiredTransactionManager retired : retiredTransactionManagers.values()) {
+        if (retired.decoratedTransactionManagerServiceRegistration != null) {
+          retired.decoratedTransactionManagerServiceRegistration.unregister();
+          retired.decoratedTransactionManagerServiceRegistration = null;
+        }
+      }
+      bundleContext = null;
+    }
+    if (enlistmentMetricsServiceRegistration != null) {
+      enlistmentMetricsServiceRegistration.unregister();
+      enlistmentMetricsServiceRegistration = null;
+    }
+    if (enlistmentMetricsObjectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(enlistmentMetricsObjectName);
+      } catch (JMException e) {
+        throw new ComponentException("Could not unregister the enlistment metrics MXBean", e);
+      } finally {
+        enlistmentMetricsObjectName = null;
+      }
+    }
+    if (watchdog != null) {
+      watchdog.stop();
+      watchdog = null;
+    }
+    if (inFlightRegistryServiceRegistration != null) {
+      inFlightRegistryServiceRegistration.unregister();
+      inFlightRegistryServiceRegistration = null;
+    }
+    if (metricsServiceRegistration != null) {
+      metricsServiceRegistration.unregister();
+      metricsServiceRegistration = null;
+    }
+    if (metricsObjectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+      } catch (JMException e) {
+        throw new ComponentException("Could not unregister the metrics MXBean", e);
+      } finally {
+        metricsObjectName = null;
+      }
+    }
+  }
+
+  @Override
+  public TransactionHandle detach() {
+    return wrapped.detach();
+  }
+
+  @Override
+  public void afterCommit(final Runnable hook) {
+    wrapped.afterCommit(hook);
+  }
+
+  @Override
+  public void afterCompletion(final IntConsumer hook) {
+    wrapped.afterCompletion(hook);
+  }
+
+  @Override
+  public TransactionHandle beginDetached() {
+    return wrapped.beginDetached();
+  }
+
+  protected void bindListener(final TransactionHelperListener listener) {
+    wrapped.addListener(listener);
+  }
+
+  /**
+   * Waits until the calls that use a retired transaction manager return and unregisters its
+   * decorated version. If the calls do not return in time, a warning is logged and the transaction
+   * manager is released anyway.
+   */
+  private void drain(final RetiredTransactionManager retired) {
+    long timeoutMillis = drainTimeoutMillis;
+    try {
+      if ((retired.binding != null) && !retired.binding.awaitDrained(timeoutMillis)) {
+        LOGGER.warning("Calls of the helper still use the unbound transaction manager after "
+            + timeoutMillis + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.WARNING,
+          "Interrupted while waiting for the calls of the unbound transaction manager", e);
+    }
+    ServiceRegistration<TransactionManager> serviceRegistration;
+    synchronized (this) {
+      serviceRegistration = retired.decoratedTransactionManagerServiceRegistration;
+      retired.decoratedTransactionManagerServiceRegistration = null;
+      retired.decoratedTransactionManager = null;
+    }
+    if (serviceRegistration != null) {
+      serviceRegistration.unregister();
+    }
+  }
+
+  /**
+   * Whether the transaction manager is a decorated one that is registered by this component, so
+   * it must not be bound by the component itself.
+   */
+  private boolean isOwnTransactionManager(final TransactionManager transactionManager) {
+    if (decoratedTransactionManager == transactionManager) {
+      return true;
+    }
+    for (RetiredTransactionManager retired : retiredTransactionManagers.values()) {
+      if (retired.decoratedTransactionManager == transactionManager) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public <R> R mandatory(final Supplier<R> callback) {
     return wrapped.mandatory(callback);
   }
 
+  @Override
+  public boolean mandatoryAsBoolean(final BooleanSupplier callback) {
+    return wrapped.mandatoryAsBoolean(callback);
+  }
+
+  @Override
+  public int mandatoryAsInt(final IntSupplier callback) {
+    return wrapped.mandatoryAsInt(callback);
+  }
+
+  @Override
+  public long mandatoryAsLong(final LongSupplier callback) {
+    return wrapped.mandatoryAsLong(callback);
+  }
+
+  @Override
+  public void mandatoryAsVoid(final Runnable callback) {
+    wrapped.mandatoryAsVoid(callback);
+  }
+
+  @Override
+  public <R> R nested(final Supplier<R> callback) {
+    return wrapped.nested(callback);
+  }
+
+  @Override
+  public void nestedAsVoid(final Runnable callback) {
+    wrapped.nestedAsVoid(callback);
+  }
+
   @Override
   public <R> R never(final Supplier<R> callback) {
     return wrapped.never(callback);
   }
 
+  @Override
+  public boolean neverAsBoolean(final BooleanSupplier callback) {
+    return wrapped.neverAsBoolean(callback);
+  }
+
+  @Override
+  public int neverAsInt(final IntSupplier callback) {
+    return wrapped.neverAsInt(callback);
+  }
+
+  @Override
+  public long neverAsLong(final LongSupplier callback) {
+    return wrapped.neverAsLong(callback);
+  }
+
+  @Override
+  public void neverAsVoid(final Runnable callback) {
+    wrapped.neverAsVoid(callback);
+  }
+
   @Override
   public <R> R notSupported(final Supplier<R> callback) {
     return wrapped.notSupported(callback);
   }
 
+  @Override
+  public boolean notSupportedAsBoolean(final BooleanSupplier callback) {
+    return wrapped.notSupportedAsBoolean(callback);
+  }
+
+  @Override
+  public int notSupportedAsInt(final IntSupplier callback) {
+    return wrapped.notSupportedAsInt(callback);
+  }
+
+  @Override
+  public long notSupportedAsLong(final LongSupplier callback) {
+    return wrapped.notSupportedAsLong(callback);
+  }
+
+  @Override
+  public void notSupportedAsVoid(final Runnable callback) {
+    wrapped.notSupportedAsVoid(callback);
+  }
+
+  /**
+   * Passes the bound transaction manager to the helper. If the component is active and lazy begin
+   * or enlistment tracking is enabled, the transaction manager is decorated and the decorated one
+   * is registered as an OSGi service with the {@value #PROP_DECORATED}=true property and the lowest
+   * ranking, so the resources can target it.
+   *
+   * @return The binding of the transaction manager that was used by the helper before or
+   *         <code>null</code>.
+   */
+  private TransactionManagerBinding publishTransactionManager() {
+    decoratedTransactionManager = null;
+    decoratedTransactionManagerServiceRegistration = null;
+    if ((transactionManager == null) || (bundleContext == null)
+        || !(enlistmentTrackingEnabled || lazyBeginEnabled)) {
+      return wrapped.swapTransactionManager(transactionManager);
+    }
+    TransactionManager decorated = transactionManager;
+    if (enlistmentTrackingEnabled) {
+      decorated = new EnlistmentTrackingTransactionManager(decorated, enlistmentMetrics);
+    }
+    if (lazyBeginEnabled) {
+      decorated = new LazyTransactionManager(decorated);
+    }
+    TransactionManagerBinding previousBinding = wrapped.swapTransactionManager(decorated);
+    decoratedTransactionManager = decorated;
+    Dictionary<String, Object> decoratedServiceProperties = new Hashtable<>();
+    decoratedServiceProperties.put(PROP_DECORATED, Boolean.TRUE);
+    decoratedServiceProperties.put(PROP_ENLISTMENT_TRACKING_ENABLED, enlistmentTrackingEnabled);
+    decoratedServiceProperties.put(PROP_LAZY_BEGIN_ENABLED, lazyBeginEnabled);
+    decoratedServiceProperties.put(Constants.SERVICE_RANKING, Integer.MIN_VALUE);
+    decoratedTransactionManagerServiceRegistration = bundleContext.registerService(
+        TransactionManager.class, decorated, decoratedServiceProperties);
+    return previousBinding;
+  }
+
+  @Override
+  public <R> R readOnly(final Supplier<R> callback) {
+    return wrapped.readOnly(callback);
+  }
+
+  @Override
+  public void readOnlyAsVoid(final Runnable callback) {
+    wrapped.readOnlyAsVoid(callback);
+  }
+
+  /**
+   * Registers the MXBeans and the OSGi services of the component and publishes the decorated
+   * transaction manager. The registrations that were done before a failure are kept in the fields,
+   * so {@link #deactivate()} can undo them.
+   */
+  private void register(final ComponentContext componentContext,
+      final TransactionHelperMetrics metrics, final boolean trackingEnabled,
+      final boolean configuredLazyBeginEnabled) {
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    BundleContext bundleContext = componentContext.getBundleContext();
+    try {
+      ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME_DOMAIN
+          + ":type=TransactionHelperMetrics,componentId="
+          + properties.get(ComponentConstants.COMPONENT_ID));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+      metricsObjectName = objectName;
+    } catch (JMException e) {
+      throw new ComponentException("Could not register the metrics MXBean", e);
+    }
+
+    Dictionary<String, Object> serviceProperties = new Hashtable<>();
+    serviceProperties.put("jmx.objectname", metricsObjectName.toString());
+    metricsServiceRegistration =
+        bundleContext.registerService(TransactionHelperMetrics.class, metrics, serviceProperties);
+    inFlightRegistryServiceRegistration = bundleContext
+        .registerService(InFlightTransactionRegistry.class, wrapped.inFlightRegistry, null);
+
+    EnlistmentMetricsImpl trackingMetrics = null;
+    if (trackingEnabled) {
+      trackingMetrics = new EnlistmentMetricsImpl();
+      try {
+        ObjectName objectName = new ObjectName(METRICS_OBJECT_NAME_DOMAIN
+            + ":type=EnlistmentMetrics,componentId="
+            + properties.get(ComponentConstants.COMPONENT_ID));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(trackingMetrics, objectName);
+        enlistmentMetricsObjectName = objectName;
+      } catch (JMException e) {
+        throw new ComponentException("Could not register the enlistment metrics MXBean", e);
+      }
+      Dictionary<String, Object> enlistmentServiceProperties = new Hashtable<>();
+      enlistmentServiceProperties.put("jmx.objectname", enlistmentMetricsObjectName.toString());
+      enlistmentMetricsServiceRegistration = bundleContext.registerService(
+          EnlistmentMetrics.class, trackingMetrics, enlistmentServiceProperties);
+    }
+    synchronized (this) {
+      this.bundleContext = bundleContext;
+      enlistmentMetrics = trackingMetrics;
+      enlistmentTrackingEnabled = trackingEnabled;
+      lazyBeginEnabled = configuredLazyBeginEnabled;
+      // Nothing could use the undecorated transaction manager before the activation
+      publishTransactionManager();
+    }
+  }
+
+  @Override
+  public void registerSavepointParticipant(final SavepointParticipant<?> participant) {
+    wrapped.registerSavepointParticipant(participant);
+  }
+
   @Override
   public <R> R required(final Supplier<R> callback) {
     return wrapped.required(callback);
   }
 
+  @Override
+  public boolean requiredAsBoolean(final BooleanSupplier callback) {
+    return wrapped.requiredAsBoolean(callback);
+  }
+
+  @Override
+  public int requiredAsInt(final IntSupplier callback) {
+    return wrapped.requiredAsInt(callback);
+  }
+
+  @Override
+  public long requiredAsLong(final LongSupplier callback) {
+    return wrapped.requiredAsLong(callback);
+  }
+
+  @Override
+  public void requiredAsVoid(final Runnable callback) {
+    wrapped.requiredAsVoid(callback);
+  }
+
+  @Override
+  public <R> R requiredWithRetry(final RetryPolicy retryPolicy, final Supplier<R> callback) {
+    return wrapped.requiredWithRetry(retryPolicy, callback);
+  }
+
+  @Override
+  public <R> R requiredWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    return wrapped.requiredWithRollbackRules(rollbackRules, callback);
+  }
+
+  @Override
+  public <R> R requiredWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    return wrapped.requiredWithTimeout(timeoutSeconds, callback);
+  }
+
   @Override
   public <R> R requiresNew(final Supplier<R> callback) {
     return wrapped.requiresNew(callback);
   }
 
-  protected void setTransactionManager(final TransactionManager transactionManager) {
-    wrapped.setTransactionManager(transactionManager);
+  @Override
+  public boolean requiresNewAsBoolean(final BooleanSupplier callback) {
+    return wrapped.requiresNewAsBoolean(callback);
+  }
+
+  @Override
+  public int requiresNewAsInt(final IntSupplier callback) {
+    return wrapped.requiresNewAsInt(callback);
+  }
+
+  @Override
+  public long requiresNewAsLong(final LongSupplier callback) {
+    return wrapped.requiresNewAsLong(callback);
+  }
+
+  @Override
+  public void requiresNewAsVoid(final Runnable callback) {
+    wrapped.requiresNewAsVoid(callback);
+  }
+
+  @Override
+  public <T> BatchResult<T> requiresNewBatch(final Iterable<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    return wrapped.requiresNewBatch(items, batchSize, action);
+  }
+
+  @Override
+  public <T> BatchResult<T> requiresNewBatch(final Iterator<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    return wrapped.requiresNewBatch(items, batchSize, action);
+  }
+
+  @Override
+  public <R> R requiresNewMergeable(final Supplier<R> callback) {
+    return wrapped.requiresNewMergeable(callback);
+  }
+
+  @Override
+  public <T> ChunkSubscriber<T> requiresNewSubscriber(final long targetCommitMillis,
+      final int maxChunkSize, final Consumer<? super T> action) {
+    return wrapped.requiresNewSubscriber(targetCommitMillis, maxChunkSize, action);
+  }
+
+  @Override
+  public <R> R requiresNewWithRetry(final RetryPolicy retryPolicy, final Supplier<R> callback) {
+    return wrapped.requiresNewWithRetry(retryPolicy, callback);
+  }
+
+  @Override
+  public <R> R requiresNewWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    return wrapped.requiresNewWithRollbackRules(rollbackRules, callback);
+  }
+
+  @Override
+  public <R> R requiresNewWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    return wrapped.requiresNewWithTimeout(timeoutSeconds, callback);
+  }
+
+  /**
+   * Binds a transaction manager. If it replaces the current one, the new calls of the helper use
+   * the new transaction manager immediately, while the running calls keep using the replaced one
+   * until it is unbound. The decorated transaction managers that are registered by the component
+   * are ignored.
+   *
+   * @param transactionManager
+   *          The transaction manager.
+   */
+  protected synchronized void setTransactionManager(final TransactionManager transactionManager) {
+    if (isOwnTransactionManager(transactionManager)) {
+      return;
+    }
+    TransactionManager previousTransactionManager = this.transactionManager;
+    TransactionManager previousDecoratedTransactionManager = decoratedTransactionManager;
+    ServiceRegistration<TransactionManager> previousServiceRegistration =
+        decoratedTransactionManagerServiceRegistration;
+    this.transactionManager = transactionManager;
+    TransactionManagerBinding previousBinding = publishTransactionManager();
+    if ((previousTransactionManager != null) && (previousBinding != null)) {
+      retiredTransactionManagers.put(previousTransactionManager,
+          new RetiredTransactionManager(previousBinding, previousDecoratedTransactionManager,
+              previousServiceRegistration));
+    }
   }
 
   @Override
@@ -74,8 +921,59 @@ public class TransactionHelperComponent implements TransactionHelper {
     return wrapped.supports(callback);
   }
 
+  @Override
+  public boolean supportsAsBoolean(final BooleanSupplier callback) {
+    return wrapped.supportsAsBoolean(callback);
+  }
+
+  @Override
+  public int supportsAsInt(final IntSupplier callback) {
+    return wrapped.supportsAsInt(callback);
+  }
+
+  @Override
+  public long supportsAsLong(final LongSupplier callback) {
+    return wrapped.supportsAsLong(callback);
+  }
+
+  @Override
+  public void supportsAsVoid(final Runnable callback) {
+    wrapped.supportsAsVoid(callback);
+  }
+
+  protected void unbindListener(final TransactionHelperListener listener) {
+    wrapped.removeListener(listener);
+  }
+
+  /**
+   * Unbinds a transaction manager. If it was not replaced, the new calls of the helper fail until
+   * a transaction manager is bound again. The function waits until the calls that use the
+   * transaction manager return or the drain timeout elapses.
+   *
+   * @param transactionManager
+   *          The transaction manager.
+   */
   protected void unbindTransactionManager(final TransactionManager transactionManager) {
-    wrapped.setTransactionManager(transactionManager);
+    RetiredTransactionManager retired;
+    synchronized (this) {
+      if (transactionManager == this.transactionManager) {
+        retired = new RetiredTransactionManager(wrapped.swapTransactionManager(null),
+            decoratedTransactionManager, decoratedTransactionManagerServiceRegistration);
+        this.transactionManager = null;
+        decoratedTransactionManager = null;
+        decoratedTransactionManagerServiceRegistration = null;
+      } else {
+        retired = retiredTransactionManagers.remove(transactionManager);
+      }
+    }
+    if (retired != null) {
+      drain(retired);
+    }
+  }
+
+  @Override
+  public <R> R withPriority(final TransactionPriority priority, final Supplier<R> callback) {
+    return wrapped.withPriority(priority, callback);
   }
 
 }
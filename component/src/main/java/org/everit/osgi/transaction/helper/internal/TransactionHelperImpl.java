@@ -15,99 +15,749 @@
  */
 package org.everit.osgi.transaction.helper.internal;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
 import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.ChunkSubscriber;
+import org.everit.osgi.transaction.helper.api.InFlightTransactionRegistry;
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.RollbackRules;
+import org.everit.osgi.transaction.helper.api.SavepointParticipant;
 import org.everit.osgi.transaction.helper.api.TransactionConstants;
+import org.everit.osgi.transaction.helper.api.TransactionHandle;
 import org.everit.osgi.transaction.helper.api.TransactionHelper;
+import org.everit.osgi.transaction.helper.api.TransactionHelperListener;
+import org.everit.osgi.transaction.helper.api.TransactionHelperMetrics;
+import org.everit.osgi.transaction.helper.api.TransactionPhase;
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
 import org.everit.osgi.transaction.helper.api.TransactionalException;
 
 /**
- * Default implementation class of {@link TransactionHelper}.
+ * Default implementation class of {@link TransactionHelper}. The helper remembers the transaction
+ * it began or joined on the current thread. By default, every propagation call still asks the
+ * {@link TransactionManager} for the transaction of the thread, as a callback may change it
+ * directly. If the {@link #setThreadTransactionCacheEnabled(boolean) cache is enabled}, nested
+ * propagation calls use the remembered transaction while it is in progress and skip the lookups.
+ *
+ * <p>
+ * Every propagation call is done in three steps: {@link #begin(Propagation)} joins, begins or
+ * suspends a transaction and records it in a {@link PropagationFrame}, the callback is called and
+ * {@link #complete(PropagationFrame)} or
+ * {@link #completeExceptionally(PropagationFrame, Throwable)} finishes what the first step
+ * started. The steps are shared by all callback types, so primitive
+ * results are not boxed.
+ *
+ * <p>
+ * If a transaction is begun with a timeout, its deadline is remembered in the context. Transactions
+ * that are begun by nested calls get the remaining time of the deadline as their timeout, unless
+ * their own timeout is shorter.
+ *
+ * <p>
+ * If the {@link #getMetrics() metrics} are enabled, the duration of every phase of the calls is
+ * recorded. A start time of zero means that the phase is not measured. If the
+ * {@link #getInFlightRegistry() in-flight registry} is enabled, the begun and suspended
+ * transactions are registered there until they are finished or resumed.
+ *
+ * <p>
+ * The {@link TransactionHelperListener}s are kept in a copy-on-write array, so if there are no
+ * listeners, the calls only check whether the array is empty.
+ *
+ * <p>
+ * The transaction manager can be replaced at any time. The outermost propagation call of a thread
+ * acquires the current transaction manager and the nested calls use the same one, so a transaction
+ * is always completed by the transaction manager that began it.
  */
 public class TransactionHelperImpl implements TransactionHelper {
 
-  private TransactionManager transactionManager;
+  private static final Logger LOGGER = Logger.getLogger(TransactionHelperImpl.class.getName());
+
+  private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private static final long NOT_MEASURED = 0;
+
+  private static final TransactionHelperListener[] NO_LISTENERS = new TransactionHelperListener[0];
+
+  /**
+   * The timeout value that makes the transaction manager use its default timeout.
+   */
+  private static final int NO_TIMEOUT = 0;
+
+  private static final String NO_TRANSACTION_MANAGER_MESSAGE =
+      "No transaction manager is bound to the transaction helper";
+
+  /**
+   * The rules of the calls that must roll back their transaction whatever the exception is.
+   */
+  private static final RollbackRules ROLLBACK_FOR_EVERY_THROWABLE =
+      new RollbackRules(new String[0], new String[0]);
+
+  private volatile AdmissionControl admissionControl;
+
+  private final Map<Transaction, CompletionHooks> completionHooks = new ConcurrentHashMap<>();
+
+  private volatile GroupCommit groupCommit;
+
+  private volatile Executor hookExecutor;
+
+  private volatile TransactionHelperListener[] listeners = NO_LISTENERS;
+
+  private volatile boolean readOnlyCheckEnabled;
+
+  private volatile boolean threadTransactionCacheEnabled;
+
+  private volatile RollbackRules rollbackRules;
+
+  private final Map<Transaction, SavepointScopes> savepointScopes = new ConcurrentHashMap<>();
+
+  final InFlightTransactionRegistryImpl inFlightRegistry = new InFlightTransactionRegistryImpl();
+
+  private final TransactionHelperMetricsImpl metrics = new TransactionHelperMetricsImpl();
+
+  private final ThreadLocal<PropagationContext> propagationContext =
+      ThreadLocal.withInitial(PropagationContext::new);
+
+  private volatile TransactionManagerBinding transactionManagerBinding;
+
+  /**
+   * Acquires the current transaction manager for the outermost propagation call of the thread. If
+   * the transaction manager is replaced in the meantime, the new one is acquired, so a replaced
+   * transaction manager is not used by calls that started after its replacement.
+   */
+  private TransactionManagerBinding acquireTransactionManagerBinding() {
+    while (true) {
+      TransactionManagerBinding binding = transactionManagerBinding;
+      if (binding == null) {
+        throw new IllegalStateException(NO_TRANSACTION_MANAGER_MESSAGE);
+      }
+      binding.acquire();
+      if (binding == transactionManagerBinding) {
+        return binding;
+      }
+      binding.release();
+    }
+  }
+
+  /**
+   * Adds a listener that is notified of the events of the transactions.
+   *
+   * @param listener
+   *          The listener.
+   */
+  public synchronized void addListener(final TransactionHelperListener listener) {
+    TransactionHelperListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+    newListeners[listeners.length] = listener;
+    listeners = newListeners;
+  }
+
+  @Override
+  public void afterCommit(final Runnable hook) {
+    afterCompletion((status) -> {
+      if (status == Status.STATUS_COMMITTED) {
+        hook.run();
+      }
+    });
+  }
+
+  @Override
+  public void afterCompletion(final IntConsumer hook) {
+    Transaction transaction = getActiveTransaction();
+    completionHooks.computeIfAbsent(transaction, this::registerCompletionHooks).add(hook);
+  }
+
+  private PropagationFrame begin(final Propagation propagation) {
+    return begin(propagation, NO_TIMEOUT);
+  }
+
+  private PropagationFrame begin(final Propagation propagation, final int timeoutSeconds) {
+    PropagationContext context = propagationContext.get();
+    if (context.binding == null) {
+      context.binding = acquireTransactionManagerBinding();
+    }
+    PropagationFrame frame = context.enter();
+    frame.propagation = propagation;
+    try {
+      int status;
+      switch (propagation) {
+        case MANDATORY:
+          status = lookupStatus(context);
+          if (status != Status.STATUS_ACTIVE) {
+            throwNotAllowedStatus(status, Status.STATUS_ACTIVE);
+          }
+          checkWritable(frame);
+          frame.joinedTransaction = context.transaction;
+          break;
+        case NESTED:
+          status = lookupStatus(context);
+          if (status == Status.STATUS_ACTIVE) {
+            checkWritable(frame);
+            frame.joinedTransaction = context.transaction;
+            frame.savepointScope = savepointScopes
+                .computeIfAbsent(context.transaction, this::registerSavepointScopes).open();
+          } else {
+            if (status != Status.STATUS_NO_TRANSACTION) {
+              throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+            }
+            detach(frame);
+            beginTransaction(frame, timeoutSeconds);
+          }
+          break;
+        case NEVER:
+          status = lookupStatus(context);
+          if (status != Status.STATUS_NO_TRANSACTION) {
+            throwNotAllowedStatus(status, Status.STATUS_NO_TRANSACTION);
+          }
+          break;
+        case NOT_SUPPORTED:
+          status = lookupStatus(context);
+          if (status != Status.STATUS_NO_TRANSACTION) {
+            if (status != Status.STATUS_ACTIVE) {
+              throwNotAllowedStatus(status, Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+            }
+            detach(frame);
+            suspend(frame);
+          }
+          break;
+        case READ_ONLY:
+          status = lookupStatus(context);
+          if (status == Status.STATUS_ACTIVE) {
+            frame.joinedTransaction = context.transaction;
+          } else {
+            if (status != Status.STATUS_NO_TRANSACTION) {
+              throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+            }
+            detach(frame);
+            beginTransaction(frame, timeoutSeconds);
+          }
+          setReadOnly(frame, true);
+          break;
+        case REQUIRED:
+          status = lookupStatus(context);
+          if (status == Status.STATUS_ACTIVE) {
+            checkWritable(frame);
+            frame.joinedTransaction = context.transaction;
+          } else {
+            if (status != Status.STATUS_NO_TRANSACTION) {
+              throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+            }
+            detach(frame);
+            beginTransaction(frame, timeoutSeconds);
+          }
+          break;
+        case REQUIRES_NEW:
+          detach(frame);
+          // Suspend returns null if there is no transaction, so the status does not have to be
+          // queried
+          suspend(frame);
+          beginTransaction(frame, timeoutSeconds);
+          break;
+        case SUPPORTS:
+          status = lookupStatus(context);
+          if (status != Status.STATUS_NO_TRANSACTION) {
+            if (status != Status.STATUS_ACTIVE) {
+              throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+            }
+            frame.joinedTransaction = context.transaction;
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown propagation: " + propagation);
+      }
+    } catch (Throwable e) {
+      TransactionManager transactionManager = context.binding.transactionManager;
+      Transaction suspendedTransaction = frame.suspendedTransaction;
+      boolean began = frame.began;
+      restore(frame);
+      context.leave();
+      if (began) {
+        rollback(transactionManager, propagation, e);
+      }
+      if (suspendedTransaction != null) {
+        resumeAndThrowIfOccured(transactionManager, propagation, suspendedTransaction, e);
+      }
+      throwOriginalIfUncheckedOrWrapped(e);
+    }
+    if ((frame.joinedTransaction != null) && (listeners.length != 0)) {
+      String propagationName = propagation.name();
+      notifyListeners((listener) -> listener.transactionJoined(propagationName));
+    }
+    frame.callbackStartTime = startTime();
+    return frame;
+  }
+
+  /**
+   * Begins the transaction like a {@link Propagation#REQUIRES_NEW} call, so it is admitted,
+   * measured and registered like the other transactions of the helper, and hands it over to a
+   * handle instead of completing it.
+   */
+  @Override
+  public TransactionHandle beginDetached() {
+    PropagationFrame frame = begin(Propagation.REQUIRES_NEW);
+    frame.rollbackRules = ROLLBACK_FOR_EVERY_THROWABLE;
+    TransactionHandle handle = null;
+    try {
+      handle = detachBegun(frame);
+    } catch (Throwable e) {
+      completeExceptionally(frame, e);
+    }
+    complete(frame);
+    return handle;
+  }
 
-  private <R> R doInNewTransaction(final Supplier<R> callback) {
+  private void beginTransaction(final PropagationFrame frame) {
+    PropagationContext context = frame.context;
+    AdmissionControl admissionControl = this.admissionControl;
+    if ((admissionControl != null) && !context.admitted) {
+      admissionControl.acquire(context.priority);
+      frame.admissionControl = admissionControl;
+      context.admitted = true;
+    }
+    long startTime = startTime();
     try {
-      transactionManager.begin();
+      context.binding.transactionManager.begin();
     } catch (NotSupportedException e) {
       throw new TransactionalException(e);
     } catch (SystemException e) {
       throw new TransactionalException(e);
     }
+    frame.began = true;
+    record(frame.propagation, TransactionPhase.BEGIN, startTime);
+    if (inFlightRegistry.isEnabled()) {
+      frame.transactionEntry =
+          inFlightRegistry.register(frame.propagation, false, context.suspendDepth);
+    }
+  }
 
-    R result = null;
+  /**
+   * Begins a transaction with the given timeout or with the remaining time of the deadline of the
+   * context if that is shorter. The timeout of the thread is set back to the default of the
+   * transaction manager right after the transaction is begun.
+   */
+  private void beginTransaction(final PropagationFrame frame, final int timeoutSeconds) {
+    PropagationContext context = frame.context;
+    if ((timeoutSeconds == NO_TIMEOUT) && !context.hasDeadline) {
+      beginTransaction(frame);
+      return;
+    }
+    long now = System.nanoTime();
+    int effectiveTimeoutSeconds = timeoutSeconds;
+    if (context.hasDeadline) {
+      int remainingSeconds = remainingSeconds(context.deadline, now);
+      if ((effectiveTimeoutSeconds == NO_TIMEOUT) || (remainingSeconds < effectiveTimeoutSeconds)) {
+        effectiveTimeoutSeconds = remainingSeconds;
+      }
+    }
+    TransactionManager transactionManager = context.binding.transactionManager;
+    setTransactionTimeout(transactionManager, effectiveTimeoutSeconds);
+    try {
+      beginTransaction(frame);
+    } finally {
+      setTransactionTimeout(transactionManager, NO_TIMEOUT);
+    }
+    if (timeoutSeconds == NO_TIMEOUT) {
+      return;
+    }
+    long deadline = now + (timeoutSeconds * NANOS_PER_SECOND);
+    if (!context.hasDeadline || ((deadline - context.deadline) < 0)) {
+      frame.previousDeadline = context.deadline;
+      frame.previousHasDeadline = context.hasDeadline;
+      frame.deadlineChanged = true;
+      context.deadline = deadline;
+      context.hasDeadline = true;
+    }
+  }
 
+  private <R> R call(final Propagation propagation, final int timeoutSeconds,
+      final RollbackRules rollbackRules, final Supplier<R> callback) {
+    PropagationFrame frame = begin(propagation, timeoutSeconds);
+    frame.rollbackRules = rollbackRules;
+    R result = null;
     try {
       result = callback.get();
     } catch (Throwable e) {
-      rollbackAndReThrow(e);
+      completeExceptionally(frame, e);
     }
+    complete(frame);
+    return result;
+  }
+
+  private <R> R call(final Propagation propagation, final int timeoutSeconds,
+      final Supplier<R> callback) {
+    return call(propagation, timeoutSeconds, null, callback);
+  }
+
+  private <R> R call(final Propagation propagation, final Supplier<R> callback) {
+    return call(propagation, NO_TIMEOUT, null, callback);
+  }
 
+  private boolean callAsBoolean(final Propagation propagation, final BooleanSupplier callback) {
+    PropagationFrame frame = begin(propagation);
+    boolean result = false;
     try {
-      transactionManager.commit();
+      result = callback.getAsBoolean();
     } catch (Throwable e) {
-      // No rollback is necessary here as if there was an exception during calling commit, the
-      // transaction is
-      // either rolled back or there is no transaction to roll back.
-      throwOriginalIfUncheckedOrWrapped(e);
+      completeExceptionally(frame, e);
     }
+    complete(frame);
     return result;
   }
 
-  private <R> R doInOngoingTransaction(final Supplier<R> callback) {
-    Transaction transaction = getTransaction();
+  private int callAsInt(final Propagation propagation, final IntSupplier callback) {
+    PropagationFrame frame = begin(propagation);
+    int result = 0;
     try {
-      return callback.get();
+      result = callback.getAsInt();
     } catch (Throwable e) {
-      setRollbackOnly(transaction, e);
-      return null;
+      completeExceptionally(frame, e);
     }
+    complete(frame);
+    return result;
   }
 
-  private <R> R doInSuspended(final Supplier<R> callback) {
-    Transaction transaction = getTransaction();
+  private long callAsLong(final Propagation propagation, final LongSupplier callback) {
+    PropagationFrame frame = begin(propagation);
+    long result = 0;
     try {
-      transactionManager.suspend();
-    } catch (SystemException e) {
-      throw new TransactionalException(e);
+      result = callback.getAsLong();
+    } catch (Throwable e) {
+      completeExceptionally(frame, e);
     }
+    complete(frame);
+    return result;
+  }
 
-    Throwable thrownDuringActionCall = null;
-    R result = null;
+  /**
+   * Calls the callback with {@link Propagation#MANDATORY} in the transaction of a handle that is
+   * attached to the current thread. The call uses the transaction manager of the handle even if the
+   * transaction manager of the helper was replaced since the transaction was detached.
+   */
+  <R> R callAttached(final TransactionManagerBinding binding, final Supplier<R> callback) {
+    binding.acquire();
+    propagationContext.get().binding = binding;
+    return call(Propagation.MANDATORY, callback);
+  }
+
+  /**
+   * Calls the callback until an attempt succeeds, fails with an exception that is not retryable or
+   * the attempts of the policy run out. Only attempts whose transaction was begun and rolled back
+   * by this call are retried. If the rollback rules do not roll back for the exception of the
+   * callback, the transaction is committed and the exception is thrown without a retry.
+   */
+  private <R> R callWithRetry(final Propagation propagation, final RetryPolicy retryPolicy,
+      final Supplier<R> callback) {
+    int failedAttempts = 0;
+    while (true) {
+      PropagationFrame frame = begin(propagation);
+      boolean began = frame.began;
+      RollbackRules attemptRollbackRules = rollbackRules;
+      frame.rollbackRules = attemptRollbackRules;
+      Throwable callbackThrowable = null;
+      try {
+        R result = null;
+        try {
+          result = callback.get();
+        } catch (Throwable e) {
+          callbackThrowable = e;
+          completeExceptionally(frame, e);
+        }
+        complete(frame);
+        return result;
+      } catch (RuntimeException e) {
+        failedAttempts++;
+        boolean committed = (callbackThrowable != null) && (attemptRollbackRules != null)
+            && !attemptRollbackRules.isRollbackFor(callbackThrowable);
+        if (!began || committed || (failedAttempts >= retryPolicy.getMaxAttempts())
+            || !retryPolicy.isRetryable(e)) {
+          throw e;
+        }
+        sleepBeforeRetry(retryPolicy.computeBackoffMillis(failedAttempts), e);
+      }
+    }
+  }
+
+  /**
+   * Throws an exception if the read-only checks are enabled and a call that may write joins a
+   * read-only transaction.
+   */
+  private void checkWritable(final PropagationFrame frame) {
+    if (frame.context.readOnly && readOnlyCheckEnabled) {
+      throw new IllegalStateException("Write requested by a " + frame.propagation
+          + " call in a read-only transaction");
+    }
+  }
+
+  /**
+   * Commits the transaction of a handle that is attached to the current thread. If the helper
+   * began the transaction, the commit is recorded like the commits of the propagation calls.
+   *
+   * @param propagation
+   *          The propagation of the call that began the transaction or <code>null</code>.
+   */
+  void commitAttached(final TransactionManager transactionManager, final Propagation propagation)
+      throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
+      SystemException {
+    if (propagation == null) {
+      transactionManager.commit();
+      return;
+    }
+    long startTime = startTime();
+    boolean committed = false;
     try {
-      result = callback.get();
-    } catch (Throwable e) {
-      thrownDuringActionCall = e;
+      transactionManager.commit();
+      committed = true;
+      if (metrics.isEnabled()) {
+        metrics.commitDone();
+      }
+    } finally {
+      record(propagation, TransactionPhase.COMMIT, startTime, committed);
     }
+  }
 
-    resumeAndThrowIfOccured(transaction, thrownDuringActionCall);
-    return result;
+  /**
+   * Finishes a propagation call after the callback returned normally. A transaction that was begun
+   * by a read-only call is rolled back instead of committing it.
+   */
+  private void complete(final PropagationFrame frame) {
+    PropagationContext context = frame.context;
+    Propagation propagation = frame.propagation;
+    record(propagation, TransactionPhase.CALLBACK, frame.callbackStartTime);
+    try {
+      SavepointScope savepointScope = frame.savepointScope;
+      if ((savepointScope != null) && savepointScope.release()) {
+        setRollbackOnly(propagation, frame.joinedTransaction);
+      }
+      TransactionManager transactionManager = context.binding.transactionManager;
+      Transaction suspendedTransaction = frame.suspendedTransaction;
+      Throwable thrownDuringCompletion = null;
+      boolean began = frame.began;
+      restore(frame);
+      if (began && (propagation == Propagation.READ_ONLY)) {
+        long startTime = startTime();
+        try {
+          transactionManager.rollback();
+          if (metrics.isEnabled()) {
+            metrics.rollbackDone();
+          }
+        } catch (Throwable e) {
+          thrownDuringCompletion = e;
+        }
+        record(propagation, TransactionPhase.ROLLBACK, startTime);
+      } else if (began) {
+        long startTime = startTime();
+        try {
+          transactionManager.commit();
+          if (metrics.isEnabled()) {
+            metrics.commitDone();
+          }
+        } catch (Throwable e) {
+          // No rollback is necessary here as if there was an exception during calling commit, the
+          // transaction is either rolled back or there is no transaction to roll back.
+          thrownDuringCompletion = e;
+        }
+        record(propagation, TransactionPhase.COMMIT, startTime, thrownDuringCompletion == null);
+      }
+      if (suspendedTransaction != null) {
+        resumeAndThrowIfOccured(transactionManager, propagation, suspendedTransaction,
+            thrownDuringCompletion);
+      } else if (thrownDuringCompletion != null) {
+        throwOriginalIfUncheckedOrWrapped(thrownDuringCompletion);
+      }
+    } finally {
+      context.leave();
+    }
+  }
+
+  /**
+   * Finishes a propagation call after the callback threw an exception. The function always throws
+   * the exception of the callback or its wrapped version. If the callback of a nested call fails,
+   * the participants are rolled back to the start of the scope and the transaction stays active.
+   * If a call that joined the transaction fails inside a nested scope, the decision is left to the
+   * call that opened the scope. If the rollback rules do not roll back for the exception, the call
+   * is completed like a successful one and the failures of the completion are suppressed.
+   */
+  private void completeExceptionally(final PropagationFrame frame,
+      final Throwable thrownThrowable) {
+    RollbackRules currentRollbackRules =
+        (frame.rollbackRules != null) ? frame.rollbackRules : rollbackRules;
+    if ((currentRollbackRules != null) && !currentRollbackRules.isRollbackFor(thrownThrowable)) {
+      try {
+        complete(frame);
+      } catch (Throwable e) {
+        suppressThrowable(thrownThrowable, e);
+      }
+      throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+    }
+    PropagationContext context = frame.context;
+    Propagation propagation = frame.propagation;
+    record(propagation, TransactionPhase.CALLBACK, frame.callbackStartTime);
+    try {
+      Transaction joinedTransaction = frame.joinedTransaction;
+      if (joinedTransaction != null) {
+        SavepointScope savepointScope = frame.savepointScope;
+        boolean rolledBackToSavepoint = (savepointScope != null)
+            ? savepointScope.rollback(thrownThrowable)
+            : requestScopeRollback(joinedTransaction);
+        if (!rolledBackToSavepoint) {
+          setRollbackOnly(propagation, joinedTransaction, thrownThrowable);
+        }
+      }
+      TransactionManager transactionManager = context.binding.transactionManager;
+      Transaction suspendedTransaction = frame.suspendedTransaction;
+      boolean began = frame.began;
+      restore(frame);
+      if (began) {
+        rollback(transactionManager, propagation, thrownThrowable);
+      }
+      if (suspendedTransaction != null) {
+        resumeAndThrowIfOccured(transactionManager, propagation, suspendedTransaction,
+            thrownThrowable);
+      }
+      throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+    } finally {
+      context.leave();
+    }
   }
 
-  private void forceTransactionStatus(final int allowedStatus) {
-    int status = getStatus();
-    if (status != allowedStatus) {
-      throwNotAllowedStatus(status, allowedStatus);
+  private TransactionManager currentTransactionManager() {
+    TransactionManagerBinding binding = transactionManagerBinding;
+    if (binding == null) {
+      throw new IllegalStateException(NO_TRANSACTION_MANAGER_MESSAGE);
     }
+    return binding.transactionManager;
   }
 
-  private int getStatus() {
+  @Override
+  public TransactionHandle detach() {
+    if (isInCall()) {
+      throw new IllegalStateException(
+          "The transaction cannot be detached inside a propagation call of the helper");
+    }
+    TransactionManagerBinding binding = acquireTransactionManagerBinding();
     try {
-      return transactionManager.getStatus();
+      return detach(binding);
+    } finally {
+      binding.release();
+    }
+  }
+
+  /**
+   * Called before the call changes the transaction of the thread. The transaction that is known by
+   * the context is saved in the frame and the context forgets it. The new transaction of the
+   * thread is not read-only unless the call makes it so.
+   */
+  private void detach(final PropagationFrame frame) {
+    PropagationContext context = frame.context;
+    frame.previousTransaction = context.transaction;
+    context.transaction = null;
+    setReadOnly(frame, false);
+  }
+
+  /**
+   * Suspends the transaction of the thread and gives it to a new handle. The handle keeps the
+   * transaction manager acquired until the transaction is completed.
+   */
+  private TransactionHandle detach(final TransactionManagerBinding binding) {
+    Transaction transaction = suspendToHandle(binding);
+    binding.acquire();
+    return new TransactionHandleImpl(this, binding, transaction, null, null, null);
+  }
+
+  /**
+   * Suspends the transaction that was begun by the call of the frame and gives it to a new handle
+   * together with the admission and the in-flight registration of the transaction. The call does
+   * not complete the transaction afterwards.
+   */
+  private TransactionHandle detachBegun(final PropagationFrame frame) {
+    PropagationContext context = frame.context;
+    TransactionManagerBinding binding = context.binding;
+    Transaction transaction = suspendToHandle(binding);
+    binding.acquire();
+    TransactionHandle handle = new TransactionHandleImpl(this, binding, transaction,
+        frame.propagation, frame.admissionControl, frame.transactionEntry);
+    restore(frame);
+    if (frame.admissionControl != null) {
+      context.admitted = false;
+    }
+    frame.admissionControl = null;
+    frame.began = false;
+    frame.callbackStartTime = NOT_MEASURED;
+    frame.transactionEntry = null;
+    return handle;
+  }
+
+  /**
+   * The registry of the transactions that were begun or suspended by the helper and are not
+   * finished or resumed yet. The registry is disabled by default.
+   *
+   * @return The registry of the in-flight transactions.
+   */
+  public InFlightTransactionRegistry getInFlightRegistry() {
+    return inFlightRegistry;
+  }
+
+  /**
+   * The metrics of the helper. The metrics are disabled by default.
+   *
+   * @return The metrics of the helper.
+   */
+  public TransactionHelperMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the transaction of the thread. The context is used if a call of the helper is on the
+   * stack, otherwise the transaction manager is asked.
+   *
+   * @throws IllegalStateException
+   *           if there is no active transaction.
+   */
+  private Transaction getActiveTransaction() {
+    PropagationContext context = propagationContext.get();
+    Transaction transaction;
+    int status;
+    if (context.isInCall()) {
+      status = lookupStatus(context);
+      transaction = context.transaction;
+    } else {
+      transaction = getTransaction(currentTransactionManager());
+      status = (transaction != null) ? getStatus(transaction) : Status.STATUS_NO_TRANSACTION;
+    }
+    if (status != Status.STATUS_ACTIVE) {
+      throwNotAllowedStatus(status, Status.STATUS_ACTIVE);
+    }
+    return transaction;
+  }
+
+  private int getStatus(final Transaction transaction) {
+    try {
+      return transaction.getStatus();
     } catch (SystemException e) {
       throw new TransactionalException(e);
     }
   }
 
-  private Transaction getTransaction() {
+  private Transaction getTransaction(final TransactionManager transactionManager) {
     try {
       return transactionManager.getTransaction();
     } catch (SystemException e) {
@@ -115,57 +765,408 @@ public class TransactionHelperImpl implements TransactionHelper {
     }
   }
 
+  /**
+   * Whether there is a propagation call of the helper on the stack of the current thread.
+   */
+  boolean isInCall() {
+    return propagationContext.get().isInCall();
+  }
+
+  /**
+   * Returns the status of the transaction that is associated with the current thread and stores
+   * the transaction in the context. If the thread transaction cache is enabled, the transaction
+   * manager is only asked if the context does not know a transaction that is still in progress.
+   */
+  private int lookupStatus(final PropagationContext context) {
+    Transaction transaction = context.transaction;
+    if ((transaction != null) && threadTransactionCacheEnabled) {
+      int status = getStatus(transaction);
+      if ((status == Status.STATUS_ACTIVE) || (status == Status.STATUS_MARKED_ROLLBACK)) {
+        return status;
+      }
+    }
+    transaction = getTransaction(context.binding.transactionManager);
+    context.transaction = transaction;
+    if (transaction == null) {
+      return Status.STATUS_NO_TRANSACTION;
+    }
+    return getStatus(transaction);
+  }
+
   @Override
   public <R> R mandatory(final Supplier<R> callback) {
-    forceTransactionStatus(Status.STATUS_ACTIVE);
-    return doInOngoingTransaction(callback);
+    return call(Propagation.MANDATORY, callback);
+  }
+
+  @Override
+  public boolean mandatoryAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.MANDATORY, callback);
+  }
+
+  @Override
+  public int mandatoryAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.MANDATORY, callback);
+  }
+
+  @Override
+  public long mandatoryAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.MANDATORY, callback);
+  }
+
+  @Override
+  public void mandatoryAsVoid(final Runnable callback) {
+    run(Propagation.MANDATORY, callback);
+  }
+
+  @Override
+  public <R> R nested(final Supplier<R> callback) {
+    return call(Propagation.NESTED, callback);
+  }
+
+  @Override
+  public void nestedAsVoid(final Runnable callback) {
+    run(Propagation.NESTED, callback);
   }
 
   @Override
   public <R> R never(final Supplier<R> callback) {
-    forceTransactionStatus(Status.STATUS_NO_TRANSACTION);
-    return callback.get();
+    return call(Propagation.NEVER, callback);
+  }
+
+  @Override
+  public boolean neverAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.NEVER, callback);
+  }
+
+  @Override
+  public int neverAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.NEVER, callback);
+  }
+
+  @Override
+  public long neverAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.NEVER, callback);
+  }
+
+  @Override
+  public void neverAsVoid(final Runnable callback) {
+    run(Propagation.NEVER, callback);
   }
 
   @Override
   public <R> R notSupported(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return callback.get();
-    }
+    return call(Propagation.NOT_SUPPORTED, callback);
+  }
 
-    if (status != Status.STATUS_ACTIVE) {
-      throwNotAllowedStatus(status, Status.STATUS_NO_TRANSACTION, Status.STATUS_ACTIVE);
+  @Override
+  public boolean notSupportedAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.NOT_SUPPORTED, callback);
+  }
+
+  @Override
+  public int notSupportedAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.NOT_SUPPORTED, callback);
+  }
+
+  @Override
+  public long notSupportedAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.NOT_SUPPORTED, callback);
+  }
+
+  @Override
+  public void notSupportedAsVoid(final Runnable callback) {
+    run(Propagation.NOT_SUPPORTED, callback);
+  }
+
+  /**
+   * Delivers an event to every listener. The failure of a listener is logged, so it does not
+   * affect the transaction or the other listeners.
+   */
+  private void notifyListeners(final Consumer<TransactionHelperListener> event) {
+    for (TransactionHelperListener listener : listeners) {
+      try {
+        event.accept(listener);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Transaction helper listener failed", e);
+      }
     }
+  }
 
-    return doInSuspended(callback);
+  @Override
+  public <R> R readOnly(final Supplier<R> callback) {
+    return call(Propagation.READ_ONLY, callback);
+  }
+
+  @Override
+  public void readOnlyAsVoid(final Runnable callback) {
+    run(Propagation.READ_ONLY, callback);
   }
 
   @Override
   public <R> R required(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_ACTIVE == status) {
-      return doInOngoingTransaction(callback);
+    return call(Propagation.REQUIRED, callback);
+  }
+
+  @Override
+  public boolean requiredAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.REQUIRED, callback);
+  }
+
+  @Override
+  public int requiredAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.REQUIRED, callback);
+  }
+
+  @Override
+  public long requiredAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.REQUIRED, callback);
+  }
+
+  @Override
+  public void requiredAsVoid(final Runnable callback) {
+    run(Propagation.REQUIRED, callback);
+  }
+
+  @Override
+  public <R> R requiredWithRetry(final RetryPolicy retryPolicy, final Supplier<R> callback) {
+    return callWithRetry(Propagation.REQUIRED, retryPolicy, callback);
+  }
+
+  @Override
+  public <R> R requiredWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    return call(Propagation.REQUIRED, NO_TIMEOUT, rollbackRules, callback);
+  }
+
+  @Override
+  public <R> R requiredWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    return call(Propagation.REQUIRED, validTimeout(timeoutSeconds), callback);
+  }
+
+  @Override
+  public <R> R requiresNew(final Supplier<R> callback) {
+    return call(Propagation.REQUIRES_NEW, callback);
+  }
+
+  @Override
+  public boolean requiresNewAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.REQUIRES_NEW, callback);
+  }
+
+  @Override
+  public int requiresNewAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.REQUIRES_NEW, callback);
+  }
+
+  @Override
+  public long requiresNewAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.REQUIRES_NEW, callback);
+  }
+
+  @Override
+  public void requiresNewAsVoid(final Runnable callback) {
+    run(Propagation.REQUIRES_NEW, callback);
+  }
+
+  @Override
+  public <T> BatchResult<T> requiresNewBatch(final Iterable<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    return requiresNewBatch(items.iterator(), batchSize, action);
+  }
+
+  @Override
+  public <T> BatchResult<T> requiresNewBatch(final Iterator<? extends T> items,
+      final int batchSize, final Consumer<? super T> action) {
+    return new BatchExecution<T>(this, batchSize, action).execute(items);
+  }
+
+  @Override
+  public <R> R requiresNewMergeable(final Supplier<R> callback) {
+    GroupCommit groupCommit = this.groupCommit;
+    PropagationContext context = propagationContext.get();
+    // A unit with a deadline would get the deadline of the leader in a shared transaction
+    if ((groupCommit == null) || context.hasDeadline) {
+      return requiresNew(callback);
     }
-    if (Status.STATUS_NO_TRANSACTION != status) {
-      throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+    return groupCommit.execute(context.priority, callback);
+  }
+
+  @Override
+  public <T> ChunkSubscriber<T> requiresNewSubscriber(final long targetCommitMillis,
+      final int maxChunkSize, final Consumer<? super T> action) {
+    return new AdaptiveChunkSubscriber<T>(this, targetCommitMillis, maxChunkSize, action);
+  }
+
+  @Override
+  public <R> R requiresNewWithRetry(final RetryPolicy retryPolicy, final Supplier<R> callback) {
+    return callWithRetry(Propagation.REQUIRES_NEW, retryPolicy, callback);
+  }
+
+  @Override
+  public <R> R requiresNewWithRollbackRules(final RollbackRules rollbackRules,
+      final Supplier<R> callback) {
+    return call(Propagation.REQUIRES_NEW, NO_TIMEOUT, rollbackRules, callback);
+  }
+
+  @Override
+  public <R> R requiresNewWithTimeout(final int timeoutSeconds, final Supplier<R> callback) {
+    return call(Propagation.REQUIRES_NEW, validTimeout(timeoutSeconds), callback);
+  }
+
+  /**
+   * Computes the timeout of a transaction that must finish before the deadline. The result is
+   * rounded up and is at least one second, as zero would mean the default timeout.
+   */
+  private int remainingSeconds(final long deadline, final long now) {
+    long remainingNanos = deadline - now;
+    if (remainingNanos <= NANOS_PER_SECOND) {
+      return 1;
     }
-    return doInNewTransaction(callback);
+    long remainingSeconds = ((remainingNanos - 1) / NANOS_PER_SECOND) + 1;
+    return (int) Math.min(remainingSeconds, Integer.MAX_VALUE);
+  }
+
+  private void record(final Propagation propagation, final TransactionPhase phase,
+      final long startTime) {
+    record(propagation, phase, startTime, true);
+  }
+
+  /**
+   * Records the duration of a phase in the metrics and notifies the listeners about it. A failed
+   * commit is reported to the listeners as a rollback and a suspend that did not find a
+   * transaction is not reported.
+   */
+  private void record(final Propagation propagation, final TransactionPhase phase,
+      final long startTime, final boolean succeeded) {
+    if (startTime == NOT_MEASURED) {
+      return;
+    }
+    long nanos = System.nanoTime() - startTime;
+    if (metrics.isEnabled()) {
+      metrics.record(propagation, phase, nanos);
+    }
+    if (listeners.length == 0) {
+      return;
+    }
+    String propagationName = propagation.name();
+    switch (phase) {
+      case BEGIN:
+        notifyListeners((listener) -> listener.transactionBegun(propagationName, nanos));
+        break;
+      case COMMIT:
+        if (succeeded) {
+          notifyListeners((listener) -> listener.transactionCommitted(propagationName, nanos));
+        } else {
+          notifyListeners((listener) -> listener.transactionRolledBack(propagationName, nanos));
+        }
+        break;
+      case RESUME:
+        notifyListeners((listener) -> listener.transactionResumed(propagationName, nanos));
+        break;
+      case ROLLBACK:
+        notifyListeners((listener) -> listener.transactionRolledBack(propagationName, nanos));
+        break;
+      case SUSPEND:
+        if (succeeded) {
+          notifyListeners((listener) -> listener.transactionSuspended(propagationName, nanos));
+        }
+        break;
+      default:
+        // The callback is not an event of the transaction
+        break;
+    }
+  }
+
+  /**
+   * Registers the synchronization that calls the hooks of the transaction.
+   */
+  private CompletionHooks registerCompletionHooks(final Transaction transaction) {
+    CompletionHooks hooks = new CompletionHooks(transaction, completionHooks, hookExecutor);
+    try {
+      transaction.registerSynchronization(hooks);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    return hooks;
   }
 
   @Override
-  public <R> R requiresNew(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return doInNewTransaction(callback);
+  public void registerSavepointParticipant(final SavepointParticipant<?> participant) {
+    Transaction transaction = getActiveTransaction();
+    savepointScopes.computeIfAbsent(transaction, this::registerSavepointScopes)
+        .addParticipant(participant);
+  }
+
+  /**
+   * Registers the synchronization that forgets the savepoint scopes of the transaction.
+   */
+  private SavepointScopes registerSavepointScopes(final Transaction transaction) {
+    SavepointScopes scopes = new SavepointScopes(transaction, savepointScopes);
+    try {
+      transaction.registerSynchronization(scopes);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    return scopes;
+  }
+
+  /**
+   * Removes a listener that was added before.
+   *
+   * @param listener
+   *          The listener.
+   */
+  public synchronized void removeListener(final TransactionHelperListener listener) {
+    for (int i = 0; i < listeners.length; i++) {
+      if (listeners[i] == listener) {
+        TransactionHelperListener[] newListeners =
+            new TransactionHelperListener[listeners.length - 1];
+        System.arraycopy(listeners, 0, newListeners, 0, i);
+        System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+        listeners = newListeners;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Leaves the rollback decision of a failed call to the innermost nested scope of the
+   * transaction. The scope rolls back its participants if the exception reaches it or marks the
+   * transaction for rollback if the exception is caught before.
+   *
+   * @return Whether there is an open nested scope in the transaction.
+   */
+  private boolean requestScopeRollback(final Transaction transaction) {
+    SavepointScopes scopes = savepointScopes.get(transaction);
+    SavepointScope scope = (scopes != null) ? scopes.currentScope() : null;
+    if (scope == null) {
+      return false;
+    }
+    scope.rollbackRequested = true;
+    return true;
+  }
+
+  /**
+   * Called when the call does not change the transaction of the thread anymore. The transaction
+   * that was known before the call is given back to the context.
+   */
+  private void restore(final PropagationFrame frame) {
+    if (frame.began || (frame.suspendedTransaction != null)) {
+      frame.context.transaction = frame.previousTransaction;
     }
-    return doInSuspended(() -> doInNewTransaction(callback));
   }
 
-  private void resumeAndThrowIfOccured(final Transaction transaction,
+  private void resumeAndThrowIfOccured(final TransactionManager transactionManager,
+      final Propagation propagation, final Transaction transaction,
       final Throwable thrownThrowable) {
+    long startTime = startTime();
     try {
       transactionManager.resume(transaction);
+      record(propagation, TransactionPhase.RESUME, startTime);
     } catch (Throwable e) {
       if (thrownThrowable != null) {
         suppressThrowable(thrownThrowable, e);
@@ -178,44 +1179,224 @@ public class TransactionHelperImpl implements TransactionHelper {
     }
   }
 
-  private void rollbackAndReThrow(final Throwable thrownThrowable) {
+  private void rollback(final TransactionManager transactionManager,
+      final Propagation propagation, final Throwable thrownThrowable) {
+    long startTime = startTime();
     try {
       transactionManager.rollback();
+      if (metrics.isEnabled()) {
+        metrics.rollbackDone();
+      }
     } catch (Throwable e) {
       suppressThrowable(thrownThrowable, e);
     }
-    throwOriginalIfUncheckedOrWrapped(thrownThrowable);
+    record(propagation, TransactionPhase.ROLLBACK, startTime);
+  }
+
+  /**
+   * Rolls back the transaction of a handle that is attached to the current thread. If the helper
+   * began the transaction, the rollback is recorded like the rollbacks of the propagation calls.
+   *
+   * @param propagation
+   *          The propagation of the call that began the transaction or <code>null</code>.
+   */
+  void rollbackAttached(final TransactionManager transactionManager,
+      final Propagation propagation) throws SystemException {
+    if (propagation == null) {
+      transactionManager.rollback();
+      return;
+    }
+    long startTime = startTime();
+    try {
+      transactionManager.rollback();
+      if (metrics.isEnabled()) {
+        metrics.rollbackDone();
+      }
+    } finally {
+      record(propagation, TransactionPhase.ROLLBACK, startTime);
+    }
+  }
+
+  private void rollbackOnlyMarked(final Propagation propagation) {
+    if (metrics.isEnabled()) {
+      metrics.rollbackOnlyMarked();
+    }
+    if (listeners.length != 0) {
+      String propagationName = propagation.name();
+      notifyListeners((listener) -> listener.rollbackOnlyMarked(propagationName));
+    }
+  }
+
+  private void run(final Propagation propagation, final Runnable callback) {
+    PropagationFrame frame = begin(propagation);
+    try {
+      callback.run();
+    } catch (Throwable e) {
+      completeExceptionally(frame, e);
+    }
+    complete(frame);
+  }
+
+  private void setRollbackOnly(final Propagation propagation, final Transaction transaction) {
+    try {
+      transaction.setRollbackOnly();
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    rollbackOnlyMarked(propagation);
   }
 
-  private void setRollbackOnly(final Transaction transaction,
+  private void setRollbackOnly(final Propagation propagation, final Transaction transaction,
       final Throwable thrownThrowable) {
     try {
       transaction.setRollbackOnly();
+      rollbackOnlyMarked(propagation);
     } catch (Throwable e) {
       suppressThrowable(thrownThrowable, e);
     }
     throwOriginalIfUncheckedOrWrapped(thrownThrowable);
   }
 
+  /**
+   * Sets the admission control of the transactions that are begun by the helper. Only the
+   * outermost transaction that is begun on a thread is counted, as the transactions that are
+   * begun while it is suspended cannot wait for it to finish.
+   *
+   * @param admissionControl
+   *          The admission control or <code>null</code> to admit every transaction.
+   */
+  public void setAdmissionControl(final AdmissionControl admissionControl) {
+    this.admissionControl = admissionControl;
+  }
+
+  /**
+   * Sets the group commit that executes the mergeable units.
+   *
+   * @param groupCommit
+   *          The group commit or <code>null</code> to execute every unit in its own transaction.
+   */
+  public void setGroupCommit(final GroupCommit groupCommit) {
+    this.groupCommit = groupCommit;
+  }
+
+  /**
+   * Sets the executor that calls the completion hooks. If no executor is set, the hooks are called
+   * on the thread that completes the transaction.
+   *
+   * @param hookExecutor
+   *          The executor or <code>null</code>.
+   */
+  public void setHookExecutor(final Executor hookExecutor) {
+    this.hookExecutor = hookExecutor;
+  }
+
+  private void setReadOnly(final PropagationFrame frame, final boolean readOnly) {
+    PropagationContext context = frame.context;
+    if (context.readOnly != readOnly) {
+      context.readOnly = readOnly;
+      frame.readOnlyChanged = !frame.readOnlyChanged;
+    }
+  }
+
+  /**
+   * Sets whether calls that may write throw an {@link IllegalStateException} if they join a
+   * read-only transaction. The checks are meant for debugging and are disabled by default.
+   *
+   * @param readOnlyCheckEnabled
+   *          Whether the read-only checks are enabled.
+   */
+  public void setReadOnlyCheckEnabled(final boolean readOnlyCheckEnabled) {
+    this.readOnlyCheckEnabled = readOnlyCheckEnabled;
+  }
+
+  /**
+   * Sets the rules that decide which exceptions of the callbacks roll back the transactions if a
+   * call does not have its own rules.
+   *
+   * @param rollbackRules
+   *          The rules or <code>null</code> to roll back for every exception.
+   */
+  public void setRollbackRules(final RollbackRules rollbackRules) {
+    this.rollbackRules = rollbackRules;
+  }
+
+  /**
+   * Sets whether nested propagation calls trust the transaction that the helper began or joined on
+   * the thread instead of asking the transaction manager. The cache saves a lookup per nested call,
+   * but the callbacks must not begin, suspend or resume transactions directly on the transaction
+   * manager, as the helper would not notice it. Disabled by default.
+   *
+   * @param threadTransactionCacheEnabled
+   *          Whether the thread transaction cache is enabled.
+   */
+  public void setThreadTransactionCacheEnabled(final boolean threadTransactionCacheEnabled) {
+    this.threadTransactionCacheEnabled = threadTransactionCacheEnabled;
+  }
+
+  /**
+   * Sets the transaction manager that is used by the propagation calls that start after this
+   * function returns. The calls that are already running keep using the previous transaction
+   * manager until the outermost call of their thread returns.
+   *
+   * @param transactionManager
+   *          The transaction manager or <code>null</code> to make the new calls fail.
+   */
   public void setTransactionManager(final TransactionManager transactionManager) {
-    this.transactionManager = transactionManager;
+    swapTransactionManager(transactionManager);
+  }
+
+  /**
+   * Sets the timeout of the transactions that are begun on the current thread. Zero restores the
+   * default of the transaction manager.
+   */
+  private void setTransactionTimeout(final TransactionManager transactionManager,
+      final int seconds) {
+    try {
+      transactionManager.setTransactionTimeout(seconds);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
   }
 
   @Override
   public <R> R supports(final Supplier<R> callback) {
-    int status = getStatus();
-    if (Status.STATUS_NO_TRANSACTION == status) {
-      return callback.get();
-    }
-    if (Status.STATUS_ACTIVE != status) {
-      throwNotAllowedStatus(status, Status.STATUS_ACTIVE, Status.STATUS_NO_TRANSACTION);
+    return call(Propagation.SUPPORTS, callback);
+  }
+
+  @Override
+  public boolean supportsAsBoolean(final BooleanSupplier callback) {
+    return callAsBoolean(Propagation.SUPPORTS, callback);
+  }
+
+  @Override
+  public int supportsAsInt(final IntSupplier callback) {
+    return callAsInt(Propagation.SUPPORTS, callback);
+  }
+
+  @Override
+  public long supportsAsLong(final LongSupplier callback) {
+    return callAsLong(Propagation.SUPPORTS, callback);
+  }
+
+  @Override
+  public void supportsAsVoid(final Runnable callback) {
+    run(Propagation.SUPPORTS, callback);
+  }
+
+  /**
+   * Waits before the next attempt. If the thread is interrupted, the retries are given up and the
+   * failure of the last attempt is thrown.
+   */
+  private void sleepBeforeRetry(final long backoffMillis, final RuntimeException lastFailure) {
+    if (backoffMillis == 0) {
+      return;
     }
-    Transaction transaction = getTransaction();
     try {
-      return callback.get();
-    } catch (Throwable e) {
-      setRollbackOnly(transaction, e);
-      return null;
+      Thread.sleep(backoffMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      lastFailure.addSuppressed(e);
+      throw lastFailure;
     }
   }
 
@@ -224,24 +1405,94 @@ public class TransactionHelperImpl implements TransactionHelper {
     originalThrowable.addSuppressed(suppressedThrowable);
   }
 
+  /**
+   * Reads the clock if the metrics are enabled or there are listeners.
+   *
+   * @return The start time of a phase or {@link #NOT_MEASURED}.
+   */
+  private long startTime() {
+    if (metrics.isEnabled() || (listeners.length != 0)) {
+      return System.nanoTime();
+    }
+    return NOT_MEASURED;
+  }
+
+  /**
+   * Suspends the transaction of the thread if there is one and records it in the frame.
+   */
+  private void suspend(final PropagationFrame frame) {
+    long startTime = startTime();
+    Transaction transaction;
+    try {
+      transaction = frame.context.binding.transactionManager.suspend();
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    record(frame.propagation, TransactionPhase.SUSPEND, startTime, transaction != null);
+    if (transaction == null) {
+      return;
+    }
+    PropagationContext context = frame.context;
+    frame.suspendedTransaction = transaction;
+    context.suspendDepth++;
+    if (inFlightRegistry.isEnabled()) {
+      frame.suspensionEntry =
+          inFlightRegistry.register(frame.propagation, true, context.suspendDepth - 1);
+    }
+  }
+
+  /**
+   * Suspends the transaction of the thread, so it can be given to a handle.
+   *
+   * @throws IllegalStateException
+   *           if there is no transaction associated with the thread.
+   */
+  private Transaction suspendToHandle(final TransactionManagerBinding binding) {
+    Transaction transaction;
+    try {
+      transaction = binding.transactionManager.suspend();
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    if (transaction == null) {
+      throw new IllegalStateException("No transaction is associated with the thread");
+    }
+    return transaction;
+  }
+
+  /**
+   * Replaces the transaction manager of the new propagation calls.
+   *
+   * @return The binding of the previous transaction manager, whose calls may still be running, or
+   *         <code>null</code>.
+   */
+  TransactionManagerBinding swapTransactionManager(final TransactionManager transactionManager) {
+    TransactionManagerBinding previousBinding = transactionManagerBinding;
+    transactionManagerBinding = (transactionManager != null)
+        ? new TransactionManagerBinding(transactionManager)
+        : null;
+    return previousBinding;
+  }
+
   private void throwNotAllowedStatus(final int currentStatus, final int... allowedStatuses) {
+    if (metrics.isEnabled()) {
+      metrics.notAllowedStatus();
+    }
     StringBuilder sb = new StringBuilder("Allowed status");
     int n = allowedStatuses.length;
     if (n == 1) {
-      sb.append(": ").append(
-          TransactionConstants.STATUS_NAME_BY_CODE.get(allowedStatuses[0]));
+      sb.append(": ").append(TransactionConstants.getStatusName(allowedStatuses[0]));
     } else {
       sb.append("es: [");
       for (int i = 0; i < n; i++) {
-        sb.append(TransactionConstants.STATUS_NAME_BY_CODE.get(allowedStatuses[i]));
+        sb.append(TransactionConstants.getStatusName(allowedStatuses[i]));
         if (i < (n - 1)) {
           sb.append(", ");
         }
       }
       sb.append("]");
     }
-    sb.append("; Current status: ").append(
-        TransactionConstants.STATUS_NAME_BY_CODE.get(currentStatus));
+    sb.append("; Current status: ").append(TransactionConstants.getStatusName(currentStatus));
 
     throw new IllegalStateException(sb.toString());
   }
@@ -254,4 +1505,23 @@ public class TransactionHelperImpl implements TransactionHelper {
     }
     throw new TransactionalException(e);
   }
+
+  private int validTimeout(final int timeoutSeconds) {
+    if (timeoutSeconds < 1) {
+      throw new IllegalArgumentException("Timeout must be at least one second: " + timeoutSeconds);
+    }
+    return timeoutSeconds;
+  }
+
+  @Override
+  public <R> R withPriority(final TransactionPriority priority, final Supplier<R> callback) {
+    PropagationContext context = propagationContext.get();
+    TransactionPriority previousPriority = context.priority;
+    context.priority = priority;
+    try {
+      return callback.get();
+    } finally {
+      context.priority = previousPriority;
+    }
+  }
 }
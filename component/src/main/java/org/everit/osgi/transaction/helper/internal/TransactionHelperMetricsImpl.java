@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.everit.osgi.transaction.helper.api.LatencyStatistics;
+import org.everit.osgi.transaction.helper.api.TransactionHelperMetrics;
+import org.everit.osgi.transaction.helper.api.TransactionPhase;
+
+/**
+ * Default implementation of {@link TransactionHelperMetrics}. The counters are {@link LongAdder}s
+ * and there is one {@link LatencyHistogram} for every propagation and phase, so recording does not
+ * lock and the memory usage does not grow. The {@link TransactionHelperImpl} checks
+ * {@link #isEnabled()} before it reads the clock, so disabled metrics cost one volatile read per
+ * phase.
+ */
+public class TransactionHelperMetricsImpl implements TransactionHelperMetrics {
+
+  private static final TransactionPhase[] PHASES = TransactionPhase.values();
+
+  private static final Propagation[] PROPAGATIONS = Propagation.values();
+
+  private final LongAdder commitCount = new LongAdder();
+
+  private volatile boolean enabled;
+
+  private final LatencyHistogram[] histograms =
+      new LatencyHistogram[PROPAGATIONS.length * PHASES.length];
+
+  private final LongAdder notAllowedStatusCount = new LongAdder();
+
+  private final LongAdder rollbackCount = new LongAdder();
+
+  private final LongAdder rollbackOnlyCount = new LongAdder();
+
+  /**
+   * Constructor.
+   */
+  public TransactionHelperMetricsImpl() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+  }
+
+  void commitDone() {
+    commitCount.increment();
+  }
+
+  @Override
+  public long getCommitCount() {
+    return commitCount.sum();
+  }
+
+  @Override
+  public Map<String, LatencyStatistics> getLatencies() {
+    Map<String, LatencyStatistics> result = new TreeMap<>();
+    for (Propagation propagation : PROPAGATIONS) {
+      for (TransactionPhase phase : PHASES) {
+        LatencyStatistics statistics = histogram(propagation, phase).snapshot();
+        if (statistics != null) {
+          result.put(propagation.name() + "." + phase.name(), statistics);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public long getNotAllowedStatusCount() {
+    return notAllowedStatusCount.sum();
+  }
+
+  @Override
+  public long getRollbackCount() {
+    return rollbackCount.sum();
+  }
+
+  @Override
+  public long getRollbackOnlyCount() {
+    return rollbackOnlyCount.sum();
+  }
+
+  private LatencyHistogram histogram(final Propagation propagation, final TransactionPhase phase) {
+    return histograms[(propagation.ordinal() * PHASES.length) + phase.ordinal()];
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  void notAllowedStatus() {
+    notAllowedStatusCount.increment();
+  }
+
+  void record(final Propagation propagation, final TransactionPhase phase, final long nanos) {
+    histogram(propagation, phase).record(nanos);
+  }
+
+  @Override
+  public void reset() {
+    commitCount.reset();
+    notAllowedStatusCount.reset();
+    rollbackCount.reset();
+    rollbackOnlyCount.reset();
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+  }
+
+  void rollbackDone() {
+    rollbackCount.increment();
+  }
+
+  void rollbackOnlyMarked() {
+    rollbackOnlyCount.increment();
+  }
+
+  @Override
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * A transaction manager of a {@link TransactionHelperImpl} with the number of threads whose
+ * propagation calls use it. The outermost call of a thread uses the same transaction manager until
+ * it returns, so a replaced transaction manager can be released when the number drops to zero.
+ */
+final class TransactionManagerBinding {
+
+  private static final long DRAIN_POLL_MILLIS = 10;
+
+  private final LongAdder activeCallCount = new LongAdder();
+
+  final TransactionManager transactionManager;
+
+  TransactionManagerBinding(final TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+
+  void acquire() {
+    activeCallCount.increment();
+  }
+
+  /**
+   * Waits until no propagation call uses the transaction manager. The binding must not be
+   * acquired by new calls anymore.
+   *
+   * @param timeoutMillis
+   *          The maximum time to wait in milliseconds.
+   * @return <code>true</code> if the transaction manager is not used anymore.
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting.
+   */
+  boolean awaitDrained(final long timeoutMillis) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (activeCallCount.sum() > 0) {
+      if ((deadline - System.nanoTime()) <= 0) {
+        return false;
+      }
+      Thread.sleep(DRAIN_POLL_MILLIS);
+    }
+    return true;
+  }
+
+  void release() {
+    activeCallCount.decrement();
+  }
+}
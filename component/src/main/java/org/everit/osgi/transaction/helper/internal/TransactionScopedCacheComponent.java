@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.Dictionary;
+import java.util.function.Function;
+
+import javax.transaction.TransactionManager;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.everit.osgi.transaction.helper.api.TransactionScopedCache;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.ComponentException;
+
+/**
+ * Implementation of {@link TransactionScopedCache}.
+ */
+@Component(name = "org.everit.osgi.transaction.helper.TransactionScopedCache", metatype = true)
+@Properties({ @Property(name = "transactionManager.target"),
+    @Property(name = TransactionScopedCacheComponent.PROP_MAX_SIZE,
+        intValue = TransactionScopedCacheComponent.DEFAULT_MAX_SIZE) })
+@Service(value = TransactionScopedCache.class)
+@Reference(name = "transactionManager", referenceInterface = TransactionManager.class,
+    policy = ReferencePolicy.STATIC,
+    bind = "setTransactionManager")
+public class TransactionScopedCacheComponent implements TransactionScopedCache {
+
+  /**
+   * Default of the maximum number of values that are cached in one transaction.
+   */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+
+  /**
+   * Configuration property of the maximum number of values that are cached in one transaction.
+   */
+  public static final String PROP_MAX_SIZE = "maxSize";
+
+  TransactionScopedCacheImpl wrapped = new TransactionScopedCacheImpl();
+
+  /**
+   * Applies the configuration of the component.
+   *
+   * @param componentContext
+   *          The context of the component.
+   */
+  @Activate
+  public void activate(final ComponentContext componentContext) {
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    Object maxSize = properties.get(PROP_MAX_SIZE);
+    try {
+      wrapped.setMaxSize((maxSize != null) ? Integer.parseInt(String.valueOf(maxSize).trim())
+          : DEFAULT_MAX_SIZE);
+    } catch (IllegalArgumentException e) {
+      throw new ComponentException("Invalid value of " + PROP_MAX_SIZE + ": " + maxSize, e);
+    }
+  }
+
+  @Override
+  public <K, V> V computeIfAbsent(final K key, final Function<? super K, ? extends V> loader) {
+    return wrapped.computeIfAbsent(key, loader);
+  }
+
+  @Override
+  public void invalidate(final Object key) {
+    wrapped.invalidate(key);
+  }
+
+  protected void setTransactionManager(final TransactionManager transactionManager) {
+    wrapped.setTransactionManager(transactionManager);
+  }
+
+  protected void unbindTransactionManager(final TransactionManager transactionManager) {
+    wrapped.setTransactionManager(null);
+  }
+
+}
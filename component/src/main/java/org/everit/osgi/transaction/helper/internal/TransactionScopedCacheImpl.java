@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.everit.osgi.transaction.helper.api.TransactionScopedCache;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+
+/**
+ * Default implementation of {@link TransactionScopedCache}. The cache of a transaction is a least
+ * recently used map that is created on the first use in the transaction, together with the
+ * {@link Synchronization} that discards it after the completion.
+ */
+public class TransactionScopedCacheImpl implements TransactionScopedCache {
+
+  /**
+   * The cache of one transaction. The values are held in a field so the cache keeps the identity
+   * based equality that the transaction expects from a registered {@link Synchronization}.
+   */
+  private final class TransactionCache implements Synchronization {
+
+    private final Transaction transaction;
+
+    private final Map<Object, Object> values = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Object, Object> eldest) {
+        return size() > maxSize;
+      }
+    };
+
+    TransactionCache(final Transaction transaction) {
+      this.transaction = transaction;
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+      cachesByTransaction.remove(transaction);
+    }
+
+    @Override
+    public void beforeCompletion() {
+      // Values are still used during the completion
+    }
+  }
+
+  private final Map<Transaction, TransactionCache> cachesByTransaction =
+      new ConcurrentHashMap<>();
+
+  private volatile int maxSize = TransactionScopedCacheComponent.DEFAULT_MAX_SIZE;
+
+  private TransactionManager transactionManager;
+
+  int activeCacheCount() {
+    return cachesByTransaction.size();
+  }
+
+  @Override
+  public <K, V> V computeIfAbsent(final K key, final Function<? super K, ? extends V> loader) {
+    Transaction transaction = getActiveTransaction();
+    if (transaction == null) {
+      return loader.apply(key);
+    }
+    TransactionCache cache = cachesByTransaction.computeIfAbsent(transaction,
+        this::registerCache);
+    synchronized (cache) {
+      @SuppressWarnings("unchecked")
+      V value = (V) cache.values.get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    // The loader is called without holding the lock, so it may use the cache as well
+    V value = loader.apply(key);
+    if (value != null) {
+      synchronized (cache) {
+        cache.values.put(key, value);
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Returns the transaction of the current thread if it is active.
+   *
+   * @return The active transaction or <code>null</code>.
+   */
+  private Transaction getActiveTransaction() {
+    try {
+      Transaction transaction = transactionManager.getTransaction();
+      if ((transaction == null) || (transaction.getStatus() != Status.STATUS_ACTIVE)) {
+        return null;
+      }
+      return transaction;
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+  }
+
+  @Override
+  public void invalidate(final Object key) {
+    Transaction transaction = getActiveTransaction();
+    if (transaction == null) {
+      return;
+    }
+    TransactionCache cache = cachesByTransaction.get(transaction);
+    if (cache != null) {
+      synchronized (cache) {
+        cache.values.remove(key);
+      }
+    }
+  }
+
+  private TransactionCache registerCache(final Transaction transaction) {
+    TransactionCache cache = new TransactionCache(transaction);
+    try {
+      transaction.registerSynchronization(cache);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+    return cache;
+  }
+
+  /**
+   * Sets the maximum number of values that are cached in one transaction.
+   *
+   * @param maxSize
+   *          The maximum size of the cache of a transaction.
+   */
+  public void setMaxSize(final int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+    }
+    this.maxSize = maxSize;
+  }
+
+  public void setTransactionManager(final TransactionManager transactionManager) {
+    this.transactionManager = transactionManager;
+  }
+}
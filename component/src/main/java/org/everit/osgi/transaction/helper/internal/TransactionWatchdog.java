@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.osgi.transaction.helper.api.InFlightTransaction;
+
+/**
+ * Checks the {@link InFlightTransactionRegistryImpl} periodically on a daemon thread and reports
+ * every transaction that is in flight for longer than the threshold. A transaction is reported
+ * only once.
+ */
+class TransactionWatchdog {
+
+  private static final long MIN_PERIOD_MILLIS = 10;
+
+  private ScheduledExecutorService executor;
+
+  private final InFlightTransactionRegistryImpl registry;
+
+  private final Consumer<InFlightTransaction> reporter;
+
+  private final long thresholdMillis;
+
+  TransactionWatchdog(final InFlightTransactionRegistryImpl registry, final long thresholdMillis,
+      final Consumer<InFlightTransaction> reporter) {
+    if (thresholdMillis < 1) {
+      throw new IllegalArgumentException("Threshold must be positive: " + thresholdMillis);
+    }
+    this.registry = registry;
+    this.thresholdMillis = thresholdMillis;
+    this.reporter = reporter;
+  }
+
+  private void check() {
+    try {
+      registry.reportLongRunning(TimeUnit.MILLISECONDS.toNanos(thresholdMillis), reporter);
+    } catch (RuntimeException e) {
+      // A failing reporter must not stop the periodic checks
+      Thread thread = Thread.currentThread();
+      thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+  }
+
+  synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "TransactionHelper watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long periodMillis = Math.max(MIN_PERIOD_MILLIS, thresholdMillis / 2);
+    executor.scheduleWithFixedDelay(this::check, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.ChunkSubscription;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link AdaptiveChunkSubscriber}.
+ */
+public class AdaptiveChunkSubscriberTest {
+
+  /**
+   * Publisher that delivers the numbers from zero on the calling thread as they are requested.
+   */
+  private static class RangePublisher implements ChunkSubscription {
+
+    private boolean delivering;
+
+    private long demand;
+
+    int maxDemand;
+
+    private int next;
+
+    private final int size;
+
+    private final AdaptiveChunkSubscriber<Integer> subscriber;
+
+    RangePublisher(final AdaptiveChunkSubscriber<Integer> subscriber, final int size) {
+      this.subscriber = subscriber;
+      this.size = size;
+    }
+
+    @Override
+    public void cancel() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void request(final long n) {
+      demand += n;
+      maxDemand = (int) Math.max(maxDemand, demand);
+      if (delivering) {
+        return;
+      }
+      delivering = true;
+      while ((demand > 0) && (next < size)) {
+        demand--;
+        subscriber.onNext(next++);
+      }
+      delivering = false;
+      if (next == size) {
+        subscriber.onComplete();
+      }
+    }
+
+    void subscribe() {
+      subscriber.onSubscribe(this);
+    }
+  }
+
+  private final List<Integer> processedItems = new ArrayList<>();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  @Test
+  public void testChunkSizeGrowsUpToMaximum() throws InterruptedException, ExecutionException {
+    AdaptiveChunkSubscriber<Integer> subscriber =
+        new AdaptiveChunkSubscriber<>(transactionHelper, 60000, 100, processedItems::add);
+    RangePublisher publisher = new RangePublisher(subscriber, 5000);
+    publisher.subscribe();
+
+    BatchResult<Integer> result = subscriber.getResult().get();
+    Assert.assertTrue(result.isSuccessful());
+    Assert.assertEquals(5000, result.getCommittedCount());
+    Assert.assertEquals(5000, processedItems.size());
+    Assert.assertEquals(100, subscriber.getChunkSize());
+    Assert.assertTrue(result.getTransactionCount() < 70);
+    Assert.assertEquals(result.getTransactionCount(), transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(100, publisher.maxDemand);
+  }
+
+  @Test
+  public void testErrorOfStreamCommitsReceivedElements() {
+    AdaptiveChunkSubscriber<Integer> subscriber =
+        new AdaptiveChunkSubscriber<>(transactionHelper, 60000, 100, processedItems::add);
+    subscriber.onSubscribe(new RangePublisher(subscriber, 0) {
+      @Override
+      public void request(final long n) {
+      }
+    });
+    subscriber.onNext(1);
+    subscriber.onNext(2);
+    IllegalStateException error = new IllegalStateException();
+    subscriber.onError(error);
+    Assert.assertEquals(2, processedItems.size());
+    Assert.assertTrue(subscriber.getResult().isCompletedExceptionally());
+  }
+
+  @Test
+  public void testFailingElementIsIsolatedAndChunkShrinks()
+      throws InterruptedException, ExecutionException {
+    AdaptiveChunkSubscriber<Integer> subscriber =
+        new AdaptiveChunkSubscriber<>(transactionHelper, 60000, 16, (item) -> {
+          if (item == 20) {
+            throw new IllegalArgumentException();
+          }
+        });
+    new RangePublisher(subscriber, 32).subscribe();
+    BatchResult<Integer> result = subscriber.getResult().get();
+    Assert.assertEquals(31, result.getCommittedCount());
+    Assert.assertEquals(1, result.getFailures().size());
+    Assert.assertEquals(Integer.valueOf(20), result.getFailures().get(0).getItem());
+    Assert.assertEquals(8, subscriber.getChunkSize());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaxChunkSize() {
+    transactionHelper.<Integer>requiresNewSubscriber(1000, 0, processedItems::add);
+  }
+}
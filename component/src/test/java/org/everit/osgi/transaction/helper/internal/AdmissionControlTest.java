@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.everit.osgi.transaction.helper.api.TransactionRejectedException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the admission control of {@link TransactionHelperImpl}.
+ */
+public class AdmissionControlTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private TransactionHelperImpl transactionHelper;
+
+  private void awaitWaitingCount(final AdmissionControl admissionControl, final int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (admissionControl.getWaitingCount() < count) {
+      Assert.assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  @Before
+  public void before() {
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(new CountingTransactionManager());
+  }
+
+  /**
+   * Starts a thread that holds the only admission until {@link #release} is counted down.
+   */
+  private Thread holdAdmission(final AdmissionControl admissionControl)
+      throws InterruptedException {
+    CountDownLatch admitted = new CountDownLatch(1);
+    Thread thread = new Thread(() -> transactionHelper.requiredAsVoid(() -> {
+      admitted.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    thread.start();
+    admitted.await();
+    Assert.assertEquals(1, admissionControl.getActiveCount());
+    return thread;
+  }
+
+  @Test
+  public void testHigherPriorityIsAdmittedFirst() throws InterruptedException {
+    AdmissionControl admissionControl = new AdmissionControl(1, 10, 10000);
+    transactionHelper.setAdmissionControl(admissionControl);
+    Thread holder = holdAdmission(admissionControl);
+    List<TransactionPriority> admittedPriorities = new CopyOnWriteArrayList<>();
+    Thread low = new Thread(() -> transactionHelper.withPriorityAsVoid(TransactionPriority.LOW,
+        () -> transactionHelper.requiredAsVoid(() -> {
+          admittedPriorities.add(TransactionPriority.LOW);
+        })));
+    low.start();
+    awaitWaitingCount(admissionControl, 1);
+    Thread high = new Thread(() -> transactionHelper.withPriorityAsVoid(TransactionPriority.HIGH,
+        () -> transactionHelper.requiredAsVoid(() -> {
+          admittedPriorities.add(TransactionPriority.HIGH);
+        })));
+    high.start();
+    awaitWaitingCount(admissionControl, 2);
+
+    release.countDown();
+    holder.join();
+    low.join();
+    high.join();
+    Assert.assertEquals("[HIGH, LOW]", admittedPriorities.toString());
+    Assert.assertEquals(0, admissionControl.getActiveCount());
+  }
+
+  @Test
+  public void testNestedNewTransactionNeedsNoAdmission() {
+    AdmissionControl admissionControl = new AdmissionControl(1, 0, 0);
+    transactionHelper.setAdmissionControl(admissionControl);
+    int activeCount = transactionHelper.requiredAsInt(() -> transactionHelper
+        .requiresNewAsInt(admissionControl::getActiveCount));
+    Assert.assertEquals(1, activeCount);
+    try {
+      transactionHelper.required(() -> {
+        throw new IllegalArgumentException();
+      });
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(0, admissionControl.getActiveCount());
+    }
+  }
+
+  @Test
+  public void testRejectedWhenQueueIsFull() throws InterruptedException {
+    AdmissionControl admissionControl = new AdmissionControl(1, 0, 10000);
+    transactionHelper.setAdmissionControl(admissionControl);
+    Thread holder = holdAdmission(admissionControl);
+    try {
+      transactionHelper.requiredAsVoid(() -> Assert.fail("Transaction should be rejected"));
+      Assert.fail("Transaction should be rejected");
+    } catch (TransactionRejectedException e) {
+      Assert.assertEquals(1, admissionControl.getRejectedCount());
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+    // Joining an ongoing transaction is never rejected
+    transactionHelper.requiredAsVoid(() -> transactionHelper.mandatoryAsVoid(() -> {
+    }));
+  }
+
+  @Test
+  public void testRejectedWhenWaitTimesOut() throws InterruptedException {
+    AdmissionControl admissionControl = new AdmissionControl(1, 1, 20);
+    transactionHelper.setAdmissionControl(admissionControl);
+    Thread holder = holdAdmission(admissionControl);
+    try {
+      transactionHelper.requiresNewAsVoid(() -> Assert.fail("Transaction should be rejected"));
+      Assert.fail("Transaction should be rejected");
+    } catch (TransactionRejectedException e) {
+      Assert.assertTrue(e.getMessage().contains("timed out"));
+      Assert.assertEquals(0, admissionControl.getWaitingCount());
+    } finally {
+      release.countDown();
+      holder.join();
+    }
+  }
+}
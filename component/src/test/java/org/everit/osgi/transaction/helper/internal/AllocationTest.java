@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the success paths of the propagation functions do not allocate more memory than the
+ * transaction manager does when it is called directly. The JIT may still be compiling during the
+ * first rounds, so the lowest of several measurements is compared, with a tolerance that is
+ * smaller than any object. An allocation in every call is detected, a few allocations of the JVM
+ * during the measurement are not.
+ */
+public class AllocationTest {
+
+  /**
+   * An action that may throw an exception.
+   */
+  private interface Action {
+    void run() throws Exception;
+  }
+
+  private static final Supplier<Object> CALLBACK = () -> AllocationTest.class;
+
+  private static final int ITERATIONS = 100000;
+
+  private static final int MEASUREMENT_ROUNDS = 5;
+
+  /**
+   * The tolerated difference of the average allocation per call. Every object takes at least 16
+   * bytes, so allocating one in each call exceeds it.
+   */
+  private static final long TOLERATED_BYTES_PER_CALL = 8;
+
+  private static final int WARMUP_ITERATIONS = 20000;
+
+  private long counter;
+
+  /**
+   * Returns values that are out of the range of the cached Long instances, so boxing would
+   * allocate.
+   */
+  private final LongSupplier longCallback = () -> counter += Integer.MAX_VALUE;
+
+  private final Runnable runnableCallback = () -> counter++;
+
+  private com.sun.management.ThreadMXBean threadMXBean;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  private Transaction outerTransaction;
+
+  @After
+  public void after() throws Exception {
+    if (outerTransaction != null) {
+      transactionManager.rollback();
+    }
+  }
+
+  private long allocatedBytesPerCall(final Action action) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      action.run();
+    }
+    long threadId = Thread.currentThread().getId();
+    long lowestBytesPerCall = Long.MAX_VALUE;
+    for (int round = 0; round < MEASUREMENT_ROUNDS; round++) {
+      long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < ITERATIONS; i++) {
+        action.run();
+      }
+      long allocatedAfter = threadMXBean.getThreadAllocatedBytes(threadId);
+      lowestBytesPerCall =
+          Math.min(lowestBytesPerCall, (allocatedAfter - allocatedBefore) / ITERATIONS);
+    }
+    return lowestBytesPerCall;
+  }
+
+  private void assertNoExtraAllocation(final Action helperCall, final Action directCall)
+      throws Exception {
+    long directBytes = allocatedBytesPerCall(directCall);
+    long helperBytes = allocatedBytesPerCall(helperCall);
+    Assert.assertTrue("Helper allocated " + helperBytes + " bytes per call, the transaction "
+        + "manager " + directBytes + " bytes",
+        helperBytes <= (directBytes + TOLERATED_BYTES_PER_CALL));
+  }
+
+  @Before
+  public void before() {
+    java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(mxBean instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean) mxBean;
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  private void beginOuterTransaction() throws Exception {
+    transactionManager.begin();
+    outerTransaction = transactionManager.getTransaction();
+  }
+
+  @Test
+  public void testMandatoryOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.mandatory(CALLBACK), () -> CALLBACK.get());
+  }
+
+  @Test
+  public void testNeverNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.never(CALLBACK), () -> CALLBACK.get());
+  }
+
+  @Test
+  public void testNotSupportedNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.notSupported(CALLBACK), () -> CALLBACK.get());
+  }
+
+  @Test
+  public void testNotSupportedOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.notSupported(CALLBACK), () -> {
+      Transaction suspended = transactionManager.suspend();
+      CALLBACK.get();
+      transactionManager.resume(suspended);
+    });
+  }
+
+  @Test
+  public void testRequiredNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.required(CALLBACK), () -> {
+      transactionManager.begin();
+      CALLBACK.get();
+      transactionManager.commit();
+    });
+  }
+
+  @Test
+  public void testRequiredOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.required(CALLBACK), () -> CALLBACK.get());
+  }
+
+  @Test
+  public void testRequiredAsLongOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.requiredAsLong(longCallback),
+        () -> longCallback.getAsLong());
+  }
+
+  @Test
+  public void testRequiredRunnableNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.requiredAsVoid(runnableCallback), () -> {
+      transactionManager.begin();
+      runnableCallback.run();
+      transactionManager.commit();
+    });
+  }
+
+  @Test
+  public void testRequiresNewNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.requiresNew(CALLBACK), () -> {
+      transactionManager.begin();
+      CALLBACK.get();
+      transactionManager.commit();
+    });
+  }
+
+  @Test
+  public void testRequiresNewOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.requiresNew(CALLBACK), () -> {
+      Transaction suspended = transactionManager.suspend();
+      transactionManager.begin();
+      CALLBACK.get();
+      transactionManager.commit();
+      transactionManager.resume(suspended);
+    });
+  }
+
+  @Test
+  public void testSupportsNoTransaction() throws Exception {
+    assertNoExtraAllocation(() -> transactionHelper.supports(CALLBACK), () -> CALLBACK.get());
+  }
+
+  @Test
+  public void testSupportsOngoingTransaction() throws Exception {
+    beginOuterTransaction();
+    assertNoExtraAllocation(() -> transactionHelper.supports(CALLBACK), () -> CALLBACK.get());
+  }
+}
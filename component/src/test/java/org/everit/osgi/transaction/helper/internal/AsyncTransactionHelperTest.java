@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.transaction.Status;
+
+import org.everit.osgi.transaction.helper.api.FanOutResult;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link AsyncTransactionHelperImpl}.
+ */
+public class AsyncTransactionHelperTest {
+
+  private AsyncTransactionHelperImpl asyncTransactionHelper;
+
+  private ExecutorService executor;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+    asyncTransactionHelper = new AsyncTransactionHelperImpl();
+    asyncTransactionHelper.setTransactionHelper(transactionHelper);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  private List<Supplier<Integer>> failingUnits(final int count, final int failingIndex) {
+    return IntStream.range(0, count).mapToObj((i) -> (Supplier<Integer>) () -> {
+      if (i == failingIndex) {
+        throw new IllegalStateException("Unit " + i + " fails");
+      }
+      return i;
+    }).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testFailureRollsBackOnWorkerThread() throws InterruptedException {
+    IllegalStateException failure = new IllegalStateException();
+    CompletableFuture<Object> future = asyncTransactionHelper.requiresNewAsync(executor, () -> {
+      throw failure;
+    });
+    try {
+      future.get();
+      Assert.fail("Exception should have been thrown");
+    } catch (ExecutionException e) {
+      Assert.assertSame(failure, e.getCause());
+    }
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testFanOutCommitsEveryUnit() {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      FanOutResult<Integer> result =
+          asyncTransactionHelper.requiresNewAll(pool, failingUnits(20, -1), true).join();
+      Assert.assertTrue(result.isSuccessful());
+      for (int i = 0; i < 20; i++) {
+        Assert.assertEquals(Integer.valueOf(i), result.getUnitResults().get(i).getResult());
+      }
+      Assert.assertEquals(20, transactionManager.getCallCount(Call.COMMIT));
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFanOutFailFastCancelsUnitsNotStarted() {
+    FanOutResult<Integer> result =
+        asyncTransactionHelper.requiresNewAll(executor, failingUnits(5, 1), true).join();
+    Assert.assertEquals(1, result.getCommittedCount());
+    Assert.assertEquals(1, result.getFailedCount());
+    Assert.assertEquals(3, result.getCancelledCount());
+    Assert.assertTrue(result.getUnitResults().get(1).getFailure() instanceof IllegalStateException);
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.BEGIN));
+  }
+
+  @Test
+  public void testFanOutWithoutFailFastRunsEveryUnit() {
+    FanOutResult<Integer> result =
+        asyncTransactionHelper.requiresNewAll(executor, failingUnits(5, 1), false).join();
+    Assert.assertFalse(result.isSuccessful());
+    Assert.assertEquals(4, result.getCommittedCount());
+    Assert.assertEquals(1, result.getFailedCount());
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testTransactionIsBoundToWorkerThread() {
+    Thread callerThread = Thread.currentThread();
+    transactionHelper.required(() -> {
+      Thread workerThread = asyncTransactionHelper.requiredAsync(executor, () -> {
+        Assert.assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+        return Thread.currentThread();
+      }).join();
+      Assert.assertNotSame(callerThread, workerThread);
+      Assert.assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+      return null;
+    });
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.SUSPEND));
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.everit.osgi.transaction.helper.api.BatchResult;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the batch execution of {@link TransactionHelperImpl}.
+ */
+public class BatchExecutionTest {
+
+  private final List<Integer> committedItems = new ArrayList<>();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  private List<Integer> items(final int count) {
+    return IntStream.range(0, count).boxed().collect(Collectors.toList());
+  }
+
+  /**
+   * Adds the item to the committed items when the current transaction is committed.
+   */
+  private void recordOnCommit(final Integer item) {
+    try {
+      transactionManager.getTransaction().registerSynchronization(new Synchronization() {
+
+        @Override
+        public void afterCompletion(final int status) {
+          if (status == Status.STATUS_COMMITTED) {
+            committedItems.add(item);
+          }
+        }
+
+        @Override
+        public void beforeCompletion() {
+          if (item == 12) {
+            throw new IllegalStateException("Item 12 fails during commit");
+          }
+        }
+      });
+    } catch (RollbackException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testAllItemsCommitted() {
+    BatchResult<Integer> result = transactionHelper.requiresNewBatch(items(7), 3,
+        this::recordOnCommit);
+    Assert.assertTrue(result.isSuccessful());
+    Assert.assertEquals(7, result.getCommittedCount());
+    Assert.assertEquals(items(7), committedItems);
+    Assert.assertEquals(3, transactionManager.getCallCount(Call.BEGIN));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBatchSize() {
+    transactionHelper.requiresNewBatch(items(10), 0, (item) -> {
+    });
+  }
+
+  @Test
+  public void testFailingItemsAreIsolated() {
+    BatchResult<Integer> result = transactionHelper.requiresNewBatch(items(16).iterator(), 8,
+        (item) -> {
+          recordOnCommit(item);
+          if (item == 2) {
+            throw new NumberFormatException();
+          }
+        });
+
+    Assert.assertEquals(2, result.getFailures().size());
+    Assert.assertEquals(Integer.valueOf(2), result.getFailures().get(0).getItem());
+    Assert.assertEquals(NumberFormatException.class,
+        result.getFailures().get(0).getCause().getClass());
+    Assert.assertEquals(Integer.valueOf(12), result.getFailures().get(1).getItem());
+    Assert.assertEquals(TransactionalException.class,
+        result.getFailures().get(1).getCause().getClass());
+
+    Assert.assertEquals(14, result.getCommittedCount());
+    List<Integer> expectedCommittedItems = new ArrayList<>(items(16));
+    expectedCommittedItems.removeAll(Arrays.asList(2, 12));
+    committedItems.sort(null);
+    Assert.assertEquals(expectedCommittedItems, committedItems);
+
+    // Both chunks of 8 fail and are bisected into 2 * (2 + 2 + 2) transactions
+    Assert.assertEquals(14, result.getTransactionCount());
+    Assert.assertEquals(14, transactionManager.getCallCount(Call.BEGIN));
+  }
+}
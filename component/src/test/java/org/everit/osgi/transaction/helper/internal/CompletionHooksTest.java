@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.transaction.Status;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the completion hooks of {@link TransactionHelperImpl}.
+ */
+public class CompletionHooksTest {
+
+  private final List<String> calledHooks = new ArrayList<>();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  @Test
+  public void testFailingHookOnExecutorIsLogged() {
+    List<Runnable> tasks = new ArrayList<>();
+    transactionHelper.setHookExecutor(tasks::add);
+    transactionHelper.requiresNewAsVoid(() -> {
+      transactionHelper.afterCommit(() -> {
+        throw new IllegalStateException("Expected hook failure");
+      });
+      transactionHelper.afterCommit(() -> calledHooks.add("second"));
+    });
+    Assert.assertEquals(1, tasks.size());
+    tasks.get(0).run();
+    Assert.assertEquals(1, calledHooks.size());
+  }
+
+  @Test
+  public void testHooksAreCalledAfterCommit() {
+    int synchronizationCount = transactionHelper.requiredAsInt(() -> {
+      transactionHelper.afterCommit(() -> calledHooks.add("first"));
+      transactionHelper.mandatoryAsVoid(() -> {
+        transactionHelper.afterCompletion((status) -> calledHooks.add("status " + status));
+        transactionHelper.afterCommit(() -> calledHooks.add("third"));
+      });
+      Assert.assertTrue(calledHooks.isEmpty());
+      return transactionManager.getTransaction().getSynchronizations().size();
+    });
+    Assert.assertEquals(1, synchronizationCount);
+    Assert.assertEquals(3, calledHooks.size());
+    Assert.assertEquals("first", calledHooks.get(0));
+    Assert.assertEquals("status " + Status.STATUS_COMMITTED, calledHooks.get(1));
+    Assert.assertEquals("third", calledHooks.get(2));
+  }
+
+  @Test
+  public void testHooksAreCalledInlineWhenExecutorRejects() {
+    transactionHelper.setHookExecutor((task) -> {
+      throw new RejectedExecutionException();
+    });
+    transactionHelper.requiresNewAsVoid(() -> {
+      transactionHelper.afterCommit(() -> calledHooks.add("hook"));
+    });
+    Assert.assertEquals(1, calledHooks.size());
+  }
+
+  @Test
+  public void testHooksArePassedToExecutorAsOneTask() {
+    List<Runnable> tasks = new ArrayList<>();
+    transactionHelper.setHookExecutor(tasks::add);
+    transactionHelper.requiresNewAsVoid(() -> {
+      for (int i = 0; i < 10; i++) {
+        transactionHelper.afterCommit(() -> calledHooks.add("hook"));
+      }
+    });
+    Assert.assertTrue(calledHooks.isEmpty());
+    Assert.assertEquals(1, tasks.size());
+    tasks.get(0).run();
+    Assert.assertEquals(10, calledHooks.size());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNoTransaction() {
+    transactionHelper.afterCommit(() -> calledHooks.add("hook"));
+  }
+
+  @Test
+  public void testRollbackCallsOnlyCompletionHooks() {
+    try {
+      transactionHelper.required(() -> {
+        transactionHelper.afterCommit(() -> calledHooks.add("commit"));
+        transactionHelper.afterCompletion((status) -> calledHooks.add("status " + status));
+        throw new IllegalArgumentException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(1, calledHooks.size());
+      Assert.assertEquals("status " + Status.STATUS_ROLLEDBACK, calledHooks.get(0));
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+
+/**
+ * In-memory {@link TransactionManager} for the unit tests that counts how many times each of its
+ * functions is called.
+ */
+public class CountingTransactionManager implements TransactionManager {
+
+  /**
+   * The functions of the {@link TransactionManager}.
+   */
+  public enum Call {
+    BEGIN, COMMIT, GET_STATUS, GET_TRANSACTION, RESUME, ROLLBACK, SET_ROLLBACK_ONLY,
+    SET_TRANSACTION_TIMEOUT, SUSPEND
+  }
+
+  /**
+   * Transaction that keeps its status, enlisted resources and synchronizations in memory.
+   */
+  public static class CountingTransaction implements Transaction {
+
+    private final List<XAResource> resources = new ArrayList<>();
+
+    private int status = Status.STATUS_ACTIVE;
+
+    private final List<Synchronization> synchronizations = new ArrayList<>();
+
+    private final int timeout;
+
+    CountingTransaction(final int timeout) {
+      this.timeout = timeout;
+    }
+
+    @Override
+    public void commit() throws RollbackException {
+      if (status == Status.STATUS_ACTIVE) {
+        try {
+          for (int i = 0; i < synchronizations.size(); i++) {
+            synchronizations.get(i).beforeCompletion();
+          }
+        } catch (RuntimeException e) {
+          status = Status.STATUS_MARKED_ROLLBACK;
+        }
+      }
+      if (status == Status.STATUS_MARKED_ROLLBACK) {
+        rollback();
+        throw new RollbackException();
+      }
+      if (status != Status.STATUS_ACTIVE) {
+        throw new IllegalStateException("Transaction is not active");
+      }
+      complete(Status.STATUS_COMMITTED);
+    }
+
+    private void complete(final int completionStatus) {
+      status = completionStatus;
+      for (Synchronization synchronization : synchronizations) {
+        synchronization.afterCompletion(completionStatus);
+      }
+    }
+
+    @Override
+    public boolean delistResource(final XAResource xaRes, final int flag) {
+      return resources.remove(xaRes);
+    }
+
+    @Override
+    public boolean enlistResource(final XAResource xaRes) throws RollbackException {
+      checkCanRegister();
+      resources.add(xaRes);
+      return true;
+    }
+
+    private void checkCanRegister() throws RollbackException {
+      if (status == Status.STATUS_MARKED_ROLLBACK) {
+        throw new RollbackException();
+      }
+      if (status != Status.STATUS_ACTIVE) {
+        throw new IllegalStateException("Transaction is not active");
+      }
+    }
+
+    public List<XAResource> getResources() {
+      return resources;
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    public List<Synchronization> getSynchronizations() {
+      return synchronizations;
+    }
+
+    public int getTimeout() {
+      return timeout;
+    }
+
+    @Override
+    public void registerSynchronization(final Synchronization sync) throws RollbackException {
+      checkCanRegister();
+      synchronizations.add(sync);
+    }
+
+    @Override
+    public void rollback() {
+      if ((status != Status.STATUS_ACTIVE) && (status != Status.STATUS_MARKED_ROLLBACK)) {
+        throw new IllegalStateException("Transaction is not active");
+      }
+      complete(Status.STATUS_ROLLEDBACK);
+    }
+
+    @Override
+    public void setRollbackOnly() {
+      if ((status != Status.STATUS_ACTIVE) && (status != Status.STATUS_MARKED_ROLLBACK)) {
+        throw new IllegalStateException("Transaction is not active");
+      }
+      status = Status.STATUS_MARKED_ROLLBACK;
+    }
+  }
+
+  private static final Call[] CALLS = Call.values();
+
+  private final AtomicLongArray callCounts = new AtomicLongArray(CALLS.length);
+
+  private final ThreadLocal<CountingTransaction> currentTransaction = new ThreadLocal<>();
+
+  private final ThreadLocal<Integer> transactionTimeout = ThreadLocal.withInitial(() -> 0);
+
+  @Override
+  public void begin() throws NotSupportedException {
+    count(Call.BEGIN);
+    if (currentTransaction.get() != null) {
+      throw new NotSupportedException("Nested transactions are not supported");
+    }
+    currentTransaction.set(new CountingTransaction(transactionTimeout.get()));
+  }
+
+  @Override
+  public void commit() throws RollbackException {
+    count(Call.COMMIT);
+    CountingTransaction transaction = requireTransaction();
+    currentTransaction.set(null);
+    transaction.commit();
+  }
+
+  private void count(final Call call) {
+    callCounts.incrementAndGet(call.ordinal());
+  }
+
+  /**
+   * The number of calls of all functions since the creation or the last reset.
+   *
+   * @return The number of calls.
+   */
+  public long getCallCount() {
+    long result = 0;
+    for (int i = 0; i < CALLS.length; i++) {
+      result += callCounts.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * The number of calls of a function since the creation or the last reset.
+   *
+   * @param call
+   *          The function.
+   * @return The number of calls.
+   */
+  public long getCallCount(final Call call) {
+    return callCounts.get(call.ordinal());
+  }
+
+  @Override
+  public int getStatus() {
+    count(Call.GET_STATUS);
+    CountingTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      return Status.STATUS_NO_TRANSACTION;
+    }
+    return transaction.getStatus();
+  }
+
+  @Override
+  public CountingTransaction getTransaction() {
+    count(Call.GET_TRANSACTION);
+    return currentTransaction.get();
+  }
+
+  private CountingTransaction requireTransaction() {
+    CountingTransaction transaction = currentTransaction.get();
+    if (transaction == null) {
+      throw new IllegalStateException("No transaction associated with the current thread");
+    }
+    return transaction;
+  }
+
+  /**
+   * Sets the call counters to zero.
+   */
+  public void resetCallCounts() {
+    for (int i = 0; i < CALLS.length; i++) {
+      callCounts.set(i, 0);
+    }
+  }
+
+  @Override
+  public void resume(final Transaction tobj) throws InvalidTransactionException {
+    count(Call.RESUME);
+    if (!(tobj instanceof CountingTransaction)) {
+      throw new InvalidTransactionException("Unknown transaction: " + tobj);
+    }
+    if (currentTransaction.get() != null) {
+      throw new IllegalStateException("Thread is already associated with a transaction");
+    }
+    currentTransaction.set((CountingTransaction) tobj);
+  }
+
+  @Override
+  public void rollback() {
+    count(Call.ROLLBACK);
+    CountingTransaction transaction = requireTransaction();
+    currentTransaction.set(null);
+    transaction.rollback();
+  }
+
+  @Override
+  public void setRollbackOnly() {
+    count(Call.SET_ROLLBACK_ONLY);
+    requireTransaction().setRollbackOnly();
+  }
+
+  @Override
+  public void setTransactionTimeout(final int seconds) {
+    count(Call.SET_TRANSACTION_TIMEOUT);
+    transactionTimeout.set(seconds);
+  }
+
+  @Override
+  public Transaction suspend() {
+    count(Call.SUSPEND);
+    CountingTransaction transaction = currentTransaction.get();
+    currentTransaction.set(null);
+    return transaction;
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import org.everit.osgi.transaction.helper.api.EnlistmentMetrics;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link TransactionHelperImpl} with an {@link EnlistmentTrackingTransactionManager}.
+ */
+public class EnlistmentTrackingTest {
+
+  /**
+   * Resource with a name, like the ones that transaction managers write into their recovery log.
+   */
+  public interface NamedXAResource extends XAResource {
+
+    String getName();
+  }
+
+  /**
+   * Named resource that does nothing.
+   */
+  private static class NamedNoopXAResource extends NoopXAResource implements NamedXAResource {
+
+    @Override
+    public String getName() {
+      return "named";
+    }
+  }
+
+  /**
+   * Resource that does nothing.
+   */
+  private static class NoopXAResource implements XAResource {
+
+    @Override
+    public void commit(final Xid xid, final boolean onePhase) {
+    }
+
+    @Override
+    public void end(final Xid xid, final int flags) {
+    }
+
+    @Override
+    public void forget(final Xid xid) {
+    }
+
+    @Override
+    public int getTransactionTimeout() {
+      return 0;
+    }
+
+    @Override
+    public boolean isSameRM(final XAResource xares) {
+      return xares == this;
+    }
+
+    @Override
+    public int prepare(final Xid xid) {
+      return XAResource.XA_OK;
+    }
+
+    @Override
+    public Xid[] recover(final int flag) {
+      return new Xid[0];
+    }
+
+    @Override
+    public void rollback(final Xid xid) {
+    }
+
+    @Override
+    public boolean setTransactionTimeout(final int seconds) {
+      return false;
+    }
+
+    @Override
+    public void start(final Xid xid, final int flags) {
+    }
+  }
+
+  private EnlistmentMetrics metrics;
+
+  private EnlistmentTrackingTransactionManager trackingTransactionManager;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    trackingTransactionManager = new EnlistmentTrackingTransactionManager(transactionManager);
+    metrics = trackingTransactionManager.getMetrics();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(trackingTransactionManager);
+  }
+
+  /**
+   * Enlists resources and drives the commit protocol on them before the completion, as the
+   * {@link CountingTransactionManager} does not call the resources.
+   */
+  private void enlistResources(final int resourceCount) {
+    try {
+      Transaction transaction = trackingTransactionManager.getTransaction();
+      List<XAResource> resources = transactionManager.getTransaction().getResources();
+      for (int i = 0; i < resourceCount; i++) {
+        transaction.enlistResource(new NoopXAResource());
+      }
+      transaction.registerSynchronization(new Synchronization() {
+
+        @Override
+        public void afterCompletion(final int status) {
+        }
+
+        @Override
+        public void beforeCompletion() {
+          try {
+            boolean onePhase = resources.size() == 1;
+            if (!onePhase) {
+              for (XAResource resource : resources) {
+                resource.prepare(null);
+              }
+            }
+            for (XAResource resource : resources) {
+              resource.commit(null, onePhase);
+            }
+          } catch (XAException e) {
+            throw new TransactionalException(e);
+          }
+        }
+      });
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+  }
+
+  @Test
+  public void testNamedResourceKeepsItsInterface() {
+    transactionHelper.requiredAsVoid(() -> {
+      try {
+        NamedNoopXAResource resource = new NamedNoopXAResource();
+        trackingTransactionManager.getTransaction().enlistResource(resource);
+        XAResource enlisted = transactionManager.getTransaction().getResources().get(0);
+        Assert.assertTrue(enlisted instanceof NamedXAResource);
+        Assert.assertEquals("named", ((NamedXAResource) enlisted).getName());
+        Assert.assertTrue(enlisted.isSameRM(enlisted));
+        Assert.assertEquals(XAResource.XA_OK, enlisted.prepare(null));
+        Assert.assertTrue(trackingTransactionManager.getTransaction().delistResource(resource,
+            XAResource.TMSUCCESS));
+      } catch (RollbackException e) {
+        throw new TransactionalException(e);
+      } catch (SystemException e) {
+        throw new TransactionalException(e);
+      } catch (XAException e) {
+        throw new TransactionalException(e);
+      }
+    });
+    Assert.assertEquals(1, metrics.getResourcePrepareLatency().getCount());
+    Assert.assertEquals(1, metrics.getDelistCount());
+  }
+
+  @Test
+  public void testResourceCountDistribution() {
+    transactionHelper.requiredAsVoid(() -> {
+    });
+    transactionHelper.requiredAsVoid(() -> enlistResources(1));
+    transactionHelper.requiredAsVoid(() -> enlistResources(2));
+    transactionHelper.requiredAsVoid(() -> enlistResources(2));
+
+    long[] distribution = metrics.getResourceCountDistribution();
+    Assert.assertEquals(1, distribution[0]);
+    Assert.assertEquals(1, distribution[1]);
+    Assert.assertEquals(2, distribution[2]);
+    Assert.assertEquals(5, metrics.getEnlistCount());
+    Assert.assertEquals(1, metrics.getOnePhaseCommitCount());
+    Assert.assertEquals(2, metrics.getTwoPhaseCommitCount());
+    Assert.assertEquals(4, metrics.getResourcePrepareLatency().getCount());
+    Assert.assertEquals(5, metrics.getResourceCommitLatency().getCount());
+    Assert.assertEquals(1.0 / 3, metrics.getOnePhaseCommitRatio(), 0.001);
+
+    metrics.reset();
+    Assert.assertEquals(0, metrics.getResourceCountDistribution()[2]);
+    Assert.assertEquals(0, metrics.getEnlistCount());
+  }
+
+  @Test
+  public void testRolledBackTransactionIsNotCommitCounted() {
+    try {
+      transactionHelper.required(() -> {
+        Transaction transaction;
+        try {
+          transaction = trackingTransactionManager.getTransaction();
+          transaction.enlistResource(new NoopXAResource());
+        } catch (RollbackException e) {
+          throw new TransactionalException(e);
+        } catch (SystemException e) {
+          throw new TransactionalException(e);
+        }
+        throw new IllegalStateException("Rollback");
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Rollback", e.getMessage());
+    }
+    Assert.assertEquals(1, metrics.getResourceCountDistribution()[1]);
+    Assert.assertEquals(0, metrics.getOnePhaseCommitCount());
+    Assert.assertEquals(0, metrics.getTwoPhaseCommitCount());
+    Assert.assertNull(transactionManager.getTransaction());
+  }
+}
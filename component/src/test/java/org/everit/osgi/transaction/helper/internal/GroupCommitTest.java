@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link GroupCommit}.
+ */
+public class GroupCommitTest {
+
+  private static final int THREAD_COUNT = 4;
+
+  private ExecutorService executor;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+    executor = Executors.newFixedThreadPool(THREAD_COUNT);
+  }
+
+  private List<Future<String>> submitUnits(final IntFunction<String> unit) {
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      int index = i;
+      futures.add(executor
+          .submit(() -> transactionHelper.requiresNewMergeable(() -> unit.apply(index))));
+    }
+    return futures;
+  }
+
+  @Test
+  public void testFailingUnitIsIsolated() throws InterruptedException {
+    transactionHelper.setGroupCommit(new GroupCommit(transactionHelper, 10000000, THREAD_COUNT));
+    List<Future<String>> futures = submitUnits((index) -> {
+      if (index == 2) {
+        throw new IllegalArgumentException("unit " + index);
+      }
+      return "result " + index;
+    });
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      try {
+        Assert.assertEquals("result " + i, futures.get(i).get());
+        Assert.assertTrue(i != 2);
+      } catch (ExecutionException e) {
+        Assert.assertEquals(2, i);
+        Assert.assertEquals("unit 2", e.getCause().getMessage());
+      }
+    }
+    Assert.assertEquals(THREAD_COUNT + 1, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(THREAD_COUNT - 1, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testGroupSizeIsLimited() throws InterruptedException, ExecutionException {
+    transactionHelper.setGroupCommit(new GroupCommit(transactionHelper, 10000000, 2));
+    List<Future<String>> futures = submitUnits((index) -> "result " + index);
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      Assert.assertEquals("result " + i, futures.get(i).get());
+    }
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testUnitsOfDifferentPrioritiesAreNotMerged()
+      throws InterruptedException, ExecutionException {
+    transactionHelper.setGroupCommit(new GroupCommit(transactionHelper, 100000, THREAD_COUNT));
+    List<Future<Transaction>> futures = new ArrayList<>();
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      TransactionPriority priority = ((i % 2) == 0) ? TransactionPriority.HIGH
+          : TransactionPriority.LOW;
+      futures.add(executor.submit(() -> transactionHelper.withPriority(priority,
+          () -> transactionHelper.requiresNewMergeable(transactionManager::getTransaction))));
+    }
+    for (int i = 0; i < THREAD_COUNT; i += 2) {
+      for (int j = 1; j < THREAD_COUNT; j += 2) {
+        Assert.assertNotSame(futures.get(i).get(), futures.get(j).get());
+      }
+    }
+  }
+
+  @Test
+  public void testUnitWithDeadlineIsNotMerged() {
+    transactionHelper.setGroupCommit(new GroupCommit(transactionHelper, 10000000, THREAD_COUNT));
+    Assert.assertEquals("result", transactionHelper.requiresNewWithTimeout(30,
+        () -> transactionHelper.requiresNewMergeable(() -> "result")));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testUnitsAreCommittedTogether() throws InterruptedException, ExecutionException {
+    transactionHelper.setGroupCommit(new GroupCommit(transactionHelper, 10000000, THREAD_COUNT));
+    List<Future<String>> futures = submitUnits((index) -> "result " + index);
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      Assert.assertEquals("result " + i, futures.get(i).get());
+    }
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testWithoutGroupCommit() {
+    Assert.assertEquals("result", transactionHelper.requiresNewMergeable(() -> "result"));
+    Assert.assertEquals("result", transactionHelper.requiresNewMergeable(() -> "result"));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+  }
+}
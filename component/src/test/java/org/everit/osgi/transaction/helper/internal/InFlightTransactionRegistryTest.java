@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.everit.osgi.transaction.helper.api.InFlightTransaction;
+import org.everit.osgi.transaction.helper.api.InFlightTransactionRegistry;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the in-flight registry and the watchdog of {@link TransactionHelperImpl}.
+ */
+public class InFlightTransactionRegistryTest {
+
+  private InFlightTransactionRegistry registry;
+
+  private TransactionHelperImpl transactionHelper;
+
+  @Before
+  public void before() {
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(new CountingTransactionManager());
+    registry = transactionHelper.getInFlightRegistry();
+  }
+
+  @Test
+  public void testCallSiteIsCaptured() {
+    registry.setEnabled(true);
+    registry.setCaptureCallSite(true);
+    InFlightTransaction transaction =
+        transactionHelper.required(() -> registry.getInFlightTransactions(0).get(0));
+    Assert.assertTrue(Arrays.stream(transaction.getCallSite())
+        .anyMatch((element) -> "testCallSiteIsCaptured".equals(element.getMethodName())));
+    Assert.assertNull(transaction.getThreadStack());
+  }
+
+  @Test
+  public void testDisabledRegistryRegistersNothing() {
+    int count = transactionHelper.requiredAsInt(
+        () -> transactionHelper.requiresNew(() -> registry.getInFlightTransactions(0).size()));
+    Assert.assertEquals(0, count);
+  }
+
+  @Test
+  public void testTransactionsAreRegisteredUntilFinished() {
+    registry.setEnabled(true);
+    List<InFlightTransaction> transactions = transactionHelper.required(
+        () -> transactionHelper.requiresNew(() -> registry.getInFlightTransactions(0)));
+    Assert.assertEquals(3, transactions.size());
+    InFlightTransaction outer = transactions.get(0);
+    Assert.assertEquals("REQUIRED", outer.getPropagation());
+    Assert.assertFalse(outer.isSuspended());
+    Assert.assertEquals(Thread.currentThread().getName(), outer.getThreadName());
+    long suspendedCount = transactions.stream().filter(InFlightTransaction::isSuspended).count();
+    Assert.assertEquals(1, suspendedCount);
+    InFlightTransaction inner = transactions.stream()
+        .filter((transaction) -> !transaction.isSuspended()
+            && "REQUIRES_NEW".equals(transaction.getPropagation()))
+        .findFirst().get();
+    Assert.assertEquals(1, inner.getSuspendDepth());
+    Assert.assertNull(outer.getCallSite());
+
+    Assert.assertTrue(registry.getInFlightTransactions(0).isEmpty());
+  }
+
+  @Test
+  public void testWatchdogReportsLongRunningTransactionOnce() throws InterruptedException {
+    registry.setEnabled(true);
+    List<InFlightTransaction> reports = new CopyOnWriteArrayList<>();
+    TransactionWatchdog watchdog =
+        new TransactionWatchdog(transactionHelper.inFlightRegistry, 20, reports::add);
+    watchdog.start();
+    try {
+      transactionHelper.requiresNewAsVoid(() -> {
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+    } finally {
+      watchdog.stop();
+    }
+    Assert.assertEquals(1, reports.size());
+    InFlightTransaction report = reports.get(0);
+    Assert.assertTrue(report.getDurationMillis() >= 20);
+    Assert.assertNotNull(report.getThreadStack());
+  }
+}
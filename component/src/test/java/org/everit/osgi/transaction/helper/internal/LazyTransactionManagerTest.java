@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link TransactionHelperImpl} with a {@link LazyTransactionManager}.
+ */
+public class LazyTransactionManagerTest {
+
+  private LazyTransactionManager lazyTransactionManager;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  private void assertNoTransactionWasBegun() {
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    lazyTransactionManager = new LazyTransactionManager(transactionManager);
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(lazyTransactionManager);
+  }
+
+  private void enlistResource() {
+    try {
+      lazyTransactionManager.getTransaction().enlistResource(null);
+    } catch (RollbackException e) {
+      throw new TransactionalException(e);
+    } catch (SystemException e) {
+      throw new TransactionalException(e);
+    }
+  }
+
+  @Test
+  public void testEnlistmentBeginsTransaction() {
+    transactionHelper.requiredAsVoid(() -> {
+      Assert.assertFalse(lazyTransactionManager.isTransactionBegun());
+      transactionHelper.mandatoryAsVoid(this::enlistResource);
+      Assert.assertTrue(lazyTransactionManager.isTransactionBegun());
+      Assert.assertEquals(1, transactionManager.getTransaction().getResources().size());
+    });
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertNull(transactionManager.getTransaction());
+  }
+
+  @Test
+  public void testNestedNewTransactionSuspendsBegunTransaction() {
+    transactionHelper.requiredAsVoid(() -> {
+      enlistResource();
+      transactionHelper.requiresNewAsVoid(() -> {
+        Assert.assertNull(transactionManager.getTransaction());
+        enlistResource();
+      });
+      Assert.assertEquals(1, transactionManager.getTransaction().getResources().size());
+    });
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.SUSPEND));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.RESUME));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testRollbackOnlyWithoutBegin() {
+    try {
+      transactionHelper.requiredAsVoid(() -> {
+        try {
+          lazyTransactionManager.setRollbackOnly();
+        } catch (SystemException e) {
+          throw new TransactionalException(e);
+        }
+      });
+      Assert.fail("Commit should fail");
+    } catch (TransactionalException e) {
+      Assert.assertTrue(e.getCause() instanceof RollbackException);
+    }
+    assertNoTransactionWasBegun();
+  }
+
+  @Test
+  public void testUnusedTransactionIsNotBegun() {
+    String result = transactionHelper.required(() -> transactionHelper.requiresNew(() -> "result"));
+    Assert.assertEquals("result", result);
+    try {
+      transactionHelper.required(() -> {
+        throw new IllegalArgumentException();
+      });
+      Assert.fail("Exception of the callback should be thrown");
+    } catch (IllegalArgumentException e) {
+      assertNoTransactionWasBegun();
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+
+import org.everit.osgi.transaction.helper.api.SavepointParticipant;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the nested propagation of {@link TransactionHelperImpl}.
+ */
+public class NestedTest {
+
+  /**
+   * Participant that records the values written to it and restores them on rollback.
+   */
+  private static class ListParticipant implements SavepointParticipant<Integer> {
+
+    final List<String> events = new ArrayList<>();
+
+    final List<String> values = new ArrayList<>();
+
+    @Override
+    public void releaseSavepoint(final Integer savepoint) {
+      events.add("release " + savepoint);
+    }
+
+    @Override
+    public void rollbackToSavepoint(final Integer savepoint) {
+      events.add("rollback " + savepoint);
+      values.subList(savepoint, values.size()).clear();
+    }
+
+    @Override
+    public Integer setSavepoint() {
+      events.add("set " + values.size());
+      return values.size();
+    }
+  }
+
+  private final ListParticipant participant = new ListParticipant();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  @Test
+  public void testCaughtFailureOfJoiningCallMarksRollback() {
+    try {
+      transactionHelper.requiredAsVoid(() -> {
+        transactionHelper.nestedAsVoid(() -> {
+          try {
+            transactionHelper.mandatory(() -> {
+              throw new IllegalStateException();
+            });
+          } catch (IllegalStateException e) {
+            // Swallowed, so the scope cannot know what was undone
+            Assert.assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+          }
+        });
+        Assert.assertEquals(Status.STATUS_MARKED_ROLLBACK, transactionManager.getStatus());
+      });
+      Assert.fail("Commit should fail");
+    } catch (TransactionalException e) {
+      Assert.assertTrue(e.getCause() instanceof RollbackException);
+    }
+  }
+
+  @Test
+  public void testFailedScopeIsRolledBackToSavepoint() {
+    transactionHelper.requiredAsVoid(() -> {
+      transactionHelper.registerSavepointParticipant(participant);
+      participant.values.add("first");
+      for (int i = 0; i < 3; i++) {
+        int item = i;
+        try {
+          transactionHelper.nestedAsVoid(() -> {
+            participant.values.add("item " + item);
+            transactionHelper.mandatoryAsVoid(() -> {
+              if (item == 1) {
+                throw new IllegalArgumentException();
+              }
+            });
+          });
+        } catch (IllegalArgumentException e) {
+          Assert.assertEquals(1, item);
+        }
+      }
+      Assert.assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+    });
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.SET_ROLLBACK_ONLY));
+    Assert.assertEquals("[first, item 0, item 2]", participant.values.toString());
+    Assert.assertEquals("[set 1, release 1, set 2, rollback 2, set 2, release 2]",
+        participant.events.toString());
+  }
+
+  @Test
+  public void testNestedWithoutTransactionBeginsOne() {
+    transactionHelper
+        .nestedAsVoid(() -> transactionHelper.registerSavepointParticipant(participant));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertTrue(participant.events.isEmpty());
+  }
+
+  @Test
+  public void testParticipantJoiningInScopeIsRolledBack() {
+    transactionHelper.requiredAsVoid(() -> {
+      try {
+        transactionHelper.nested(() -> transactionHelper.nested(() -> {
+          transactionHelper.registerSavepointParticipant(participant);
+          participant.values.add("value");
+          throw new IllegalArgumentException();
+        }));
+      } catch (IllegalArgumentException e) {
+        Assert.assertTrue(participant.values.isEmpty());
+      }
+      Assert.assertEquals(Status.STATUS_ACTIVE, transactionManager.getStatus());
+    });
+    Assert.assertEquals("[set 0, set 0, rollback 0, rollback 0]", participant.events.toString());
+  }
+}
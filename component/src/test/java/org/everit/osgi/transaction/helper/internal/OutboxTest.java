@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link OutboxImpl}.
+ */
+public class OutboxTest {
+
+  private final List<String> dispatchedItems = new ArrayList<>();
+
+  private Path file;
+
+  private OutboxImpl outbox;
+
+  private final List<Runnable> tasks = new ArrayList<>();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @After
+  public void after() throws IOException {
+    outbox.close();
+    Files.deleteIfExists(file);
+    Files.delete(file.getParent());
+  }
+
+  @Before
+  public void before() throws IOException {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+    file = Files.createTempDirectory("outbox").resolve("outbox.log");
+    outbox = openOutbox(4096);
+  }
+
+  private OutboxImpl openOutbox(final int capacityBytes) throws IOException {
+    OutboxImpl result = new OutboxImpl();
+    result.setTransactionManager(transactionManager);
+    result.setDispatchExecutor(tasks::add);
+    result.setDispatcher((items) -> dispatchedItems.addAll(items.stream()
+        .map((item) -> new String(item, StandardCharsets.UTF_8)).collect(Collectors.toList())));
+    result.open(file, capacityBytes);
+    return result;
+  }
+
+  private void reopen() throws IOException {
+    outbox.close();
+    tasks.clear();
+    outbox = openOutbox(4096);
+  }
+
+  private void runTasks() {
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    tasks.clear();
+  }
+
+  private byte[] toBytes(final String item) {
+    return item.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testDispatchedItemsAreNotReplayed() throws IOException {
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("first")));
+    runTasks();
+    reopen();
+    Assert.assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void testItemsAreDispatchedAfterCommit() {
+    transactionHelper.requiredAsVoid(() -> {
+      outbox.add(toBytes("first"));
+      transactionHelper.requiresNewAsVoid(() -> outbox.add(toBytes("other")));
+      outbox.add(toBytes("second"));
+    });
+    Assert.assertEquals(2, tasks.size());
+    runTasks();
+    Assert.assertEquals("[other, first, second]", dispatchedItems.toString());
+  }
+
+  @Test
+  public void testFailedDispatchIsDroppedWhenRetriesRunOut() throws IOException {
+    outbox.setDispatchRetryPolicy(new RetryPolicy(2, 0, 0, (e) -> true));
+    outbox.setDispatcher((items) -> {
+      throw new IllegalStateException("Dispatcher is down");
+    });
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("first")));
+    runTasks();
+    reopen();
+    Assert.assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void testFailedDispatchIsRetried() {
+    int[] failures = new int[] { 2 };
+    outbox.setDispatchRetryPolicy(new RetryPolicy(3, 0, 0, (e) -> true));
+    outbox.setDispatcher((items) -> {
+      if (failures[0]-- > 0) {
+        throw new IllegalStateException("Dispatcher is down");
+      }
+      dispatchedItems.add(new String(items.get(0), StandardCharsets.UTF_8));
+    });
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("first")));
+    runTasks();
+    Assert.assertEquals("[first]", dispatchedItems.toString());
+  }
+
+  @Test
+  public void testLogIsCompactedWhileTransactionsArePending() throws IOException {
+    // One transaction always waits for the dispatch, while many times the capacity is written
+    transactionHelper.requiresNewAsVoid(() -> outbox.add(toBytes("0")));
+    for (int i = 1; i < 200; i++) {
+      String item = String.valueOf(i);
+      transactionHelper.requiresNewAsVoid(() -> outbox.add(toBytes(item)));
+      tasks.remove(0).run();
+    }
+    Assert.assertEquals(199, dispatchedItems.size());
+    reopen();
+    Assert.assertEquals(1, tasks.size());
+    runTasks();
+    Assert.assertEquals("199", dispatchedItems.get(199));
+  }
+
+  @Test
+  public void testPendingItemsSurviveCompaction() throws IOException {
+    transactionHelper.requiresNewAsVoid(() -> outbox.add(toBytes("pending")));
+    for (int i = 0; i < 100; i++) {
+      transactionHelper.requiresNewAsVoid(() -> outbox.add(new byte[100]));
+      tasks.remove(1).run();
+    }
+    reopen();
+    runTasks();
+    Assert.assertEquals("pending", dispatchedItems.get(dispatchedItems.size() - 1));
+  }
+
+  @Test
+  public void testPendingItemsSurviveReopeningWithLargerCapacity() throws IOException {
+    transactionHelper.requiresNewAsVoid(() -> outbox.add(toBytes("pending")));
+    // Compacts twice, so the log is in the region that starts after the first one
+    for (int i = 0; i < 40; i++) {
+      transactionHelper.requiresNewAsVoid(() -> outbox.add(new byte[100]));
+      tasks.remove(1).run();
+    }
+    outbox.close();
+    tasks.clear();
+    outbox = openOutbox(8192);
+    Assert.assertEquals(1, tasks.size());
+    runTasks();
+    Assert.assertEquals("pending", dispatchedItems.get(dispatchedItems.size() - 1));
+    Assert.assertEquals(4096, Files.size(file));
+  }
+
+  @Test
+  public void testRolledBackItemsAreNotDispatched() throws IOException {
+    try {
+      transactionHelper.required(() -> {
+        outbox.add(toBytes("callback fails"));
+        throw new IllegalStateException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(tasks.isEmpty());
+    }
+    try {
+      transactionHelper.requiredAsVoid(() -> {
+        outbox.add(toBytes("commit fails"));
+        try {
+          transactionManager.getTransaction().registerSynchronization(new Synchronization() {
+
+            @Override
+            public void afterCompletion(final int status) {
+            }
+
+            @Override
+            public void beforeCompletion() {
+              throw new IllegalStateException("Fails after the outbox was written");
+            }
+          });
+        } catch (RollbackException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (TransactionalException e) {
+      Assert.assertTrue(tasks.isEmpty());
+    }
+    reopen();
+    Assert.assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void testTooLargeTransactionFailsCommit() {
+    try {
+      transactionHelper.requiredAsVoid(() -> outbox.add(new byte[8192]));
+      Assert.fail("Exception should have been thrown");
+    } catch (TransactionalException e) {
+      Assert.assertTrue(e.getCause() instanceof RollbackException);
+      Assert.assertTrue(tasks.isEmpty());
+    }
+  }
+
+  @Test
+  public void testUndispatchedItemsAreReplayed() throws IOException {
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("first")));
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("second")));
+    tasks.get(1).run();
+    reopen();
+    Assert.assertEquals(1, tasks.size());
+    runTasks();
+    Assert.assertEquals("[second, first]", dispatchedItems.toString());
+
+    transactionHelper.requiredAsVoid(() -> outbox.add(toBytes("third")));
+    runTasks();
+    Assert.assertEquals("[second, first, third]", dispatchedItems.toString());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the read-only propagation of {@link TransactionHelperImpl}.
+ */
+public class ReadOnlyTest {
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  @Test
+  public void testJoinedTransactionIsCommitted() {
+    transactionHelper.requiredAsVoid(() -> transactionHelper.readOnlyAsVoid(() -> {
+      Assert.assertNotNull(transactionManager.getTransaction());
+    }));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testNewTransactionIsRolledBack() {
+    String result = transactionHelper.readOnly(() -> "result");
+    Assert.assertEquals("result", result);
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    Assert.assertNull(transactionManager.getTransaction());
+  }
+
+  @Test
+  public void testWriteIsAllowedWithoutChecks() {
+    transactionHelper.readOnlyAsVoid(() -> transactionHelper.requiredAsVoid(() -> {
+    }));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testWriteIsDetectedWithChecks() {
+    transactionHelper.setReadOnlyCheckEnabled(true);
+    try {
+      transactionHelper.readOnlyAsVoid(() -> transactionHelper.mandatoryAsVoid(() -> {
+      }));
+      Assert.fail("Write request should be detected");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    }
+    // A new transaction is writable and the flag is restored after it
+    transactionHelper.readOnlyAsVoid(() -> {
+      transactionHelper.requiresNewAsVoid(() -> transactionHelper.requiredAsVoid(() -> {
+      }));
+      try {
+        transactionHelper.requiredAsVoid(() -> {
+        });
+        Assert.fail("Write request should be detected");
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage().contains("REQUIRED"));
+      }
+    });
+    transactionHelper.requiredAsVoid(() -> transactionHelper.requiredAsVoid(() -> {
+    }));
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the retrying propagations of {@link TransactionHelperImpl}.
+ */
+public class RetryTest {
+
+  private static final RetryPolicy RETRY_POLICY = new RetryPolicy(3, 0, 0);
+
+  private final AtomicInteger attempts = new AtomicInteger();
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  /**
+   * Makes the commit of the current transaction fail with a {@link RollbackException}.
+   */
+  private void failOnCommit() {
+    try {
+      transactionManager.getTransaction().registerSynchronization(new Synchronization() {
+
+        @Override
+        public void afterCompletion(final int status) {
+        }
+
+        @Override
+        public void beforeCompletion() {
+          throw new IllegalStateException("Serialization failure");
+        }
+      });
+    } catch (RollbackException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Test
+  public void testBackoffIsLimited() {
+    RetryPolicy retryPolicy = new RetryPolicy(10, 4, 10);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(retryPolicy.computeBackoffMillis(1) <= 4);
+      long backoff = retryPolicy.computeBackoffMillis(30);
+      Assert.assertTrue((backoff >= 0) && (backoff <= 10));
+    }
+  }
+
+  @Test
+  public void testBackoffOfManyAttemptsDoesNotOverflow() {
+    RetryPolicy retryPolicy = new RetryPolicy(Integer.MAX_VALUE, 3, Long.MAX_VALUE);
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(retryPolicy.computeBackoffMillis(63) >= 0);
+      Assert.assertTrue(retryPolicy.computeBackoffMillis(64) >= 0);
+      Assert.assertTrue(retryPolicy.computeBackoffMillis(Integer.MAX_VALUE) >= 0);
+    }
+  }
+
+  @Test
+  public void testJoinedTransactionIsNotRetried() {
+    try {
+      transactionHelper.required(() -> transactionHelper.requiredWithRetry(RETRY_POLICY, () -> {
+        attempts.incrementAndGet();
+        throw new TransactionalException(new SQLException("Deadlock", "40P01"));
+      }));
+      Assert.fail("Exception should have been thrown");
+    } catch (TransactionalException e) {
+      Assert.assertEquals(1, attempts.get());
+    }
+  }
+
+  @Test
+  public void testNotRetryableFailure() {
+    try {
+      transactionHelper.requiresNewWithRetry(RETRY_POLICY, () -> {
+        attempts.incrementAndGet();
+        throw new IllegalArgumentException();
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(1, attempts.get());
+      Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    }
+  }
+
+  @Test
+  public void testRetryableCommitFailure() {
+    String result = transactionHelper.requiredWithRetry(RETRY_POLICY, () -> {
+      if (attempts.incrementAndGet() < 3) {
+        failOnCommit();
+      }
+      return "done";
+    });
+    Assert.assertEquals("done", result);
+    Assert.assertEquals(3, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(3, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testRetryableSuppressedFailure() {
+    RuntimeException failure = new IllegalStateException();
+    failure.addSuppressed(new SQLException("Deadlock", "40001"));
+    try {
+      transactionHelper.requiresNewWithRetry(RETRY_POLICY, () -> {
+        attempts.incrementAndGet();
+        throw failure;
+      });
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertSame(failure, e);
+      Assert.assertEquals(3, attempts.get());
+      Assert.assertEquals(3, transactionManager.getCallCount(Call.ROLLBACK));
+    }
+  }
+}
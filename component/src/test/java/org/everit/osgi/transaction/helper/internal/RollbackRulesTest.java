@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.io.IOException;
+
+import javax.transaction.Status;
+
+import org.everit.osgi.transaction.helper.api.RetryPolicy;
+import org.everit.osgi.transaction.helper.api.RollbackRules;
+import org.everit.osgi.transaction.helper.api.TransactionalException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link RollbackRules} of {@link TransactionHelperImpl}.
+ */
+public class RollbackRulesTest {
+
+  private static final RollbackRules NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT = new RollbackRules(
+      new Class<?>[] { NumberFormatException.class },
+      new Class<?>[] { IllegalArgumentException.class });
+
+  @SuppressWarnings("unchecked")
+  private static <E extends Throwable> void sneakyThrow(final Throwable throwable) throws E {
+    throw (E) throwable;
+  }
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConflictingRules() {
+    new RollbackRules(new String[] { "java.io.IOException" },
+        new String[] { "java.io.IOException" });
+  }
+
+  @Test
+  public void testDefaultRulesApplyToWrappedCheckedException() {
+    transactionHelper.setRollbackRules(new RollbackRules(new String[0],
+        new String[] { "java.io.IOException" }));
+    try {
+      transactionHelper.requiresNewAsVoid(() -> {
+        sneakyThrow(new IOException());
+      });
+      Assert.fail();
+    } catch (TransactionalException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testJoinedCallDoesNotMarkRollbackOnly() {
+    transactionHelper.requiredAsVoid(() -> {
+      try {
+        transactionHelper.requiredWithRollbackRules(NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT, () -> {
+          throw new IllegalArgumentException();
+        });
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertEquals(Status.STATUS_ACTIVE,
+            transactionManager.getTransaction().getStatus());
+      }
+    });
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testCommittedAttemptIsNotRetried() {
+    transactionHelper.setRollbackRules(NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT);
+    int[] attempts = new int[1];
+    try {
+      transactionHelper.requiredWithRetry(new RetryPolicy(3, 0, 0, (e) -> true), () -> {
+        attempts[0]++;
+        throw new IllegalArgumentException("Not found");
+      });
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals("Not found", e.getMessage());
+    }
+    Assert.assertEquals(1, attempts[0]);
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testMostSpecificRuleWins() {
+    try {
+      transactionHelper.requiresNewWithRollbackRules(NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT, () -> {
+        throw new NumberFormatException();
+      });
+      Assert.fail();
+    } catch (NumberFormatException e) {
+      Assert.assertEquals(0, transactionManager.getCallCount(Call.COMMIT));
+      Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    }
+  }
+
+  @Test
+  public void testNoRollbackCommitsNewTransaction() {
+    try {
+      transactionHelper.requiresNewWithRollbackRules(NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT, () -> {
+        throw new IllegalArgumentException("Not found");
+      });
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals("Not found", e.getMessage());
+    }
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+    Assert.assertNull(transactionManager.getTransaction());
+  }
+
+  @Test
+  public void testUnmatchedExceptionRollsBack() {
+    try {
+      transactionHelper.requiresNewWithRollbackRules(NO_ROLLBACK_FOR_ILLEGAL_ARGUMENT, () -> {
+        throw new IllegalStateException();
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+    }
+  }
+}
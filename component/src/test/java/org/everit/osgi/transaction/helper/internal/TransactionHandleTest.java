@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.api.TransactionHandle;
+import org.everit.osgi.transaction.helper.api.TransactionRejectedException;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of handing off transactions of {@link TransactionHelperImpl} between threads.
+ */
+public class TransactionHandleTest {
+
+  private ExecutorService executor;
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  private void awaitLatch(final CountDownLatch latch) {
+    try {
+      Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Before
+  public void before() {
+    executor = Executors.newFixedThreadPool(2);
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  private Transaction currentTransaction() {
+    return transactionManager.getTransaction();
+  }
+
+  @Test
+  public void testAttachOnBusyThreadFails() {
+    TransactionHandle handle = transactionHelper.beginDetached();
+    transactionHelper.requiredAsVoid(() -> {
+      try {
+        handle.run(() -> {
+        });
+        Assert.fail();
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage().contains("propagation call"));
+      }
+    });
+    transactionHelper.notSupportedAsVoid(() -> {
+      try {
+        handle.commit();
+        Assert.fail();
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage().contains("propagation call"));
+      }
+    });
+    Assert.assertFalse(handle.isCompleted());
+    handle.commit();
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testBeginDetachedKeepsTransactionOfThread() throws Exception {
+    TransactionHandle handle = transactionHelper.required(() -> {
+      Transaction outerTransaction = currentTransaction();
+      TransactionHandle detachedHandle = transactionHelper.beginDetached();
+      Assert.assertSame(outerTransaction, currentTransaction());
+      return detachedHandle;
+    });
+    executor.submit(handle::rollback).get();
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.BEGIN));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+
+  @Test
+  public void testBeginDetachedIsAdmittedAndMeasuredUntilCompletion() throws Exception {
+    AdmissionControl admissionControl = new AdmissionControl(1, 0, 0);
+    transactionHelper.setAdmissionControl(admissionControl);
+    transactionHelper.getMetrics().setEnabled(true);
+    transactionHelper.getInFlightRegistry().setEnabled(true);
+    TransactionHandle handle = transactionHelper.beginDetached();
+    Assert.assertEquals(1, admissionControl.getActiveCount());
+    Assert.assertEquals(1,
+        transactionHelper.getInFlightRegistry().getInFlightTransactions(0).size());
+    try {
+      transactionHelper.requiresNewAsVoid(() -> {
+      });
+      Assert.fail();
+    } catch (TransactionRejectedException e) {
+      Assert.assertEquals(0, transactionManager.getCallCount(Call.COMMIT));
+    }
+    executor.submit(handle::commit).get();
+    Assert.assertEquals(0, admissionControl.getActiveCount());
+    Assert.assertTrue(
+        transactionHelper.getInFlightRegistry().getInFlightTransactions(0).isEmpty());
+    Assert.assertEquals(1, transactionHelper.getMetrics().getCommitCount());
+  }
+
+  @Test
+  public void testCallbackFailureMarksRollbackOnly() throws Exception {
+    TransactionHandle handle = transactionHelper.beginDetached();
+    Transaction[] transaction = new Transaction[1];
+    Future<?> future = executor.submit(() -> {
+      try {
+        handle.run(() -> {
+          transaction[0] = currentTransaction();
+          throw new IllegalArgumentException();
+        });
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        Assert.assertNull(currentTransaction());
+      }
+    });
+    future.get();
+    Assert.assertEquals(Status.STATUS_MARKED_ROLLBACK, transaction[0].getStatus());
+    try {
+      handle.commit();
+      Assert.fail();
+    } catch (RuntimeException e) {
+      Assert.assertEquals(Status.STATUS_ROLLEDBACK, transaction[0].getStatus());
+    }
+    Assert.assertTrue(handle.isCompleted());
+  }
+
+  @Test
+  public void testConcurrentAttachFails() throws Exception {
+    TransactionHandle handle = transactionHelper.beginDetached();
+    CountDownLatch attached = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Future<?> future = executor.submit(() -> handle.run(() -> {
+      attached.countDown();
+      awaitLatch(finish);
+    }));
+    awaitLatch(attached);
+    try {
+      handle.run(() -> {
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("attached to thread"));
+    }
+    Assert.assertNull(currentTransaction());
+    finish.countDown();
+    future.get();
+    handle.commit();
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testDetachOutsideTransactionFails() {
+    try {
+      transactionHelper.detach();
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("No transaction"));
+    }
+    transactionHelper.requiredAsVoid(() -> {
+      try {
+        transactionHelper.detach();
+        Assert.fail();
+      } catch (IllegalStateException e) {
+        Assert.assertTrue(e.getMessage().contains("propagation call"));
+      }
+    });
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testHandOffToAnotherThread() throws Exception {
+    transactionManager.begin();
+    Transaction transaction = currentTransaction();
+    TransactionHandle handle = transactionHelper.detach();
+    Assert.assertNull(currentTransaction());
+    Future<?> future = executor.submit(() -> {
+      String result = handle.call(() -> {
+        Assert.assertSame(transaction, currentTransaction());
+        return transactionHelper.required(() -> "joined");
+      });
+      Assert.assertEquals("joined", result);
+      Assert.assertNull(currentTransaction());
+      handle.commit();
+    });
+    future.get();
+    Assert.assertTrue(handle.isCompleted());
+    Assert.assertEquals(Status.STATUS_COMMITTED, transaction.getStatus());
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.BEGIN));
+  }
+
+  @Test
+  public void testReplacedTransactionManagerIsKeptUntilCompletion() throws Exception {
+    TransactionHandle handle = transactionHelper.beginDetached();
+    TransactionManagerBinding previousBinding =
+        transactionHelper.swapTransactionManager(new CountingTransactionManager());
+    Assert.assertFalse(previousBinding.awaitDrained(0));
+    handle.run(() -> transactionHelper.mandatoryAsVoid(() -> {
+    }));
+    handle.commit();
+    Assert.assertEquals(1, transactionManager.getCallCount(Call.COMMIT));
+    Assert.assertTrue(previousBinding.awaitDrained(0));
+  }
+
+  @Test
+  public void testUseAfterCompletionFails() throws InterruptedException, ExecutionException {
+    TransactionHandle handle = transactionHelper.beginDetached();
+    executor.submit(handle::commit).get();
+    try {
+      handle.rollback();
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("already completed"));
+    }
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.ROLLBACK));
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.management.ObjectName;
+import javax.transaction.TransactionManager;
+
+import org.everit.osgi.transaction.helper.api.InFlightTransactionRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.ComponentException;
+
+/**
+ * Tests of the services that {@link TransactionHelperComponent} registers.
+ */
+public class TransactionHelperComponentActivationTest {
+
+  private static final long COMPONENT_ID = 4711;
+
+  /**
+   * The properties of the last registered service.
+   */
+  private Dictionary<?, ?> lastServiceProperties;
+
+  /**
+   * The services registered by the component that are not unregistered yet.
+   */
+  private final List<Class<?>> registeredServices = new ArrayList<>();
+
+  private ComponentContext componentContext(final Dictionary<String, Object> properties,
+      final Class<?> failingServiceClass) {
+    BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] { BundleContext.class },
+        (proxy, method, args) -> {
+          Assert.assertEquals("registerService", method.getName());
+          Class<?> serviceClass = (Class<?>) args[0];
+          if (serviceClass == failingServiceClass) {
+            throw new IllegalStateException("Registration failed");
+          }
+          registeredServices.add(serviceClass);
+          lastServiceProperties = (Dictionary<?, ?>) args[2];
+          return serviceRegistration(serviceClass);
+        });
+    return (ComponentContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { ComponentContext.class }, (proxy, method, args) -> {
+          if ("getProperties".equals(method.getName())) {
+            return properties;
+          }
+          Assert.assertEquals("getBundleContext", method.getName());
+          return bundleContext;
+        });
+  }
+
+  private boolean isMetricsMXBeanRegistered() throws Exception {
+    return ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+        TransactionHelperComponent.METRICS_OBJECT_NAME_DOMAIN
+            + ":type=TransactionHelperMetrics,componentId=" + COMPONENT_ID));
+  }
+
+  private Dictionary<String, Object> properties() {
+    Dictionary<String, Object> properties = new Hashtable<>();
+    properties.put(ComponentConstants.COMPONENT_ID, COMPONENT_ID);
+    return properties;
+  }
+
+  private ServiceRegistration<?> serviceRegistration(final Class<?> serviceClass) {
+    return (ServiceRegistration<?>) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { ServiceRegistration.class }, (proxy, method, args) -> {
+          Assert.assertEquals("unregister", method.getName());
+          Assert.assertTrue(registeredServices.remove(serviceClass));
+          return null;
+        });
+  }
+
+  @Test
+  public void testDecoratedTransactionManagerIsExcludedFromDefaultTarget() {
+    Dictionary<String, Object> properties = properties();
+    properties.put(TransactionHelperComponent.PROP_LAZY_BEGIN_ENABLED, true);
+    TransactionHelperComponent component = new TransactionHelperComponent();
+    component.setTransactionManager(new CountingTransactionManager());
+    component.activate(componentContext(properties, null));
+    try {
+      Assert.assertTrue(registeredServices.contains(TransactionManager.class));
+      Assert.assertEquals(Boolean.TRUE,
+          lastServiceProperties.get(TransactionHelperComponent.PROP_DECORATED));
+    } finally {
+      component.deactivate();
+    }
+    Assert.assertTrue(registeredServices.isEmpty());
+  }
+
+  @Test
+  public void testFailedRegistrationIsUndone() throws Exception {
+    TransactionHelperComponent component = new TransactionHelperComponent();
+    try {
+      component.activate(componentContext(properties(), InFlightTransactionRegistry.class));
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Registration failed", e.getMessage());
+    }
+    Assert.assertTrue(registeredServices.isEmpty());
+    Assert.assertFalse(isMetricsMXBeanRegistered());
+
+    component = new TransactionHelperComponent();
+    component.activate(componentContext(properties(), null));
+    Assert.assertTrue(isMetricsMXBeanRegistered());
+    component.deactivate();
+    Assert.assertTrue(registeredServices.isEmpty());
+    Assert.assertFalse(isMetricsMXBeanRegistered());
+  }
+
+  @Test
+  public void testInvalidConfigurationRegistersNothing() throws Exception {
+    Dictionary<String, Object> properties = properties();
+    properties.put(TransactionHelperComponent.PROP_ADMISSION_MAX_CONCURRENT, 1);
+    properties.put(TransactionHelperComponent.PROP_ADMISSION_MAX_QUEUE_LENGTH, -1);
+    TransactionHelperComponent component = new TransactionHelperComponent();
+    try {
+      component.activate(componentContext(properties, null));
+      Assert.fail();
+    } catch (ComponentException e) {
+      Assert.assertEquals("Invalid admission control configuration", e.getMessage());
+    }
+    Assert.assertTrue(registeredServices.isEmpty());
+    Assert.assertFalse(isMetricsMXBeanRegistered());
+
+    properties.put(TransactionHelperComponent.PROP_ADMISSION_MAX_QUEUE_LENGTH, 1);
+    component = new TransactionHelperComponent();
+    component.activate(componentContext(properties, null));
+    Assert.assertEquals(2, registeredServices.size());
+    component.deactivate();
+    Assert.assertTrue(registeredServices.isEmpty());
+  }
+}
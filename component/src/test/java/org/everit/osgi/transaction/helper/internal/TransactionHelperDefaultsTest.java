@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.function.Supplier;
+
+import org.everit.osgi.transaction.helper.api.TransactionHelper;
+import org.everit.osgi.transaction.helper.api.TransactionPriority;
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the default methods of {@link TransactionHelper} with an implementation that only
+ * implements the basic propagations.
+ */
+public class TransactionHelperDefaultsTest {
+
+  /**
+   * An implementation that was written against the first version of the interface.
+   */
+  private static final class BasicTransactionHelper implements TransactionHelper {
+
+    private final TransactionHelper delegate;
+
+    BasicTransactionHelper(final TransactionHelper delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public <R> R mandatory(final Supplier<R> callback) {
+      return delegate.mandatory(callback);
+    }
+
+    @Override
+    public <R> R never(final Supplier<R> callback) {
+      return delegate.never(callback);
+    }
+
+    @Override
+    public <R> R notSupported(final Supplier<R> callback) {
+      return delegate.notSupported(callback);
+    }
+
+    @Override
+    public <R> R required(final Supplier<R> callback) {
+      return delegate.required(callback);
+    }
+
+    @Override
+    public <R> R requiresNew(final Supplier<R> callback) {
+      return delegate.requiresNew(callback);
+    }
+
+    @Override
+    public <R> R supports(final Supplier<R> callback) {
+      return delegate.supports(callback);
+    }
+  }
+
+  private TransactionHelper transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    TransactionHelperImpl transactionHelperImpl = new TransactionHelperImpl();
+    transactionHelperImpl.setTransactionManager(transactionManager);
+    transactionHelper = new BasicTransactionHelper(transactionHelperImpl);
+  }
+
+  @Test
+  public void testDelegatingDefaults() {
+    Assert.assertEquals("nested", transactionHelper.required(() -> transactionHelper.nested(
+        () -> transactionHelper.withPriority(TransactionPriority.HIGH, () -> "nested"))));
+    Assert.assertEquals(1, transactionHelper.requiresNewMergeable(() -> 1).intValue());
+    Assert.assertTrue(transactionHelper.requiredAsBoolean(() -> true));
+    Assert.assertEquals(3, transactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testUnsupportedDefaults() {
+    transactionHelper.requiredWithTimeout(10, () -> null);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.everit.osgi.transaction.helper.api.TransactionHelperListener;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the {@link TransactionHelperListener} events of {@link TransactionHelperImpl}.
+ */
+public class TransactionHelperListenerTest {
+
+  /**
+   * Listener that records the events without their durations.
+   */
+  private static class RecordingListener implements TransactionHelperListener {
+
+    private final List<String> events = new ArrayList<>();
+
+    @Override
+    public void rollbackOnlyMarked(final String propagation) {
+      events.add("rollbackOnly:" + propagation);
+    }
+
+    @Override
+    public void transactionBegun(final String propagation, final long nanos) {
+      events.add("begin:" + propagation);
+    }
+
+    @Override
+    public void transactionCommitted(final String propagation, final long nanos) {
+      events.add("commit:" + propagation);
+    }
+
+    @Override
+    public void transactionJoined(final String propagation) {
+      events.add("join:" + propagation);
+    }
+
+    @Override
+    public void transactionResumed(final String propagation, final long nanos) {
+      events.add("resume:" + propagation);
+    }
+
+    @Override
+    public void transactionRolledBack(final String propagation, final long nanos) {
+      events.add("rollback:" + propagation);
+    }
+
+    @Override
+    public void transactionSuspended(final String propagation, final long nanos) {
+      events.add("suspend:" + propagation);
+    }
+  }
+
+  private RecordingListener listener;
+
+  private TransactionHelperImpl transactionHelper;
+
+  @Before
+  public void before() {
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(new CountingTransactionManager());
+    listener = new RecordingListener();
+    transactionHelper.addListener(listener);
+  }
+
+  @Test
+  public void testEventsOfNestedCalls() {
+    transactionHelper.requiredAsVoid(() -> {
+      transactionHelper.mandatoryAsVoid(() -> {
+      });
+      transactionHelper.requiresNewAsVoid(() -> {
+      });
+    });
+    Assert.assertEquals(Arrays.asList("begin:REQUIRED", "join:MANDATORY", "suspend:REQUIRES_NEW",
+        "begin:REQUIRES_NEW", "commit:REQUIRES_NEW", "resume:REQUIRES_NEW", "commit:REQUIRED"),
+        listener.events);
+  }
+
+  @Test
+  public void testFailingListenerDoesNotAffectTransaction() {
+    transactionHelper.addListener(new RecordingListener() {
+      @Override
+      public void transactionBegun(final String propagation, final long nanos) {
+        throw new IllegalStateException("Listener failure");
+      }
+    });
+    Assert.assertEquals(Integer.valueOf(1), transactionHelper.requiresNew(() -> 1));
+    Assert.assertEquals(Arrays.asList("begin:REQUIRES_NEW", "commit:REQUIRES_NEW"),
+        listener.events);
+  }
+
+  @Test
+  public void testFailureEvents() {
+    try {
+      transactionHelper.requiredAsVoid(() -> {
+        transactionHelper.mandatory(() -> {
+          throw new IllegalArgumentException();
+        });
+      });
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals(Arrays.asList("begin:REQUIRED", "join:MANDATORY",
+          "rollbackOnly:MANDATORY", "rollback:REQUIRED"), listener.events);
+    }
+  }
+
+  @Test
+  public void testRemovedListenerIsNotNotified() {
+    transactionHelper.removeListener(listener);
+    transactionHelper.requiresNewAsVoid(() -> {
+    });
+    Assert.assertTrue(listener.events.isEmpty());
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.everit.osgi.transaction.helper.api.LatencyStatistics;
+import org.everit.osgi.transaction.helper.api.TransactionHelperMetrics;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the metrics of {@link TransactionHelperImpl}.
+ */
+public class TransactionHelperMetricsTest {
+
+  private TransactionHelperMetrics metrics;
+
+  private TransactionHelperImpl transactionHelper;
+
+  @Before
+  public void before() {
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(new CountingTransactionManager());
+    metrics = transactionHelper.getMetrics();
+  }
+
+  @Test
+  public void testCounters() {
+    metrics.setEnabled(true);
+    transactionHelper.required(() -> transactionHelper.requiresNew(() -> null));
+    try {
+      transactionHelper.required(() -> transactionHelper.required(() -> {
+        throw new IllegalStateException();
+      }));
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, metrics.getRollbackOnlyCount());
+      Assert.assertEquals(1, metrics.getRollbackCount());
+    }
+    try {
+      transactionHelper.mandatory(() -> null);
+      Assert.fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, metrics.getNotAllowedStatusCount());
+    }
+    Assert.assertEquals(2, metrics.getCommitCount());
+
+    Map<String, LatencyStatistics> latencies = metrics.getLatencies();
+    Assert.assertEquals(2, latencies.get("REQUIRED.BEGIN").getCount());
+    Assert.assertEquals(3, latencies.get("REQUIRED.CALLBACK").getCount());
+    Assert.assertEquals(1, latencies.get("REQUIRED.COMMIT").getCount());
+    Assert.assertEquals(1, latencies.get("REQUIRED.ROLLBACK").getCount());
+    Assert.assertEquals(1, latencies.get("REQUIRES_NEW.SUSPEND").getCount());
+    Assert.assertEquals(1, latencies.get("REQUIRES_NEW.RESUME").getCount());
+
+    metrics.reset();
+    Assert.assertEquals(0, metrics.getCommitCount());
+    Assert.assertTrue(metrics.getLatencies().isEmpty());
+  }
+
+  @Test
+  public void testDisabledMetricsRecordNothing() {
+    transactionHelper.required(() -> transactionHelper.requiresNew(() -> null));
+    Assert.assertEquals(0, metrics.getCommitCount());
+    Assert.assertTrue(metrics.getLatencies().isEmpty());
+  }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Assert.assertNull(histogram.snapshot());
+    for (int i = 1; i <= 10000; i++) {
+      histogram.record(i);
+    }
+    LatencyStatistics statistics = histogram.snapshot();
+    Assert.assertEquals(10000, statistics.getCount());
+    Assert.assertEquals(10000, statistics.getMaxNanos());
+    Assert.assertEquals(5000, statistics.getMeanNanos());
+    Assert.assertTrue(statistics.getP50Nanos() >= 5000);
+    Assert.assertTrue(statistics.getP50Nanos() <= 6250);
+    Assert.assertTrue(statistics.getP99Nanos() >= 9900);
+    Assert.assertTrue(statistics.getP99Nanos() <= 10000);
+  }
+
+  @Test
+  public void testMetricsAreAnMXBean() throws JMException {
+    metrics.setEnabled(true);
+    transactionHelper.required(() -> null);
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName =
+        new ObjectName("org.everit.osgi.transaction.helper:type=TransactionHelperMetrics,test=1");
+    mbeanServer.registerMBean(metrics, objectName);
+    try {
+      Assert.assertEquals(1L, mbeanServer.getAttribute(objectName, "CommitCount"));
+      TabularData latencies = (TabularData) mbeanServer.getAttribute(objectName, "Latencies");
+      Assert.assertEquals(3, latencies.size());
+    } finally {
+      mbeanServer.unregisterMBean(objectName);
+    }
+  }
+}
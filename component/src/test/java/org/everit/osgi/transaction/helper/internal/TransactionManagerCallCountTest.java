@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how many times the {@link TransactionHelperImpl} calls the transaction manager during the
+ * different propagations.
+ */
+public class TransactionManagerCallCountTest {
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  private void assertCallCount(final long expectedCallCount) {
+    Assert.assertEquals(expectedCallCount, transactionManager.getCallCount());
+  }
+
+  private void assertCallCount(final Call call, final long expectedCallCount) {
+    Assert.assertEquals(call.name(), expectedCallCount, transactionManager.getCallCount(call));
+  }
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+    transactionHelper.setThreadTransactionCacheEnabled(true);
+  }
+
+  @Test
+  public void testContextIsForgottenAfterOutermostCall() {
+    transactionHelper.required(() -> 1);
+    transactionHelper.required(() -> 1);
+    assertCallCount(Call.GET_TRANSACTION, 2);
+    assertCallCount(6);
+  }
+
+  @Test
+  public void testManuallyCompletedTransactionIsNotUsed() {
+    try {
+      transactionHelper.required(() -> {
+        transactionHelper.mandatory(() -> 1);
+        try {
+          transactionManager.commit();
+        } catch (Exception e) {
+          Assert.fail(e.getMessage());
+        }
+        return transactionHelper.supports(() -> {
+          Assert.assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+          return 1;
+        });
+      });
+      Assert.fail("Commit should fail as there is no transaction anymore");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(Status.STATUS_NO_TRANSACTION, transactionManager.getStatus());
+    }
+  }
+
+  @Test
+  public void testNestedCallsAskTransactionManagerWithoutCache() {
+    transactionHelper.setThreadTransactionCacheEnabled(false);
+    transactionHelper.requiredAsVoid(() -> {
+      transactionHelper.mandatoryAsVoid(() -> {
+      });
+      Transaction outerTransaction = transactionManager.suspend();
+      transactionHelper.requiredAsVoid(
+          () -> Assert.assertNotNull(transactionManager.getTransaction()));
+      try {
+        transactionManager.resume(outerTransaction);
+      } catch (InvalidTransactionException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertCallCount(Call.BEGIN, 2);
+    assertCallCount(Call.COMMIT, 2);
+  }
+
+  @Test
+  public void testNeverNoTransaction() {
+    transactionHelper.never(() -> 1);
+    assertCallCount(Call.GET_TRANSACTION, 1);
+    assertCallCount(1);
+  }
+
+  @Test
+  public void testNotSupportedInRequired() {
+    transactionHelper.required(() -> transactionHelper.notSupported(() -> 1));
+    assertCallCount(Call.GET_TRANSACTION, 2);
+    assertCallCount(Call.SUSPEND, 1);
+    assertCallCount(Call.RESUME, 1);
+    assertCallCount(6);
+  }
+
+  @Test
+  public void testRequiredInRequiredInRequired() {
+    transactionHelper.required(() -> transactionHelper.required(() -> {
+      return transactionHelper.mandatory(() -> 1);
+    }));
+    assertCallCount(Call.GET_STATUS, 0);
+    assertCallCount(Call.GET_TRANSACTION, 2);
+    assertCallCount(Call.BEGIN, 1);
+    assertCallCount(Call.COMMIT, 1);
+    assertCallCount(4);
+  }
+
+  @Test
+  public void testRequiredNoTransaction() {
+    transactionHelper.required(() -> 1);
+    assertCallCount(Call.GET_TRANSACTION, 1);
+    assertCallCount(Call.BEGIN, 1);
+    assertCallCount(Call.COMMIT, 1);
+    assertCallCount(3);
+  }
+
+  @Test
+  public void testRequiresNewInRequired() {
+    transactionHelper.required(() -> transactionHelper.requiresNew(() -> {
+      return transactionHelper.mandatory(() -> 1);
+    }));
+    assertCallCount(Call.GET_TRANSACTION, 2);
+    assertCallCount(Call.SUSPEND, 1);
+    assertCallCount(Call.BEGIN, 2);
+    assertCallCount(Call.COMMIT, 2);
+    assertCallCount(Call.RESUME, 1);
+    assertCallCount(8);
+  }
+
+  @Test
+  public void testRequiresNewNoTransaction() {
+    transactionHelper.requiresNew(() -> 1);
+    assertCallCount(Call.SUSPEND, 1);
+    assertCallCount(Call.BEGIN, 1);
+    assertCallCount(Call.COMMIT, 1);
+    assertCallCount(3);
+  }
+
+  @Test
+  public void testSupportsInRequired() {
+    transactionHelper.required(() -> {
+      transactionHelper.supports(() -> 1);
+      return transactionHelper.supports(() -> 1);
+    });
+    assertCallCount(Call.GET_TRANSACTION, 2);
+    assertCallCount(4);
+  }
+
+  @Test
+  public void testSupportsNoTransaction() {
+    transactionHelper.supports(() -> 1);
+    assertCallCount(Call.GET_TRANSACTION, 1);
+    assertCallCount(1);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of replacing the transaction manager of {@link TransactionHelperImpl} and
+ * {@link TransactionHelperComponent} while calls are running.
+ */
+public class TransactionManagerRebindingTest {
+
+  private ExecutorService executor;
+
+  private CountingTransactionManager newTransactionManager;
+
+  private CountingTransactionManager oldTransactionManager;
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+  }
+
+  private void awaitLatch(final CountDownLatch latch) {
+    try {
+      Assert.assertTrue(latch.await(1, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Before
+  public void before() {
+    executor = Executors.newFixedThreadPool(2);
+    oldTransactionManager = new CountingTransactionManager();
+    newTransactionManager = new CountingTransactionManager();
+  }
+
+  @Test
+  public void testCallFailsFastWithoutTransactionManager() {
+    TransactionHelperImpl transactionHelper = new TransactionHelperImpl();
+    try {
+      transactionHelper.requiredAsVoid(() -> {
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage().contains("No transaction manager"));
+    }
+    transactionHelper.setTransactionManager(newTransactionManager);
+    transactionHelper.requiredAsVoid(() -> {
+    });
+    Assert.assertEquals(1, newTransactionManager.getCallCount(Call.COMMIT));
+  }
+
+  @Test
+  public void testComponentDrainsReplacedTransactionManager() throws Exception {
+    TransactionHelperComponent component = new TransactionHelperComponent();
+    component.setTransactionManager(oldTransactionManager);
+    CountDownLatch callStarted = new CountDownLatch(1);
+    CountDownLatch callMayFinish = new CountDownLatch(1);
+    Future<?> runningCall = executor.submit(() -> component.requiresNewAsVoid(() -> {
+      callStarted.countDown();
+      awaitLatch(callMayFinish);
+    }));
+    Assert.assertTrue(callStarted.await(1, TimeUnit.SECONDS));
+
+    component.setTransactionManager(newTransactionManager);
+    component.requiresNewAsVoid(() -> {
+    });
+    Assert.assertEquals(1, newTransactionManager.getCallCount(Call.COMMIT));
+
+    Future<?> unbind =
+        executor.submit(() -> component.unbindTransactionManager(oldTransactionManager));
+    Thread.sleep(50);
+    Assert.assertFalse(unbind.isDone());
+    callMayFinish.countDown();
+    unbind.get(1, TimeUnit.SECONDS);
+    runningCall.get(1, TimeUnit.SECONDS);
+    Assert.assertEquals(1, oldTransactionManager.getCallCount(Call.COMMIT));
+
+    component.unbindTransactionManager(newTransactionManager);
+    try {
+      component.requiresNewAsVoid(() -> {
+      });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals(1, newTransactionManager.getCallCount(Call.BEGIN));
+    }
+  }
+
+  @Test
+  public void testRunningCallKeepsTransactionManager() throws Exception {
+    TransactionHelperImpl transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(oldTransactionManager);
+    CountDownLatch callStarted = new CountDownLatch(1);
+    CountDownLatch callMayFinish = new CountDownLatch(1);
+    Future<?> runningCall = executor.submit(() -> transactionHelper.requiredAsVoid(() -> {
+      callStarted.countDown();
+      awaitLatch(callMayFinish);
+      transactionHelper.requiresNewAsVoid(() -> {
+      });
+    }));
+    Assert.assertTrue(callStarted.await(1, TimeUnit.SECONDS));
+
+    TransactionManagerBinding oldBinding =
+        transactionHelper.swapTransactionManager(newTransactionManager);
+    Assert.assertFalse(oldBinding.awaitDrained(20));
+    transactionHelper.requiredAsVoid(() -> {
+    });
+    callMayFinish.countDown();
+    runningCall.get(1, TimeUnit.SECONDS);
+    Assert.assertTrue(oldBinding.awaitDrained(1000));
+
+    Assert.assertEquals(2, oldTransactionManager.getCallCount(Call.COMMIT));
+    Assert.assertEquals(1, oldTransactionManager.getCallCount(Call.SUSPEND));
+    Assert.assertEquals(1, newTransactionManager.getCallCount(Call.COMMIT));
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link TransactionScopedCacheImpl}.
+ */
+public class TransactionScopedCacheTest {
+
+  private final AtomicInteger loadCount = new AtomicInteger();
+
+  private TransactionScopedCacheImpl cache;
+
+  private TransactionHelperImpl transactionHelper;
+
+  @Before
+  public void before() {
+    CountingTransactionManager transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+    cache = new TransactionScopedCacheImpl();
+    cache.setTransactionManager(transactionManager);
+  }
+
+  private String load(final String key) {
+    loadCount.incrementAndGet();
+    return key + loadCount.get();
+  }
+
+  @Test
+  public void testCacheIsDiscardedOnCompletion() {
+    transactionHelper.required(() -> cache.computeIfAbsent("key", this::load));
+    Assert.assertEquals(0, cache.activeCacheCount());
+    String value = transactionHelper.required(() -> cache.computeIfAbsent("key", this::load));
+    Assert.assertEquals("key2", value);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedValueIsEvicted() {
+    cache.setMaxSize(2);
+    transactionHelper.required(() -> {
+      cache.computeIfAbsent("a", this::load);
+      cache.computeIfAbsent("b", this::load);
+      cache.computeIfAbsent("a", this::load);
+      cache.computeIfAbsent("c", this::load);
+      Assert.assertEquals(3, loadCount.get());
+      Assert.assertEquals("a1", cache.computeIfAbsent("a", this::load));
+      Assert.assertEquals("b4", cache.computeIfAbsent("b", this::load));
+      return null;
+    });
+  }
+
+  @Test
+  public void testNoCachingWithoutTransaction() {
+    Assert.assertEquals("key1", cache.computeIfAbsent("key", this::load));
+    Assert.assertEquals("key2", cache.computeIfAbsent("key", this::load));
+    Assert.assertEquals(0, cache.activeCacheCount());
+  }
+
+  @Test
+  public void testValueIsSharedInTransaction() {
+    transactionHelper.required(() -> {
+      Assert.assertEquals("key1", cache.computeIfAbsent("key", this::load));
+      Assert.assertEquals("key1",
+          transactionHelper.mandatory(() -> cache.computeIfAbsent("key", this::load)));
+      Assert.assertEquals("key2",
+          transactionHelper.requiresNew(() -> cache.computeIfAbsent("key", this::load)));
+      cache.invalidate("key");
+      Assert.assertEquals("key3", cache.computeIfAbsent("key", this::load));
+      Assert.assertEquals(1, cache.activeCacheCount());
+      return null;
+    });
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.transaction.helper.internal;
+
+import org.everit.osgi.transaction.helper.internal.CountingTransactionManager.Call;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the transaction timeouts of {@link TransactionHelperImpl}.
+ */
+public class TransactionTimeoutTest {
+
+  private TransactionHelperImpl transactionHelper;
+
+  private CountingTransactionManager transactionManager;
+
+  @Before
+  public void before() {
+    transactionManager = new CountingTransactionManager();
+    transactionHelper = new TransactionHelperImpl();
+    transactionHelper.setTransactionManager(transactionManager);
+  }
+
+  private int currentTimeout() {
+    return transactionManager.getTransaction().getTimeout();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidTimeout() {
+    transactionHelper.requiresNewWithTimeout(0, () -> null);
+  }
+
+  @Test
+  public void testNestedRequiresNewInheritsRemainingTime() {
+    int nestedTimeout = transactionHelper.requiresNewWithTimeout(30,
+        () -> transactionHelper.requiresNewAsInt(this::currentTimeout));
+    Assert.assertTrue("Nested timeout: " + nestedTimeout,
+        (nestedTimeout > 0) && (nestedTimeout <= 30));
+  }
+
+  @Test
+  public void testNestedShorterTimeoutIsKept() {
+    int[] timeouts = transactionHelper.requiresNewWithTimeout(30, () -> {
+      int shorter = transactionHelper.requiresNewWithTimeout(2,
+          () -> transactionHelper.requiresNewAsInt(this::currentTimeout));
+      int afterShorter = transactionHelper.requiresNewAsInt(this::currentTimeout);
+      int longer = transactionHelper.requiresNewWithTimeout(60, this::currentTimeout);
+      return new int[] { shorter, afterShorter, longer };
+    });
+    Assert.assertTrue(timeouts[0] <= 2);
+    Assert.assertTrue(timeouts[1] > 2);
+    Assert.assertTrue(timeouts[2] <= 30);
+  }
+
+  @Test
+  public void testNoTimeoutCallsWithoutDeadline() {
+    transactionHelper.required(() -> transactionHelper.requiresNew(() -> null));
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.SET_TRANSACTION_TIMEOUT));
+  }
+
+  @Test
+  public void testRequiredJoinIgnoresTimeout() {
+    int timeout = transactionHelper.requiredAsInt(
+        () -> transactionHelper.requiredWithTimeout(5, this::currentTimeout));
+    Assert.assertEquals(0, timeout);
+    Assert.assertEquals(0, transactionManager.getCallCount(Call.SET_TRANSACTION_TIMEOUT));
+  }
+
+  @Test
+  public void testTimeoutIsResetAfterBegin() {
+    int timeout = transactionHelper.requiresNewWithTimeout(30, this::currentTimeout);
+    Assert.assertEquals(30, timeout);
+    Assert.assertEquals(0, transactionHelper.requiresNewAsInt(this::currentTimeout));
+    Assert.assertEquals(2, transactionManager.getCallCount(Call.SET_TRANSACTION_TIMEOUT));
+  }
+}
@@ -536,4 +536,35 @@ public class TransactionHelperTest {
       Assert.assertEquals(1, e.getSuppressed().length);
     }
   }
+
+  @Test
+  public void test26RequiredRunnableNoTransaction() {
+    final RememberLastCallXAResource lastTrStatus = new RememberLastCallXAResource();
+    transactionHelper.requiredAsVoid(() -> {
+      enlistResource(lastTrStatus);
+    });
+    Assert.assertEquals(Status.STATUS_COMMITTED, lastTrStatus.getStatus());
+  }
+
+  @Test
+  public void test27RequiresNewAsIntOngoingTransactionFail() {
+    final RememberLastCallXAResource lastTrStatus = new RememberLastCallXAResource();
+    final RememberLastCallXAResource innerLastTrStatus = new RememberLastCallXAResource();
+    int result = transactionHelper.requiredAsInt(() -> {
+      enlistResource(lastTrStatus);
+      try {
+        transactionHelper.requiresNewAsInt(() -> {
+          enlistResource(innerLastTrStatus);
+          throw new NumberFormatException();
+        });
+        Assert.fail("Exception should have been thrown");
+      } catch (NumberFormatException e) {
+        Assert.assertEquals(Status.STATUS_ROLLEDBACK, innerLastTrStatus.getStatus());
+        Assert.assertEquals(Status.STATUS_ACTIVE, getStatus());
+      }
+      return transactionHelper.mandatoryAsInt(() -> 1);
+    });
+    Assert.assertEquals(1, result);
+    Assert.assertEquals(Status.STATUS_COMMITTED, lastTrStatus.getStatus());
+  }
 }